@@ -16,6 +16,7 @@ import com.tiagohm.bluedroid.ConnectionDevice;
 import com.tiagohm.bluedroid.ConnectionSecure;
 import com.tiagohm.bluedroid.Device;
 import com.tiagohm.bluedroid.LineBreakType;
+import com.tiagohm.bluedroid.LineDecoder;
 
 import java.nio.charset.Charset;
 
@@ -40,6 +41,9 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
 
+        //Exibe os dispositivos pareados e os já encontrados sem precisar escanear.
+        bt.enableDeviceCache();
+
         bt.addDiscoveryListener(new BlueDroid.DiscoveryListener() {
             @Override
             public void onDiscoveryStarted() {
@@ -89,13 +93,13 @@ public class MainActivity extends AppCompatActivity {
             }
         });
 
-        bt.addDataReceivedListener(new BlueDroid.DataReceivedListener() {
+        bt.addBulkDataReceivedListener(new LineDecoder(LineBreakType.NONE, new LineDecoder.LineReceivedListener() {
             @Override
-            public void onDataReceived(byte data) {
-                textoRecebido.append((char) data);
+            public void onLineReceived(byte[] line, int offset, int length) {
+                textoRecebido.append(new String(line, offset, length, Charset.forName("US-ASCII"))).append('\n');
                 ((TextView) findViewById(R.id.received_text)).setText(textoRecebido.toString());
             }
-        });
+        }));
 
         findViewById(R.id.btnProcurar).setOnClickListener(new View.OnClickListener() {
             @Override
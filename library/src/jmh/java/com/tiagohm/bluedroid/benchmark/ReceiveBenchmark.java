@@ -0,0 +1,149 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid.benchmark;
+
+import com.tiagohm.bluedroid.BlueDroid;
+import com.tiagohm.bluedroid.BlueSession;
+import com.tiagohm.bluedroid.ConnectionDevice;
+import com.tiagohm.bluedroid.ConnectionSecure;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Tempo desde a chegada de um bloco no transporte até ele ser entregue a todos os
+ * {@link BlueDroid.BulkDataReceivedListener}s registrados no {@link BlueDroid}. Uma thread
+ * dedicada faz o papel da thread principal, esvaziando o buffer de recepção a cada aviso do
+ * serviço e repassando os blocos pelo mesmo caminho usado pelo BlueDroid.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReceiveBenchmark {
+
+    @Param({"1", "64", "1024", "16384"})
+    public int chunkSize;
+
+    @Param({"1", "4", "16"})
+    public int listenerCount;
+
+    private ServiceFixture fixture;
+    private OutputStream peerOut;
+    private byte[] chunk;
+    private Receiver receiver;
+    private Thread dispatcher;
+    private volatile boolean isRunning;
+    private volatile long received;
+    private long expected;
+    private int sink;
+
+    /**
+     * Expõe a entrega do BlueDroid ({@code fireOnDataReceived}) sem Context nem BluetoothAdapter.
+     */
+    private final class Receiver extends BlueDroid {
+
+        private final BlueSession mSession;
+        private final BulkDataReceivedListener mDispatcher = new BulkDataReceivedListener() {
+            @Override
+            public void onDataReceived(byte[] buffer, int offset, int length) {
+                fireOnDataReceived(mSession, buffer, offset, length);
+                received += length;
+            }
+        };
+
+        Receiver(BlueSession session) {
+            super(null, ConnectionDevice.ANDROID, ConnectionSecure.SECURE);
+            mSession = session;
+        }
+
+        void drain() {
+            mSession.drainReceived(mDispatcher);
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture = new ServiceFixture();
+        receiver = new Receiver(fixture.service.getPrimarySession());
+        for (int i = 0; i < listenerCount; i++) {
+            receiver.addBulkDataReceivedListener(new BlueDroid.BulkDataReceivedListener() {
+                @Override
+                public void onDataReceived(byte[] buffer, int offset, int length) {
+                    sink += buffer[offset + length - 1];
+                }
+            });
+        }
+
+        peerOut = fixture.peer.getOutputStream();
+        chunk = new byte[chunkSize];
+
+        isRunning = true;
+        dispatcher = new Thread("Dispatcher") {
+            @Override
+            public void run() {
+                while (isRunning) {
+                    LockSupport.park();
+                    receiver.drain();
+                }
+            }
+        };
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+
+        fixture.setOnDataAvailable(new Runnable() {
+            @Override
+            public void run() {
+                LockSupport.unpark(dispatcher);
+            }
+        });
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        isRunning = false;
+        LockSupport.unpark(dispatcher);
+        fixture.close();
+    }
+
+    @Benchmark
+    public int receiveChunk() throws Exception {
+        expected += chunk.length;
+        peerOut.write(chunk, 0, chunk.length);
+        while (received < expected) {
+            //Aguarda a entrega.
+        }
+        return sink;
+    }
+}
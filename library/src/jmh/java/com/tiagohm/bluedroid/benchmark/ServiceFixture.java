@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid.benchmark;
+
+import com.tiagohm.bluedroid.BlueService;
+import com.tiagohm.bluedroid.BlueSession;
+import com.tiagohm.bluedroid.LoopbackTransport;
+import com.tiagohm.bluedroid.StateTransition;
+import com.tiagohm.bluedroid.Transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Um BlueService conectado, via {@link LoopbackTransport}, a uma ponta "crua" cujos streams
+ * são controlados diretamente pelo benchmark.
+ */
+
+final class ServiceFixture implements BlueService.Callback {
+
+    private static final String SERVICE_ADDRESS = "00:00:00:00:00:01";
+    private static final String PEER_ADDRESS = "00:00:00:00:00:02";
+
+    final BlueService service;
+    final Transport.Connection peer;
+
+    private final CountDownLatch mConnected = new CountDownLatch(1);
+    private volatile Runnable mDataAvailable;
+    private Thread mDiscardThread;
+
+    ServiceFixture() throws IOException, InterruptedException {
+        final LoopbackTransport.Network network = new LoopbackTransport.Network();
+        final LoopbackTransport peerTransport = new LoopbackTransport(network, PEER_ADDRESS);
+        final Transport.Acceptor acceptor = peerTransport.listen(false, true);
+
+        service = new BlueService(this, new LoopbackTransport(network, SERVICE_ADDRESS));
+        service.connect(PEER_ADDRESS);
+        peer = acceptor.accept();
+        acceptor.close();
+
+        if (!mConnected.await(5, TimeUnit.SECONDS)) {
+            throw new IOException("Timed out waiting for the service to connect");
+        }
+    }
+
+    /**
+     * Executado na thread de leitura sempre que houver dados para {@link BlueService#drainReceived}.
+     */
+    void setOnDataAvailable(Runnable runnable) {
+        mDataAvailable = runnable;
+    }
+
+    /**
+     * Consome e descarta tudo o que o serviço enviar, para que a escrita nunca bloqueie.
+     */
+    void discardPeerInput() throws IOException {
+        final InputStream in = peer.getInputStream();
+        mDiscardThread = new Thread("PeerDiscard") {
+            @Override
+            public void run() {
+                final byte[] buffer = new byte[64 * 1024];
+                try {
+                    while (in.read(buffer, 0, buffer.length) >= 0) {
+                        //Descarta.
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+        };
+        mDiscardThread.setDaemon(true);
+        mDiscardThread.start();
+    }
+
+    void close() throws IOException {
+        service.stop();
+        peer.close();
+    }
+
+    @Override
+    public void onStateChanged(StateTransition transition) {
+    }
+
+    @Override
+    public void onDeviceConnected(String address) {
+        mConnected.countDown();
+    }
+
+    @Override
+    public void onSessionStateChanged(StateTransition transition) {
+    }
+
+    @Override
+    public void onSessionReconnecting(BlueSession session, int attempt, long delayMillis) {
+    }
+
+    @Override
+    public void onDataAvailable(BlueSession session) {
+        final Runnable runnable = mDataAvailable;
+        if (runnable != null) runnable.run();
+    }
+
+    @Override
+    public void onDataWritten(BlueSession session, int length) {
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Custo dos envios de {@code BlueService}. {@code write(...)} só enfileira (e bloqueia com a fila
+ * cheia); {@code writeAsync(...)} é medido até o {@code BlueFuture} ser concluído, quando os
+ * bytes já entraram no transporte.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteBenchmark {
+
+    @Param({"1", "64", "1024", "16384"})
+    public int chunkSize;
+
+    private ServiceFixture fixture;
+    private byte[] chunk;
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture = new ServiceFixture();
+        fixture.discardPeerInput();
+        chunk = new byte[chunkSize];
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public void writeChunk() {
+        fixture.service.write(chunk, 0, chunk.length);
+    }
+
+    @Benchmark
+    public void writeByte() {
+        fixture.service.write(0x55);
+    }
+
+    @Benchmark
+    public int writeChunkAndWait() throws Exception {
+        return fixture.service.writeAsync(chunk, 0, chunk.length).get();
+    }
+}
@@ -19,26 +19,45 @@ package com.tiagohm.bluedroid;
 import android.app.Activity;
 import android.content.DialogInterface;
 import android.support.annotation.NonNull;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
-import android.util.Log;
+import android.view.Choreographer;
+import android.view.LayoutInflater;
 import android.view.View;
+import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.ProgressBar;
+import android.widget.TextView;
 
 import com.afollestad.materialdialogs.DialogAction;
 import com.afollestad.materialdialogs.MaterialDialog;
 
-import br.tiagohm.easyadapter.EasyAdapter;
-import br.tiagohm.easyadapter.EasyInjector;
-import br.tiagohm.easyadapter.Injector;
+import java.util.ArrayList;
+import java.util.List;
 
-public class BlueDiscoveryDialog extends MaterialDialog.Builder implements BlueDroid.ConnectionListener, BlueDroid.DiscoveryListener {
+/**
+ * Lista os dispositivos conhecidos e encontrados e conecta ao clicar em um deles.
+ * <p>
+ * As mudanças na lista e na conexão são acumuladas e aplicadas uma vez por quadro, somente nas
+ * linhas que mudaram.
+ */
+public class BlueDiscoveryDialog extends MaterialDialog.Builder implements BlueDroid.ConnectionListener,
+        BlueDroid.DiscoveryListener, BlueDroid.DeviceListener {
 
     private final BlueDroid blueDroid;
-    private final EasyAdapter adapter = EasyAdapter.create();
+    private final DeviceAdapter adapter = new DeviceAdapter();
     private final ProgressBar progressoDoEscaneamento;
     private final ImageView botaoPararEscaneamento;
+    private final Choreographer choreographer = Choreographer.getInstance();
+    private boolean isUpdateScheduled;
+    private final Choreographer.FrameCallback updateCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            isUpdateScheduled = false;
+            adapter.update(buildRows());
+        }
+    };
 
     public BlueDiscoveryDialog(@NonNull final Activity context, @NonNull BlueDroid bt) {
         super(context);
@@ -46,6 +65,7 @@ public class BlueDiscoveryDialog extends MaterialDialog.Builder implements BlueD
         blueDroid = bt;
         blueDroid.addConnectionListener(this);
         blueDroid.addDiscoveryListener(this);
+        blueDroid.addDeviceListener(this);
         //Layout do Dialog.
         title(R.string.dialog_bluetooth_discovery_title);
         customView(R.layout.dialog_bluetooth_discovery, true);
@@ -71,6 +91,9 @@ public class BlueDiscoveryDialog extends MaterialDialog.Builder implements BlueD
                 blueDroid.cancelDiscovery();
                 blueDroid.removeDiscoveryListener(BlueDiscoveryDialog.this);
                 blueDroid.removeConnectionListener(BlueDiscoveryDialog.this);
+                blueDroid.removeDeviceListener(BlueDiscoveryDialog.this);
+                choreographer.removeFrameCallback(updateCallback);
+                isUpdateScheduled = false;
                 dialogInterface.dismiss();
             }
         });
@@ -87,39 +110,36 @@ public class BlueDiscoveryDialog extends MaterialDialog.Builder implements BlueD
 
         RecyclerView listaDeDispositivos = customView.findViewById(R.id.listaDeDispositivos);
         listaDeDispositivos.setLayoutManager(new LinearLayoutManager(context));
-        //Caso esteja conectado, exibi-lo.
-        if (bt.getCurrentDevice() != null) {
-            adapter.addData(bt.getCurrentDevice());
-        }
-        //Registrar layout quando estiver vazio.
-        adapter.registerEmpty(R.layout.dialog_bluetooth_discovery_empty, null);
-        //Registrar layout para um dispositivo.
-        adapter.register(Device.class, R.layout.device_item, new EasyInjector<Device>() {
-            @Override
-            public void onInject(final Device device, Injector injector) {
-                injector.text(R.id.bt_device_address, device.getAddress());
-                injector.text(R.id.bt_device_name, device.getName());
-                injector.image(R.id.bt_device_icon, device.getDeviceClassIcon());
-                injector.visibility(R.id.bt_device_disconnect,
-                        device.equals(blueDroid.getCurrentDevice()) ? View.VISIBLE : View.GONE);
-                injector.onClick(0, new View.OnClickListener() {
-                    @Override
-                    public void onClick(View view) {
-                        if (!blueDroid.isConnected()) {
-                            blueDroid.connect(device);
-                        }
-                    }
-                });
-                injector.onClick(R.id.bt_device_disconnect, new View.OnClickListener() {
-                    @Override
-                    public void onClick(View view) {
-                        blueDroid.disconnect();
-                    }
-                });
-            }
-        });
+        //Exibe os dispositivos já conhecidos.
+        adapter.update(buildRows());
+        listaDeDispositivos.setAdapter(adapter);
+    }
+
+    /**
+     * Agenda a atualização da lista para o próximo quadro.
+     */
+    private void scheduleUpdate() {
+        if (isUpdateScheduled) return;
+        isUpdateScheduled = true;
+        choreographer.postFrameCallback(updateCallback);
+    }
+
+    /**
+     * Os dispositivos do BlueDroid e, caso não esteja entre eles, o conectado, no início.
+     */
+    private List<Row> buildRows() {
+        final Device currentDevice = blueDroid.getCurrentDevice();
+        final List<Device> devices = blueDroid.getDevices();
+        final List<Row> rows = new ArrayList<>(devices.size() + 1);
+
+        if (currentDevice != null && !devices.contains(currentDevice)) {
+            rows.add(new Row(currentDevice, true));
+        }
+        for (Device device : devices) {
+            rows.add(new Row(device, device.equals(currentDevice)));
+        }
 
-        adapter.attachTo(listaDeDispositivos);
+        return rows;
     }
 
     @Override
@@ -128,28 +148,22 @@ public class BlueDiscoveryDialog extends MaterialDialog.Builder implements BlueD
 
     @Override
     public void onDeviceConnected() {
-        adapter.notifyDataSetChanged();
+        scheduleUpdate();
     }
 
     @Override
     public void onDeviceDisconnected() {
-        adapter.notifyDataSetChanged();
+        scheduleUpdate();
     }
 
     @Override
     public void onDeviceConnectionFailed() {
-        adapter.notifyDataSetChanged();
+        scheduleUpdate();
     }
 
     @Override
     public void onDiscoveryStarted() {
-        //Remove tudo.
-        adapter.clear();
-        //Caso esteja conectado, exibi-lo.
-        Log.d("TAG", String.format("%s", blueDroid.getCurrentDevice()));
-        if (blueDroid.getCurrentDevice() != null) {
-            adapter.addData(blueDroid.getCurrentDevice());
-        }
+        scheduleUpdate();
         //Exibe a barra de status do progresso.
         progressoDoEscaneamento.setVisibility(View.VISIBLE);
         botaoPararEscaneamento.setVisibility(View.VISIBLE);
@@ -167,10 +181,173 @@ public class BlueDiscoveryDialog extends MaterialDialog.Builder implements BlueD
 
     @Override
     public void onDeviceFound(final Device device) {
-        adapter.addData(device);
+    }
+
+    @Override
+    public void onDeviceAdded(DeviceRegistry.Entry entry) {
+        scheduleUpdate();
+    }
+
+    @Override
+    public void onDeviceUpdated(DeviceRegistry.Entry entry) {
+        scheduleUpdate();
+    }
+
+    @Override
+    public void onDeviceRemoved(DeviceRegistry.Entry entry) {
+        scheduleUpdate();
     }
 
     @Override
     public void onDiscoveryFailed() {
     }
+
+    /**
+     * Uma linha da lista: o que ela exibe.
+     */
+    private static final class Row {
+        final Device device;
+        final boolean isCurrent;
+
+        Row(Device device, boolean current) {
+            this.device = device;
+            this.isCurrent = current;
+        }
+
+        String getAddress() {
+            return device.getAddress();
+        }
+
+        boolean hasSameContent(Row other) {
+            final String name = device.getName();
+            return isCurrent == other.isCurrent && device.getDeviceClass() == other.device.getDeviceClass() &&
+                    (name == null ? other.device.getName() == null : name.equals(other.device.getName()));
+        }
+    }
+
+    private class DeviceAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
+        private static final int TYPE_EMPTY = 0;
+        private static final int TYPE_DEVICE = 1;
+
+        private final List<Row> rows = new ArrayList<>();
+
+        /**
+         * Troca as linhas exibidas por {@code target}, notificando somente as remoções, inserções,
+         * movimentações e alterações calculadas pelo {@link DiffUtil}.
+         */
+        void update(List<Row> target) {
+            final boolean wasEmpty = rows.isEmpty();
+
+            //Mudanças entre a lista vazia e a não vazia trocam o layout inteiro.
+            if (wasEmpty || target.isEmpty()) {
+                rows.clear();
+                rows.addAll(target);
+                if (!wasEmpty || !target.isEmpty()) notifyDataSetChanged();
+                return;
+            }
+
+            final DiffUtil.DiffResult result = DiffUtil.calculateDiff(new RowDiff(rows, target));
+            rows.clear();
+            rows.addAll(target);
+            result.dispatchUpdatesTo(this);
+        }
+
+        @Override
+        public int getItemCount() {
+            return rows.isEmpty() ? 1 : rows.size();
+        }
+
+        @Override
+        public int getItemViewType(int position) {
+            return rows.isEmpty() ? TYPE_EMPTY : TYPE_DEVICE;
+        }
+
+        @Override
+        public RecyclerView.ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            final LayoutInflater inflater = LayoutInflater.from(parent.getContext());
+
+            if (viewType == TYPE_EMPTY) {
+                return new RecyclerView.ViewHolder(inflater.inflate(R.layout.dialog_bluetooth_discovery_empty, parent, false)) {
+                };
+            }
+
+            final DeviceViewHolder holder = new DeviceViewHolder(inflater.inflate(R.layout.device_item, parent, false));
+            holder.itemView.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View view) {
+                    final int position = holder.getAdapterPosition();
+                    if (position != RecyclerView.NO_POSITION && position < rows.size() && !blueDroid.isConnected()) {
+                        blueDroid.connect(rows.get(position).device);
+                    }
+                }
+            });
+            holder.disconnect.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View view) {
+                    blueDroid.disconnect();
+                }
+            });
+            return holder;
+        }
+
+        @Override
+        public void onBindViewHolder(RecyclerView.ViewHolder holder, int position) {
+            if (!(holder instanceof DeviceViewHolder)) return;
+
+            final DeviceViewHolder deviceHolder = (DeviceViewHolder) holder;
+            final Row row = rows.get(position);
+            deviceHolder.address.setText(row.getAddress());
+            deviceHolder.name.setText(row.device.getName());
+            deviceHolder.icon.setImageResource(row.device.getDeviceClassIcon());
+            deviceHolder.disconnect.setVisibility(row.isCurrent ? View.VISIBLE : View.GONE);
+        }
+    }
+
+    /**
+     * Compara as linhas pelo endereço e, para o mesmo dispositivo, pelo que é exibido.
+     */
+    private static final class RowDiff extends DiffUtil.Callback {
+        private final List<Row> oldRows;
+        private final List<Row> newRows;
+
+        RowDiff(List<Row> oldRows, List<Row> newRows) {
+            this.oldRows = oldRows;
+            this.newRows = newRows;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return oldRows.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return newRows.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return oldRows.get(oldItemPosition).getAddress().equals(newRows.get(newItemPosition).getAddress());
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            return oldRows.get(oldItemPosition).hasSameContent(newRows.get(newItemPosition));
+        }
+    }
+
+    private static final class DeviceViewHolder extends RecyclerView.ViewHolder {
+        final TextView address;
+        final TextView name;
+        final ImageView icon;
+        final ImageView disconnect;
+
+        DeviceViewHolder(View itemView) {
+            super(itemView);
+            address = itemView.findViewById(R.id.bt_device_address);
+            name = itemView.findViewById(R.id.bt_device_name);
+            icon = itemView.findViewById(R.id.bt_device_icon);
+            disconnect = itemView.findViewById(R.id.bt_device_disconnect);
+        }
+    }
 }
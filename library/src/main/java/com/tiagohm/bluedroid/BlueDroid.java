@@ -19,6 +19,7 @@ package com.tiagohm.bluedroid;
 import android.Manifest;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothClass;
 import android.bluetooth.BluetoothDevice;
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -26,13 +27,32 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Message;
 import android.support.v4.app.ActivityCompat;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
-
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ponto de entrada da biblioteca: descoberta, conexão, envio e recepção pelo {@link BlueService}.
+ * <p>
+ * Os métodos {@code add...Listener} ignoram um listener que já foi adicionado (comparado por
+ * {@code equals}): ele é chamado uma vez por evento e sai com uma única chamada ao
+ * {@code remove...Listener} correspondente. Nos listeners de dados, a comparação é feita por
+ * {@link Delivery}: o mesmo listener em dois modos de entrega é chamado em cada um.
+ */
 public class BlueDroid {
 
     public interface DiscoveryListener {
@@ -47,10 +67,43 @@ public class BlueDroid {
         void onDiscoveryFailed();
     }
 
+    /**
+     * Mudanças em {@link #getDeviceRegistry()}: cada endereço é adicionado uma única vez,
+     * atualizado quando o nome, o pareamento ou o RSSI mudam, e removido quando deixa de ser
+     * avistado numa descoberta.
+     */
+    public interface DeviceListener {
+        void onDeviceAdded(DeviceRegistry.Entry entry);
+
+        void onDeviceUpdated(DeviceRegistry.Entry entry);
+
+        void onDeviceRemoved(DeviceRegistry.Entry entry);
+    }
+
     public interface DataReceivedListener {
         void onDataReceived(byte data);
     }
 
+    /**
+     * Recebe os dados em blocos, na mesma ordem em que foram lidos do socket.
+     * Somente os bytes entre {@code offset} e {@code offset + length} são válidos.
+     * <p>
+     * O array pertence ao BlueDroid: ele é um buffer circular pré-alocado e é reutilizado
+     * assim que o método retorna. Não guarde a referência nem altere o seu conteúdo; copie
+     * os bytes caso precise deles depois.
+     */
+    public interface BulkDataReceivedListener {
+        void onDataReceived(byte[] buffer, int offset, int length);
+    }
+
+    /**
+     * Recebe, na thread principal, os pacotes decodificados pelo {@link FrameCodec}
+     * configurado em {@link #setFrameCodec(FrameCodec)}. O array pertence a quem o recebe.
+     */
+    public interface FrameReceivedListener {
+        void onFrameReceived(byte[] frame);
+    }
+
     public interface ConnectionListener {
         void onDeviceConnecting();
 
@@ -61,64 +114,252 @@ public class BlueDroid {
         void onDeviceConnectionFailed();
     }
 
+    /**
+     * {@link ConnectionListener} que também é avisado das tentativas de reconexão feitas conforme
+     * o {@link ReconnectPolicy}. Ao perder a conexão, recebe {@link #onDeviceDisconnected()},
+     * {@link #onDeviceConnecting()} e {@link #onDeviceReconnecting(int, long)} a cada tentativa;
+     * depois, {@link #onDeviceConnected()} ou, quando as tentativas acabam,
+     * {@link #onDeviceConnectionFailed()}.
+     */
+    public interface ReconnectListener extends ConnectionListener {
+        void onDeviceReconnecting(int attempt, long delayMillis);
+    }
+
+    /**
+     * Mudanças de estado de todas as sessões.
+     *
+     * @see #setMultiSession(boolean)
+     */
+    public interface SessionListener {
+        void onSessionConnecting(BlueSession session);
+
+        void onSessionConnected(BlueSession session);
+
+        void onSessionDisconnected(BlueSession session);
+
+        void onSessionConnectionFailed(BlueSession session);
+
+        void onSessionReconnecting(BlueSession session, int attempt, long delayMillis);
+    }
+
+    /**
+     * Recebe os dados de todas as sessões, junto com a sessão que os recebeu. O array segue as
+     * mesmas regras de {@link BulkDataReceivedListener}.
+     */
+    public interface SessionDataReceivedListener {
+        void onDataReceived(BlueSession session, byte[] buffer, int offset, int length);
+    }
+
+    /**
+     * Recebe periodicamente, na thread principal, as métricas de cada sessão aberta.
+     *
+     * @see #setStatsInterval(long)
+     */
+    public interface StatsListener {
+        void onStats(BlueSession session, BlueStats.Snapshot stats);
+    }
+
+    /**
+     * Recebe, na thread principal e na ordem em que aconteceram, as transições de estado do
+     * serviço ({@link StateTransition#getSession()} nulo) e de cada sessão.
+     */
+    public interface StateTransitionListener {
+        void onStateTransition(StateTransition transition);
+    }
+
     public static final int REQUEST_COARSE_LOCATION_PERMISSIONS = 0x00BB;
     private static final String TAG = "TAG";
+    private static final int BACKGROUND_BUFFER_SIZE = 16 * 1024;
+    private static final long CACHE_KEEP_ALIVE_SECONDS = 30;
+    private static ThreadPoolExecutor sCacheExecutor;
     private final Context mContext;
     private final ConnectionDevice mConnectionDevice;
     private final ConnectionSecure mConnectionSecure;
-    private final List<Device> mDevices = new ArrayList<>(32);
-    private final List<DiscoveryListener> discoveryListener = new ArrayList<>();
-    private final List<DataReceivedListener> dataReceivedListener = new ArrayList<>();
-    private final List<ConnectionListener> connectionListener = new ArrayList<>();
+    private final DeviceRegistry mDeviceRegistry = new DeviceRegistry();
+    private final ListenerList<DiscoveryListener> discoveryListener = new ListenerList<>(new DiscoveryListener[0]);
+    private final ListenerList<DeviceListener> deviceListener = new ListenerList<>(new DeviceListener[0]);
+    private final ListenerList<DataReceivedListener> dataReceivedListener = new ListenerList<>(new DataReceivedListener[0]);
+    private final ListenerList<BulkDataReceivedListener> bulkDataReceivedListener = new ListenerList<>(new BulkDataReceivedListener[0]);
+    private final ListenerList<ConnectionListener> connectionListener = new ListenerList<>(new ConnectionListener[0]);
+    private final ListenerList<FrameReceivedListener> frameReceivedListener = new ListenerList<>(new FrameReceivedListener[0]);
+    private final ListenerList<SessionListener> sessionListener = new ListenerList<>(new SessionListener[0]);
+    private final ListenerList<StatsListener> statsListener = new ListenerList<>(new StatsListener[0]);
+    private final ListenerList<StateTransitionListener> stateTransitionListener = new ListenerList<>(new StateTransitionListener[0]);
+    private final ListenerList<SessionDataReceivedListener> sessionDataReceivedListener = new ListenerList<>(new SessionDataReceivedListener[0]);
+    //Listeners de dados com Delivery.DIRECT e Delivery.BACKGROUND, chamados fora da thread principal.
+    private final ListenerList<SessionDataReceivedListener> directDataReceivedListener = new ListenerList<>(new SessionDataReceivedListener[0]);
+    private final ListenerList<SessionDataReceivedListener> backgroundDataReceivedListener = new ListenerList<>(new SessionDataReceivedListener[0]);
+    private final ListenerList<FrameReceivedListener> directFrameReceivedListener = new ListenerList<>(new FrameReceivedListener[0]);
+    private final ListenerList<FrameReceivedListener> backgroundFrameReceivedListener = new ListenerList<>(new FrameReceivedListener[0]);
+    private final Map<BlueSession, BackgroundReceiver> mBackgroundReceivers = new WeakHashMap<>();
+    private Executor mBackgroundExecutor;
+    private HandlerThread mBackgroundThread;
     private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            Log.d(TAG, "BlueDroid.mReceiver.onReceive()");
             String action = intent.getAction();
 
             if (BluetoothAdapter.ACTION_DISCOVERY_STARTED.equals(action)) {
                 //mCurrentDevice = null;
-                mDevices.clear();
+                mDiscoveryStartedAt = System.currentTimeMillis();
+                mDiscoveryFoundCount = 0;
+                mDiscoveredDevices.clear();
+                //Os dispositivos conhecidos continuam disponíveis durante a descoberta.
+                if (mDeviceCache != null) addKnownDevices(mDeviceCache.getDevices());
                 fireOnDiscoveryStarted();
             } else if (BluetoothDevice.ACTION_FOUND.equals(action)) {
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                final int deviceClass = device.getBluetoothClass().getDeviceClass();
-                Device newDevice = new Device(device.getName(), device.getAddress(), false, deviceClass);
-                mDevices.add(newDevice);
-                fireOnDeviceFound(newDevice);
+                final int deviceClass = getDeviceClass(device);
+                final int rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, (short) DeviceRegistry.RSSI_UNKNOWN);
+                Device newDevice = new Device(device.getName(), device.getAddress(),
+                        device.getBondState() == BluetoothDevice.BOND_BONDED, deviceClass);
+                //O mesmo dispositivo pode ser anunciado várias vezes na mesma descoberta.
+                final DeviceRegistry.Entry previous = mDeviceRegistry.get(newDevice.getAddress());
+                final boolean isNew = previous == null || previous.getLastSeen() < mDiscoveryStartedAt;
+                final int change = mDeviceRegistry.put(newDevice, rssi, System.currentTimeMillis());
+                final DeviceRegistry.Entry entry = mDeviceRegistry.get(newDevice.getAddress());
+
+                if (change == DeviceRegistry.ADDED) {
+                    fireOnDeviceAdded(entry);
+                } else if (change == DeviceRegistry.UPDATED) {
+                    fireOnDeviceUpdated(entry);
+                }
+
+                if (isNew) {
+                    mDiscoveryFoundCount++;
+                    mDiscoveredDevices.add(entry.getDevice());
+                    if (mDeviceCache != null) mDeviceCache.put(entry.getDevice());
+                    fireOnDeviceFound(entry.getDevice());
+                }
             } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
                 mContext.unregisterReceiver(mReceiver);
+                saveDeviceCache();
+                //Fora de alcance.
+                for (DeviceRegistry.Entry entry : mDeviceRegistry.removeNotSeenSince(mDiscoveryStartedAt)) {
+                    fireOnDeviceRemoved(entry);
+                }
+                completeDiscoveryFutures(new ArrayList<>(mDiscoveredDevices), null);
                 fireOnDiscoveryFinished();
-                if (mDevices.size() == 0) {
+                if (mDiscoveryFoundCount == 0) {
                     fireOnNoDevicesFound();
                 }
             }
         }
     };
+    private FrameCodec mFrameCodec;
+    private int mWriteQueueCapacity = BlueService.DEFAULT_WRITE_QUEUE_CAPACITY;
+    private OverflowPolicy mOverflowPolicy = OverflowPolicy.BLOCK;
+    private int mCoalesceSize;
+    private long mCoalesceDelayMicros;
+    private Executor mExecutor;
+    private int mMaxThreads = BlueService.DEFAULT_MAX_THREADS;
+    private int mIoThreadPriority = Thread.MAX_PRIORITY - 1;
+    private int mControlThreadPriority = Thread.NORM_PRIORITY;
+    private ReconnectPolicy mReconnectPolicy;
+    private boolean isCompression;
+    private long mStatsIntervalMillis;
+    private final Runnable mStatsReporter = new Runnable() {
+        @Override
+        public void run() {
+            if (mStatsIntervalMillis <= 0) return;
+            if (!statsListener.isEmpty()) {
+                for (BlueSession session : getSessions()) fireOnStats(session, session.getStats().snapshot());
+            }
+            mHandler.postDelayed(this, mStatsIntervalMillis);
+        }
+    };
+    private DeviceCache mDeviceCache;
+    private long mDiscoveryStartedAt;
+    private int mDiscoveryFoundCount;
+    private final List<Device> mDiscoveredDevices = new ArrayList<>();
+    private final List<BlueFuture<List<Device>>> mDiscoveryFutures = new ArrayList<>();
     private BluetoothAdapter mBtAdapter;
     private BlueService mBtService;
     private Device mCurrentDevice;
     private boolean isServiceRunning = false;
     private boolean isConnecting = false;
     private boolean isConnected = false;
+    private boolean isMultiSession = false;
+    //Sessão sendo esvaziada pelo mHandler.
+    private BlueSession mDrainingSession;
+    private final BulkDataReceivedListener mReceiveDispatcher = new BulkDataReceivedListener() {
+        @Override
+        public void onDataReceived(byte[] buffer, int offset, int length) {
+            fireOnDataReceived(mDrainingSession, buffer, offset, length);
+        }
+    };
+    //Executado na thread de leitura: entrega os dados aos listeners DIRECT e copia para os BACKGROUND.
+    private final SessionDataReceivedListener mReaderDispatcher = new SessionDataReceivedListener() {
+        @Override
+        public void onDataReceived(BlueSession session, byte[] buffer, int offset, int length) {
+            for (SessionDataReceivedListener listener : directDataReceivedListener.array()) {
+                listener.onDataReceived(session, buffer, offset, length);
+            }
+            if (!backgroundDataReceivedListener.isEmpty()) {
+                getBackgroundReceiver(session).write(buffer, offset, length);
+            }
+        }
+    };
+    //Executado na thread de leitura: copia o pacote para entregá-lo aos listeners.
+    private final FrameCodec.Listener mFrameDispatcher = new FrameCodec.Listener() {
+        @Override
+        public void onFrameDecoded(byte[] frame, int offset, int length) {
+            if (frameReceivedListener.isEmpty() && directFrameReceivedListener.isEmpty() &&
+                    backgroundFrameReceivedListener.isEmpty()) {
+                return;
+            }
+
+            final byte[] copy = new byte[length];
+            System.arraycopy(frame, offset, copy, 0, length);
+            for (FrameReceivedListener listener : directFrameReceivedListener.array()) listener.onFrameReceived(copy);
+            if (!backgroundFrameReceivedListener.isEmpty()) {
+                getBackgroundExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (FrameReceivedListener listener : backgroundFrameReceivedListener.array()) {
+                            listener.onFrameReceived(copy);
+                        }
+                    }
+                });
+            }
+            if (!frameReceivedListener.isEmpty()) {
+                mHandler.obtainMessage(BlueService.MESSAGE_FRAME, copy).sendToTarget();
+            }
+        }
+    };
     private final Handler mHandler = new Handler() {
         public void handleMessage(Message msg) {
-            Log.d(TAG, "BlueDroid.mHandler.handleMessage(" + msg.what + ")");
             switch (msg.what) {
-                case BlueService.MESSAGE_WRITE:
-                    break;
                 case BlueService.MESSAGE_READ:
-                    byte data = (byte) (int) msg.obj;
-                    fireOnDataReceived(data);
+                    mDrainingSession = (BlueSession) msg.obj;
+                    mDrainingSession.drainReceived(mReceiveDispatcher);
+                    mDrainingSession = null;
+                    break;
+                case BlueService.MESSAGE_SESSION_STATE_CHANGE:
+                    onSessionStateChanged((StateTransition) msg.obj);
+                    break;
+                case BlueService.MESSAGE_SESSION_RECONNECTING:
+                    ((BlueSession) msg.obj).fireOnDeviceReconnecting(msg.arg1, msg.arg2);
+                    fireOnSessionReconnecting((BlueSession) msg.obj, msg.arg1, msg.arg2);
+                    fireOnDeviceReconnecting(msg.arg1, msg.arg2);
+                    break;
+                case BlueService.MESSAGE_FRAME:
+                    fireOnFrameReceived((byte[]) msg.obj);
                     break;
                 case BlueService.MESSAGE_DEVICE_NAME:
+                    if (mDeviceCache != null && mCurrentDevice != null) {
+                        mDeviceCache.put(mCurrentDevice);
+                        saveDeviceCache();
+                    }
                     fireOnDeviceConnected();
                     isConnected = true;
                     break;
                 case BlueService.MESSAGE_STATE_CHANGE:
+                    fireOnStateTransition((StateTransition) msg.obj);
                     if (isConnected && msg.arg1 != BlueService.STATE_CONNECTED) {
                         isConnected = false;
-                        mCurrentDevice = null;
+                        //Reconectando ao mesmo dispositivo.
+                        if (msg.arg1 != BlueService.STATE_CONNECTING) mCurrentDevice = null;
                         fireOnDeviceDisconnected();
                     }
                     if (!isConnecting && msg.arg1 == BlueService.STATE_CONNECTING) {
@@ -136,6 +377,39 @@ public class BlueDroid {
         }
     };
 
+    private void onSessionStateChanged(StateTransition transition) {
+        final BlueSession session = transition.getSession();
+        final int previousState = transition.getFrom();
+
+        fireOnStateTransition(transition);
+
+        switch (transition.getTo()) {
+            case BlueService.STATE_CONNECTING:
+                //Perdeu a conexão e vai reconectar.
+                if (previousState == BlueService.STATE_CONNECTED) {
+                    session.fireOnDeviceDisconnected();
+                    fireOnSessionDisconnected(session);
+                }
+                session.fireOnDeviceConnecting();
+                fireOnSessionConnecting(session);
+                break;
+            case BlueService.STATE_CONNECTED:
+                session.fireOnDeviceConnected();
+                fireOnSessionConnected(session);
+                break;
+            case BlueService.STATE_NONE:
+                removeBackgroundReceiver(session);
+                if (previousState == BlueService.STATE_CONNECTED) {
+                    session.fireOnDeviceDisconnected();
+                    fireOnSessionDisconnected(session);
+                } else {
+                    session.fireOnDeviceConnectionFailed();
+                    fireOnSessionConnectionFailed(session);
+                }
+                break;
+        }
+    }
+
     /**
      * Cria uma intância da classe BlueDroid.
      */
@@ -147,17 +421,117 @@ public class BlueDroid {
     }
 
     /**
-     * Obtém a lista de dispositivos Bluetooth encontrados.
+     * Obtém a lista de dispositivos Bluetooth encontrados e, se houver um {@link DeviceCache},
+     * os já conhecidos. Cada endereço aparece uma única vez.
      */
     public List<Device> getDevices() {
-        return mDevices;
+        return mDeviceRegistry.getDevices();
+    }
+
+    /**
+     * Obtém os dispositivos com o RSSI e os momentos e a contagem de avistamentos.
+     */
+    public DeviceRegistry getDeviceRegistry() {
+        return mDeviceRegistry;
+    }
+
+    private void addKnownDevices(List<Device> devices) {
+        for (Device device : devices) {
+            final DeviceRegistry.Entry entry = mDeviceRegistry.add(device);
+            if (entry != null) fireOnDeviceAdded(entry);
+        }
+    }
+
+    /**
+     * Define o cache de dispositivos conhecidos. O cache é carregado em segundo plano e
+     * completado com os dispositivos pareados, que então ficam disponíveis em
+     * {@link #getDevices()} (com {@link DeviceListener#onDeviceAdded(DeviceRegistry.Entry)}):
+     * é possível conectar a eles sem fazer a descoberta.
+     */
+    public void setDeviceCache(final DeviceCache cache) {
+        mDeviceCache = cache;
+        for (DeviceRegistry.Entry entry : mDeviceRegistry.clear()) fireOnDeviceRemoved(entry);
+        if (cache == null) return;
+
+        final List<Device> paired = new ArrayList<>();
+
+        if (isAvailable()) {
+            final Set<BluetoothDevice> bondedDevices = mBtAdapter.getBondedDevices();
+            if (bondedDevices != null) {
+                for (BluetoothDevice device : bondedDevices) {
+                    paired.add(new Device(device.getName(), device.getAddress(), true, getDeviceClass(device)));
+                }
+            }
+        }
+
+        cacheExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                cache.load();
+                cache.putAll(paired);
+                final List<Device> devices = cache.getDevices();
+                saveDeviceCache(cache);
+
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mDeviceCache == cache) addKnownDevices(devices);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Usa o cache padrão, no diretório de arquivos do app.
+     */
+    public void enableDeviceCache() {
+        setDeviceCache(new DeviceCache(new File(mContext.getFilesDir(), DeviceCache.DEFAULT_FILE_NAME)));
+    }
+
+    public DeviceCache getDeviceCache() {
+        return mDeviceCache;
+    }
+
+    //Grava em segundo plano: o arquivo não é acessado na thread principal.
+    private void saveDeviceCache() {
+        final DeviceCache cache = mDeviceCache;
+        if (cache == null) return;
+        cacheExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                saveDeviceCache(cache);
+            }
+        });
+    }
+
+    private static void saveDeviceCache(DeviceCache cache) {
+        try {
+            cache.save();
+        } catch (IOException e) {
+            Log.d(TAG, "BlueDroid.saveDeviceCache(): " + e.getMessage());
+        }
+    }
+
+    //Uma única thread, compartilhada, para que as leituras e gravações fiquem em ordem.
+    private static synchronized Executor cacheExecutor() {
+        if (sCacheExecutor == null) {
+            sCacheExecutor = new ThreadPoolExecutor(1, 1, CACHE_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new BlueThreadFactory("BlueDroid-Cache", Thread.MIN_PRIORITY));
+            sCacheExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sCacheExecutor;
+    }
+
+    private static int getDeviceClass(BluetoothDevice device) {
+        final BluetoothClass bluetoothClass = device.getBluetoothClass();
+        return bluetoothClass != null ? bluetoothClass.getDeviceClass() : BluetoothClass.Device.Major.UNCATEGORIZED;
     }
 
     /**
      * Verifica se o adaptador Bluetooth está disponível.
      */
     public boolean isAvailable() {
-        Log.d(TAG, "BlueDroid.isAvailable()");
         try {
             return mBtAdapter != null;
         } catch (Exception e) {
@@ -177,7 +551,6 @@ public class BlueDroid {
      * Verifica se o serviço está disponível.
      */
     public boolean isServiceAvailable() {
-        Log.d(TAG, "BlueDroid.isServiceAvailable()");
         return mBtService != null;
     }
 
@@ -185,8 +558,6 @@ public class BlueDroid {
      * Verifica se o adaptador Bluetooth está ativado.
      */
     public boolean isEnabled() {
-        Log.d(TAG, "BlueDroid.isEnabled()");
-        Log.d(TAG, mBtAdapter.getAddress());
         return mBtAdapter.getAddress() != null && mBtAdapter.isEnabled();
     }
 
@@ -209,7 +580,6 @@ public class BlueDroid {
      * Verifica se a descoberta de dispositivos está sendo executada.
      */
     public boolean isDiscovering() {
-        Log.d(TAG, "BlueDroid.isDiscovering()");
         return mBtAdapter.isDiscovering();
     }
 
@@ -225,13 +595,22 @@ public class BlueDroid {
      * Obtém o adaptador Bluetooth.
      */
     public BluetoothAdapter getBluetoothAdapter() {
-        Log.d(TAG, "BlueDroid.getBluetoothAdapter()");
         return mBtAdapter;
     }
 
     private void setupService() {
         Log.d(TAG, "BlueDroid.setupService()");
-        mBtService = new BlueService(mHandler);
+        mBtService = new BlueService(mHandler, false);
+        mBtService.setMultiSession(isMultiSession);
+        mBtService.setExecutor(mExecutor);
+        mBtService.setMaxThreads(mMaxThreads);
+        mBtService.setThreadPriorities(mIoThreadPriority, mControlThreadPriority);
+        mBtService.setReconnectPolicy(mReconnectPolicy);
+        mBtService.setCompression(isCompression);
+        mBtService.setWriteQueue(mWriteQueueCapacity, mOverflowPolicy);
+        mBtService.setWriteCoalescing(mCoalesceSize, mCoalesceDelayMicros);
+        if (mFrameCodec != null) mBtService.setFrameCodec(mFrameCodec, mFrameDispatcher);
+        mBtService.setReaderListener(mReaderDispatcher);
     }
 
     private void startService() {
@@ -255,6 +634,7 @@ public class BlueDroid {
             isServiceRunning = false;
             mBtService.stop();
         }
+        stopBackgroundThread();
 
         new Handler().postDelayed(new Runnable() {
             public void run() {
@@ -310,11 +690,163 @@ public class BlueDroid {
         }
     }
 
+    /**
+     * Conecta ao dispositivo como {@link #open(Device)}, concluído com a sessão quando ela
+     * estiver conectada, ou com o erro. Cancelar o resultado, ou o fim do prazo de
+     * {@link BlueFuture#timeout(long)}, fecha a sessão e o socket que estiver sendo conectado:
+     * <pre>
+     * bt.connectAsync(device).timeout(10000).addCallback(...);
+     * </pre>
+     */
+    public BlueFuture<BlueSession> connectAsync(Device device) {
+        Log.d(TAG, "BlueDroid.connectAsync(" + device.getAddress() + ")");
+        if (!isServiceAvailable()) {
+            setupService();
+        }
+
+        startService();
+
+        if (!isMultiSession) mCurrentDevice = device;
+        return mBtService.connectAsync(device.getAddress());
+    }
+
+    /**
+     * Permite conexões simultâneas com vários dispositivos, abertas com {@link #open(Device)}.
+     * Os listeners de dados e de conexão sem sessão passam a receber os eventos de todas as
+     * sessões misturados: prefira {@link SessionListener} e {@link SessionDataReceivedListener},
+     * ou os listeners de cada {@link BlueSession}.
+     */
+    public void setMultiSession(boolean enabled) {
+        isMultiSession = enabled;
+        if (isServiceAvailable()) mBtService.setMultiSession(enabled);
+    }
+
+    public boolean isMultiSession() {
+        return isMultiSession;
+    }
+
+    /**
+     * Abre uma sessão com o dispositivo. Com várias sessões, as outras continuam abertas e, se
+     * já houver uma sessão com o dispositivo, ela é retornada.
+     */
+    public BlueSession open(Device device) {
+        Log.d(TAG, "BlueDroid.open(" + device.getAddress() + ")");
+        if (!isServiceAvailable()) {
+            setupService();
+        }
+
+        startService();
+
+        return mBtService.connect(device.getAddress());
+    }
+
+    /**
+     * Sessões abertas (conectando ou conectadas).
+     */
+    public List<BlueSession> getSessions() {
+        if (!isServiceAvailable()) return new ArrayList<>();
+        return mBtService.getSessions();
+    }
+
+    /**
+     * Métricas da sessão principal, ou {@code null} se não houver uma.
+     */
+    public BlueStats getStats() {
+        if (!isServiceAvailable()) return null;
+        final BlueSession session = mBtService.getPrimarySession();
+        return session != null ? session.getStats() : null;
+    }
+
+    /**
+     * Dados recebidos pela sessão principal, sem passar pela thread principal.
+     *
+     * @throws IOException se não houver uma sessão.
+     * @see BlueSession#getInputStream()
+     */
+    public SessionInputStream getInputStream() throws IOException {
+        final BlueSession session = isServiceAvailable() ? mBtService.getPrimarySession() : null;
+        if (session == null) throw new IOException("Not connected");
+        return session.getInputStream();
+    }
+
+    /**
+     * Dados recebidos pela sessão principal, conforme a demanda dos assinantes.
+     *
+     * @throws IOException se não houver uma sessão.
+     * @see BlueSession#getPublisher()
+     */
+    public SessionPublisher getPublisher() throws IOException {
+        final BlueSession session = isServiceAvailable() ? mBtService.getPrimarySession() : null;
+        if (session == null) throw new IOException("Not connected");
+        return session.getPublisher();
+    }
+
+    /**
+     * Envio bufferizado pela sessão principal.
+     *
+     * @throws IOException se não houver uma sessão.
+     * @see BlueSession#getOutputStream()
+     */
+    public SessionOutputStream getOutputStream() throws IOException {
+        final BlueSession session = isServiceAvailable() ? mBtService.getPrimarySession() : null;
+        if (session == null) throw new IOException("Not connected");
+        return session.getOutputStream();
+    }
+
+    /**
+     * Entrega as métricas de cada sessão aos {@link StatsListener}s a cada {@code millis}
+     * milissegundos. Use 0 (padrão) para desativar.
+     */
+    public void setStatsInterval(long millis) {
+        mStatsIntervalMillis = millis;
+        mHandler.removeCallbacks(mStatsReporter);
+        if (millis > 0) mHandler.postDelayed(mStatsReporter, millis);
+    }
+
+    /**
+     * Sessão aberta com o dispositivo, ou {@code null}.
+     */
+    public BlueSession getSession(Device device) {
+        if (!isServiceAvailable()) return null;
+        return mBtService.getSession(device.getAddress());
+    }
+
+    /**
+     * Reconecta automaticamente ao último dispositivo, com os mesmos parâmetros, quando a conexão
+     * cair ou falhar. Use {@code null} (padrão) para desativar. Vale a partir da próxima conexão.
+     *
+     * @see ReconnectListener
+     */
+    public void setReconnectPolicy(ReconnectPolicy policy) {
+        mReconnectPolicy = policy;
+        if (isServiceAvailable()) mBtService.setReconnectPolicy(policy);
+    }
+
+    public ReconnectPolicy getReconnectPolicy() {
+        return mReconnectPolicy;
+    }
+
+    /**
+     * Comprime os dados das conexões com {@link ConnectionDevice#ANDROID} quando o outro aparelho
+     * também ativou a compressão; senão, a conexão é feita normalmente. Cada lado só comprime o
+     * que envia a partir do Android 4.4; nas versões anteriores, apenas descomprime. Vale a partir
+     * da próxima conexão.
+     *
+     * @see CompressedTransport
+     */
+    public void setCompression(boolean enabled) {
+        isCompression = enabled;
+        if (isServiceAvailable()) mBtService.setCompression(enabled);
+    }
+
+    public boolean isCompression() {
+        return isCompression;
+    }
+
     /**
      * Verifica se está conectado a um dispositivo.
      */
     public boolean isConnected() {
-        Log.d(TAG, "BlueDroid.isConnected()");
         return isConnected && mConnectionDevice != null;
     }
 
@@ -322,7 +854,6 @@ public class BlueDroid {
      * Verifica se está conectando a um dispositivo.
      */
     public boolean isConnecting() {
-        Log.d(TAG, "BlueDroid.isConnecting()");
         return isConnecting;
     }
 
@@ -367,25 +898,14 @@ public class BlueDroid {
     }
 
     /**
-     * Envia dados para um dispositivo Bluetooth.
+     * Envia dados para um dispositivo Bluetooth. Os {@code len} bytes são copiados, já que o envio
+     * é assíncrono e {@code data} pode ser reutilizado em seguida; para enviar sem copiar, use
+     * {@link #sendAsync(byte[], int, int, LineBreakType)}.
      */
     public void send(byte[] data, int off, int len, LineBreakType lbt) {
-        if (lbt.value == LineBreakType.NONE.value) {
-            send(data, off, len);
-        } else {
-            byte[] tmp = new byte[len + 2];
-            System.arraycopy(data, off, tmp, 0, len);
-            tmp[tmp.length - 1] = 0x0D; // CR
-            tmp[tmp.length - 2] = 0x0A; // LF
-            if (lbt.value == LineBreakType.LF.value) {
-                tmp[tmp.length - 1] = 0x0A; // LF
-                send(tmp, 0, len + 1);
-            } else if (lbt.value == LineBreakType.CR.value) {
-                send(tmp, 0, len + 1);
-            } else if (lbt.value == LineBreakType.CRLF.value) {
-                send(tmp);
-            }
-        }
+        byte[] tmp = new byte[len];
+        System.arraycopy(data, off, tmp, 0, len);
+        mBtService.writeAsync(tmp, 0, len, lbt);
     }
 
     /**
@@ -409,12 +929,145 @@ public class BlueDroid {
         mBtService.write(b);
     }
 
+    /**
+     * Envia dados para um dispositivo Bluetooth sem copiá-los e sem bloquear. O array não deve
+     * ser alterado até o {@link BlueFuture} retornado ser concluído com a quantidade de bytes
+     * enviados ou com o erro.
+     */
+    public BlueFuture<Integer> sendAsync(byte[] data, int off, int len) {
+        if (!isServiceAvailable()) return BlueFuture.failed(new IOException("Not connected"));
+        return mBtService.writeAsync(data, off, len);
+    }
+
+    /**
+     * Como {@link #sendAsync(byte[], int, int)}, seguido do separador de linha, sem copiar os
+     * dados para anexá-lo.
+     */
+    public BlueFuture<Integer> sendAsync(byte[] data, int off, int len, LineBreakType lbt) {
+        if (!isServiceAvailable()) return BlueFuture.failed(new IOException("Not connected"));
+        return mBtService.writeAsync(data, off, len, lbt);
+    }
+
+    /**
+     * Envia o conteúdo restante de cada buffer (heap ou direto) como um único envio, sem
+     * copiá-los e sem avançar a sua posição. Os buffers não devem ser alterados até o
+     * {@link BlueFuture} retornado ser concluído.
+     */
+    public BlueFuture<Integer> sendAsync(ByteBuffer... buffers) {
+        return sendAsync(LineBreakType.NONE, buffers);
+    }
+
+    /**
+     * Como {@link #sendAsync(ByteBuffer...)}, seguido do separador de linha.
+     */
+    public BlueFuture<Integer> sendAsync(LineBreakType lbt, ByteBuffer... buffers) {
+        if (!isServiceAvailable()) return BlueFuture.failed(new IOException("Not connected"));
+        return mBtService.writeAsync(lbt, buffers);
+    }
+
+    /**
+     * Configura a fila de saída (capacidade em bytes e política quando cheia) usada a partir da
+     * próxima conexão. O padrão é {@link BlueService#DEFAULT_WRITE_QUEUE_CAPACITY} bytes com
+     * {@link OverflowPolicy#BLOCK}.
+     */
+    public void setWriteQueue(int capacity, OverflowPolicy policy) {
+        mWriteQueueCapacity = capacity;
+        mOverflowPolicy = policy;
+        if (isServiceAvailable()) mBtService.setWriteQueue(capacity, policy);
+    }
+
+    /**
+     * Agrupa os envios pequenos (como {@link #send(int)}) em envios de até {@code size} bytes,
+     * esperando no máximo {@code delayMicros} microssegundos. Use
+     * {@link BlueService#DEFAULT_COALESCE_SIZE} para um quadro RFCOMM, ou zero para desativar.
+     * Vale a partir da próxima conexão.
+     */
+    public void setWriteCoalescing(int size, long delayMicros) {
+        mCoalesceSize = size;
+        mCoalesceDelayMicros = delayMicros;
+        if (isServiceAvailable()) mBtService.setWriteCoalescing(size, delayMicros);
+    }
+
+    /**
+     * Executa a escuta, as conexões, as leituras e as escritas no executor informado, ou no
+     * executor padrão do serviço se {@code null}. Vale a partir do próximo serviço criado.
+     *
+     * @see BlueService#setExecutor(Executor)
+     */
+    public void setExecutor(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Limite de workers do executor padrão.
+     *
+     * @see BlueService#setMaxThreads(int)
+     */
+    public void setMaxThreads(int maxThreads) {
+        mMaxThreads = maxThreads;
+        if (isServiceAvailable()) mBtService.setMaxThreads(maxThreads);
+    }
+
+    /**
+     * Prioridades das tarefas de leitura e escrita e das tarefas de escuta e conexão.
+     *
+     * @see BlueService#setThreadPriorities(int, int)
+     */
+    public void setThreadPriorities(int ioPriority, int controlPriority) {
+        mIoThreadPriority = ioPriority;
+        mControlThreadPriority = controlPriority;
+        if (isServiceAvailable()) mBtService.setThreadPriorities(ioPriority, controlPriority);
+    }
+
+    /**
+     * Envia imediatamente os dados que estão sendo agrupados.
+     */
+    public BlueFuture<Integer> flush() {
+        if (!isServiceAvailable()) return BlueFuture.failed(new IOException("Not connected"));
+        return mBtService.flush();
+    }
+
+    /**
+     * Define o formato dos pacotes binários trocados com o dispositivo, ou {@code null} para
+     * desativar. Os pacotes recebidos são decodificados e validados na thread de leitura e
+     * entregues aos {@link FrameReceivedListener}s. Os dados continuam chegando também aos
+     * listeners de bytes.
+     */
+    public void setFrameCodec(FrameCodec codec) {
+        mFrameCodec = codec;
+        if (isServiceAvailable()) {
+            mBtService.setFrameCodec(codec, codec != null ? mFrameDispatcher : null);
+        }
+    }
+
+    public FrameCodec getFrameCodec() {
+        return mFrameCodec;
+    }
+
+    /**
+     * Envia um pacote, codificado pelo {@link FrameCodec} configurado.
+     */
+    public void sendFrame(byte[] data) {
+        sendFrame(data, 0, data.length);
+    }
+
+    /**
+     * Envia um pacote, codificado pelo {@link FrameCodec} configurado.
+     */
+    public void sendFrame(byte[] data, int off, int len) {
+        if (mFrameCodec == null) {
+            throw new IllegalStateException("No FrameCodec set");
+        }
+        send(mFrameCodec.encode(data, off, len));
+    }
+
     public void checkDiscoveryPermissionRequest(int requestCode, String permissions[], int[] grantResults) {
         switch (requestCode) {
             case REQUEST_COARSE_LOCATION_PERMISSIONS: {
                 if (grantResults.length == 1 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
                     doDiscovery(null);
                 } else {
+                    completeDiscoveryFutures(null, new IOException("Permission denied"));
                     fireOnDiscoveryFailed();
                 }
 
@@ -437,6 +1090,8 @@ public class BlueDroid {
                         new String[]{
                                 android.Manifest.permission.ACCESS_COARSE_LOCATION},
                         REQUEST_COARSE_LOCATION_PERMISSIONS);
+            } else {
+                completeDiscoveryFutures(null, new IOException("Permission denied"));
             }
 
             return;
@@ -451,33 +1106,104 @@ public class BlueDroid {
         mContext.registerReceiver(mReceiver, new IntentFilter(BluetoothAdapter.ACTION_DISCOVERY_STARTED));
         mContext.registerReceiver(mReceiver, new IntentFilter(BluetoothAdapter.ACTION_DISCOVERY_FINISHED));
 
-        startDiscovery();
+        if (!startDiscovery()) {
+            mContext.unregisterReceiver(mReceiver);
+            completeDiscoveryFutures(null, new IOException("Discovery failed"));
+        }
+    }
+
+    /**
+     * Como {@link #doDiscovery(Activity)}, concluído com os dispositivos encontrados quando a
+     * descoberta terminar (os eventos de {@link DiscoveryListener} continuam sendo entregues).
+     * Falha se a permissão for negada. Cancelar o resultado, ou o fim do prazo de
+     * {@link BlueFuture#timeout(long)}, cancela a descoberta, que termina para todos.
+     */
+    public BlueFuture<List<Device>> discoverAsync(Activity activity) {
+        final BlueFuture<List<Device>> future = new BlueFuture<>();
+
+        synchronized (mDiscoveryFutures) {
+            mDiscoveryFutures.add(future);
+        }
+
+        future.addCallback(new BlueFuture.Callback<List<Device>>() {
+            @Override
+            public void onSuccess(List<Device> result) {
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                if (isDiscovering()) cancelDiscovery();
+            }
+        });
+
+        doDiscovery(activity);
+        return future;
+    }
+
+    private void completeDiscoveryFutures(List<Device> devices, Throwable error) {
+        final List<BlueFuture<List<Device>>> futures;
+
+        synchronized (mDiscoveryFutures) {
+            if (mDiscoveryFutures.isEmpty()) return;
+            futures = new ArrayList<>(mDiscoveryFutures);
+            mDiscoveryFutures.clear();
+        }
+
+        for (BlueFuture<List<Device>> future : futures) {
+            if (error == null) {
+                future.complete(devices);
+            } else {
+                future.fail(error);
+            }
+        }
     }
 
     protected void fireOnDiscoveryStarted() {
-        for (DiscoveryListener listener : discoveryListener) listener.onDiscoveryStarted();
+        for (DiscoveryListener listener : discoveryListener.array()) listener.onDiscoveryStarted();
     }
 
     protected void fireOnDiscoveryFinished() {
-        for (DiscoveryListener listener : discoveryListener) listener.onDiscoveryFinished();
+        for (DiscoveryListener listener : discoveryListener.array()) listener.onDiscoveryFinished();
     }
 
     protected void fireOnNoDevicesFound() {
-        for (DiscoveryListener listener : discoveryListener) listener.onNoDevicesFound();
+        for (DiscoveryListener listener : discoveryListener.array()) listener.onNoDevicesFound();
     }
 
     protected void fireOnDeviceFound(Device dev) {
-        for (DiscoveryListener listener : discoveryListener) listener.onDeviceFound(dev);
+        for (DiscoveryListener listener : discoveryListener.array()) listener.onDeviceFound(dev);
     }
 
     protected void fireOnDiscoveryFailed() {
-        for (DiscoveryListener listener : discoveryListener) listener.onDiscoveryFailed();
+        for (DiscoveryListener listener : discoveryListener.array()) listener.onDiscoveryFailed();
+    }
+
+    protected void fireOnDeviceAdded(DeviceRegistry.Entry entry) {
+        for (DeviceListener listener : deviceListener.array()) listener.onDeviceAdded(entry);
+    }
+
+    protected void fireOnDeviceUpdated(DeviceRegistry.Entry entry) {
+        for (DeviceListener listener : deviceListener.array()) listener.onDeviceUpdated(entry);
+    }
+
+    protected void fireOnDeviceRemoved(DeviceRegistry.Entry entry) {
+        for (DeviceListener listener : deviceListener.array()) listener.onDeviceRemoved(entry);
+    }
+
+    public void addDeviceListener(DeviceListener listener) {
+        deviceListener.add(listener);
+    }
+
+    public void removeDeviceListener(DeviceListener listener) {
+        deviceListener.remove(listener);
+    }
+
+    public void clearDeviceListener() {
+        deviceListener.clear();
     }
 
     public void addDiscoveryListener(DiscoveryListener listener) {
-        if (!discoveryListener.contains(listener)) {
-            discoveryListener.add(listener);
-        }
+        discoveryListener.add(listener);
     }
 
     public void removeDiscoveryListener(DiscoveryListener listener) {
@@ -489,45 +1215,161 @@ public class BlueDroid {
     }
 
     protected void fireOnDataReceived(byte data) {
-        for (DataReceivedListener listener : dataReceivedListener) listener.onDataReceived(data);
+        for (DataReceivedListener listener : dataReceivedListener.array()) listener.onDataReceived(data);
+    }
+
+    protected void fireOnDataReceived(BlueSession session, byte[] buffer, int offset, int length) {
+        session.fireOnDataReceived(buffer, offset, length);
+
+        for (SessionDataReceivedListener listener : sessionDataReceivedListener.array()) {
+            listener.onDataReceived(session, buffer, offset, length);
+        }
+
+        fireOnDataReceived(buffer, offset, length);
+    }
+
+    protected void fireOnDataReceived(byte[] buffer, int offset, int length) {
+        for (BulkDataReceivedListener listener : bulkDataReceivedListener.array()) {
+            listener.onDataReceived(buffer, offset, length);
+        }
+
+        //Uma única leitura da lista para o bloco inteiro.
+        final DataReceivedListener[] listeners = dataReceivedListener.array();
+        if (listeners.length == 0) return;
+
+        for (int i = offset; i < offset + length; i++) {
+            for (DataReceivedListener listener : listeners) listener.onDataReceived(buffer[i]);
+        }
     }
 
     public void addDataReceivedListener(DataReceivedListener listener) {
-        if (!dataReceivedListener.contains(listener)) {
+        addDataReceivedListener(listener, Delivery.MAIN);
+    }
+
+    /**
+     * Adiciona o listener, chamado na thread indicada por {@code delivery}.
+     */
+    public void addDataReceivedListener(DataReceivedListener listener, Delivery delivery) {
+        if (delivery == Delivery.MAIN) {
             dataReceivedListener.add(listener);
+        } else {
+            addDataReceivedAdapter(new DataReceivedAdapter(DataReceivedAdapter.BYTE, listener), delivery);
         }
     }
 
     public void removeDataReceivedListener(DataReceivedListener listener) {
         dataReceivedListener.remove(listener);
+        removeDataReceivedAdapter(new DataReceivedAdapter(DataReceivedAdapter.BYTE, listener));
     }
 
     public void clearDataReceivedListener() {
         dataReceivedListener.clear();
+        clearDataReceivedAdapters(DataReceivedAdapter.BYTE);
+    }
+
+    public void addBulkDataReceivedListener(BulkDataReceivedListener listener) {
+        addBulkDataReceivedListener(listener, Delivery.MAIN);
+    }
+
+    /**
+     * Adiciona o listener, chamado na thread indicada por {@code delivery}.
+     */
+    public void addBulkDataReceivedListener(BulkDataReceivedListener listener, Delivery delivery) {
+        if (delivery == Delivery.MAIN) {
+            bulkDataReceivedListener.add(listener);
+        } else {
+            addDataReceivedAdapter(new DataReceivedAdapter(DataReceivedAdapter.BULK, listener), delivery);
+        }
+    }
+
+    public void removeBulkDataReceivedListener(BulkDataReceivedListener listener) {
+        bulkDataReceivedListener.remove(listener);
+        removeDataReceivedAdapter(new DataReceivedAdapter(DataReceivedAdapter.BULK, listener));
+    }
+
+    public void clearBulkDataReceivedListener() {
+        bulkDataReceivedListener.clear();
+        clearDataReceivedAdapters(DataReceivedAdapter.BULK);
+    }
+
+    private void addDataReceivedAdapter(DataReceivedAdapter adapter, Delivery delivery) {
+        final ListenerList<SessionDataReceivedListener> listeners = delivery == Delivery.DIRECT ?
+                directDataReceivedListener : backgroundDataReceivedListener;
+        listeners.add(adapter);
+    }
+
+    private void removeDataReceivedAdapter(DataReceivedAdapter adapter) {
+        directDataReceivedListener.remove(adapter);
+        backgroundDataReceivedListener.remove(adapter);
+    }
+
+    private void clearDataReceivedAdapters(int type) {
+        for (SessionDataReceivedListener listener : directDataReceivedListener.array()) {
+            if (((DataReceivedAdapter) listener).mmType == type) directDataReceivedListener.remove(listener);
+        }
+        for (SessionDataReceivedListener listener : backgroundDataReceivedListener.array()) {
+            if (((DataReceivedAdapter) listener).mmType == type) backgroundDataReceivedListener.remove(listener);
+        }
+    }
+
+    protected void fireOnFrameReceived(byte[] frame) {
+        for (FrameReceivedListener listener : frameReceivedListener.array()) listener.onFrameReceived(frame);
+    }
+
+    public void addFrameReceivedListener(FrameReceivedListener listener) {
+        addFrameReceivedListener(listener, Delivery.MAIN);
+    }
+
+    /**
+     * Adiciona o listener, chamado na thread indicada por {@code delivery}. O pacote é uma cópia
+     * compartilhada por todos os listeners.
+     */
+    public void addFrameReceivedListener(FrameReceivedListener listener, Delivery delivery) {
+        final ListenerList<FrameReceivedListener> listeners = delivery == Delivery.MAIN ? frameReceivedListener :
+                delivery == Delivery.DIRECT ? directFrameReceivedListener : backgroundFrameReceivedListener;
+        listeners.add(listener);
+    }
+
+    public void removeFrameReceivedListener(FrameReceivedListener listener) {
+        frameReceivedListener.remove(listener);
+        directFrameReceivedListener.remove(listener);
+        backgroundFrameReceivedListener.remove(listener);
+    }
+
+    public void clearFrameReceivedListener() {
+        frameReceivedListener.clear();
+        directFrameReceivedListener.clear();
+        backgroundFrameReceivedListener.clear();
     }
 
     protected void fireOnDeviceConnecting() {
-        for (ConnectionListener listener : connectionListener) listener.onDeviceConnecting();
+        for (ConnectionListener listener : connectionListener.array()) listener.onDeviceConnecting();
     }
 
     protected void fireOnDeviceConnected() {
-        for (ConnectionListener listener : connectionListener) listener.onDeviceConnected();
+        for (ConnectionListener listener : connectionListener.array()) listener.onDeviceConnected();
     }
 
     protected void fireOnDeviceDisconnected() {
-        for (ConnectionListener listener : connectionListener) listener.onDeviceDisconnected();
+        for (ConnectionListener listener : connectionListener.array()) listener.onDeviceDisconnected();
     }
 
     protected void fireOnDeviceConnectionFailed() {
-        for (ConnectionListener listener : connectionListener) listener.onDeviceConnectionFailed();
+        for (ConnectionListener listener : connectionListener.array()) listener.onDeviceConnectionFailed();
     }
 
-    public void addConnectionListener(ConnectionListener listener) {
-        if (!connectionListener.contains(listener)) {
-            connectionListener.add(listener);
+    protected void fireOnDeviceReconnecting(int attempt, long delayMillis) {
+        for (ConnectionListener listener : connectionListener.array()) {
+            if (listener instanceof ReconnectListener) {
+                ((ReconnectListener) listener).onDeviceReconnecting(attempt, delayMillis);
+            }
         }
     }
 
+    public void addConnectionListener(ConnectionListener listener) {
+        connectionListener.add(listener);
+    }
+
     public void removeConnectionListener(ConnectionListener listener) {
         connectionListener.remove(listener);
     }
@@ -535,4 +1377,275 @@ public class BlueDroid {
     public void clearConnectionListener() {
         connectionListener.clear();
     }
+
+    protected void fireOnSessionConnecting(BlueSession session) {
+        for (SessionListener listener : sessionListener.array()) listener.onSessionConnecting(session);
+    }
+
+    protected void fireOnSessionConnected(BlueSession session) {
+        for (SessionListener listener : sessionListener.array()) listener.onSessionConnected(session);
+    }
+
+    protected void fireOnSessionDisconnected(BlueSession session) {
+        for (SessionListener listener : sessionListener.array()) listener.onSessionDisconnected(session);
+    }
+
+    protected void fireOnSessionConnectionFailed(BlueSession session) {
+        for (SessionListener listener : sessionListener.array()) listener.onSessionConnectionFailed(session);
+    }
+
+    protected void fireOnSessionReconnecting(BlueSession session, int attempt, long delayMillis) {
+        for (SessionListener listener : sessionListener.array()) listener.onSessionReconnecting(session, attempt, delayMillis);
+    }
+
+    public void addSessionListener(SessionListener listener) {
+        sessionListener.add(listener);
+    }
+
+    public void removeSessionListener(SessionListener listener) {
+        sessionListener.remove(listener);
+    }
+
+    public void clearSessionListener() {
+        sessionListener.clear();
+    }
+
+    public void addSessionDataReceivedListener(SessionDataReceivedListener listener) {
+        addSessionDataReceivedListener(listener, Delivery.MAIN);
+    }
+
+    /**
+     * Adiciona o listener, chamado na thread indicada por {@code delivery}.
+     */
+    public void addSessionDataReceivedListener(SessionDataReceivedListener listener, Delivery delivery) {
+        if (delivery == Delivery.MAIN) {
+            sessionDataReceivedListener.add(listener);
+        } else {
+            addDataReceivedAdapter(new DataReceivedAdapter(DataReceivedAdapter.SESSION, listener), delivery);
+        }
+    }
+
+    public void removeSessionDataReceivedListener(SessionDataReceivedListener listener) {
+        sessionDataReceivedListener.remove(listener);
+        removeDataReceivedAdapter(new DataReceivedAdapter(DataReceivedAdapter.SESSION, listener));
+    }
+
+    public void clearSessionDataReceivedListener() {
+        sessionDataReceivedListener.clear();
+        clearDataReceivedAdapters(DataReceivedAdapter.SESSION);
+    }
+
+    protected void fireOnStats(BlueSession session, BlueStats.Snapshot stats) {
+        for (StatsListener listener : statsListener.array()) listener.onStats(session, stats);
+    }
+
+    public void addStatsListener(StatsListener listener) {
+        statsListener.add(listener);
+    }
+
+    public void removeStatsListener(StatsListener listener) {
+        statsListener.remove(listener);
+    }
+
+    public void clearStatsListener() {
+        statsListener.clear();
+    }
+
+    protected void fireOnStateTransition(StateTransition transition) {
+        for (StateTransitionListener listener : stateTransitionListener.array()) listener.onStateTransition(transition);
+    }
+
+    public void addStateTransitionListener(StateTransitionListener listener) {
+        stateTransitionListener.add(listener);
+    }
+
+    public void removeStateTransitionListener(StateTransitionListener listener) {
+        stateTransitionListener.remove(listener);
+    }
+
+    public void clearStateTransitionListener() {
+        stateTransitionListener.clear();
+    }
+
+    /**
+     * Define onde são chamados os listeners com {@link Delivery#BACKGROUND}. Por padrão é uma
+     * única thread, {@code BlueDroid-Dispatch}, criada no primeiro uso e encerrada por
+     * {@link #stop()}. Use {@code null} para voltar ao padrão.
+     */
+    public synchronized void setBackgroundExecutor(Executor executor) {
+        stopBackgroundThread();
+        mBackgroundExecutor = executor;
+    }
+
+    private synchronized Executor getBackgroundExecutor() {
+        if (mBackgroundExecutor == null) {
+            mBackgroundThread = new HandlerThread("BlueDroid-Dispatch");
+            mBackgroundThread.start();
+            final Handler handler = new Handler(mBackgroundThread.getLooper());
+            mBackgroundExecutor = new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    handler.post(command);
+                }
+            };
+        }
+        return mBackgroundExecutor;
+    }
+
+    private synchronized void stopBackgroundThread() {
+        final BackgroundReceiver[] receivers = mBackgroundReceivers.values().toArray(new BackgroundReceiver[0]);
+        mBackgroundReceivers.clear();
+        //Acorda as threads de leitura bloqueadas nos buffers cheios.
+        for (BackgroundReceiver receiver : receivers) receiver.close();
+
+        if (mBackgroundThread != null) {
+            final HandlerThread thread = mBackgroundThread;
+            //As tarefas já agendadas rodam antes; depois entrega o que sobrou e encerra.
+            mBackgroundExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (BackgroundReceiver receiver : receivers) receiver.drain();
+                    thread.quit();
+                }
+            });
+            mBackgroundThread = null;
+            mBackgroundExecutor = null;
+        }
+    }
+
+    private synchronized BackgroundReceiver getBackgroundReceiver(BlueSession session) {
+        BackgroundReceiver receiver = mBackgroundReceivers.get(session);
+        if (receiver == null) {
+            receiver = new BackgroundReceiver(session, getBackgroundExecutor());
+            mBackgroundReceivers.put(session, receiver);
+        }
+        return receiver;
+    }
+
+    //O que já foi copiado ainda é entregue pela tarefa agendada.
+    private synchronized void removeBackgroundReceiver(BlueSession session) {
+        final BackgroundReceiver receiver = mBackgroundReceivers.remove(session);
+        if (receiver != null) receiver.close();
+    }
+
+    /**
+     * Buffer de uma sessão para os listeners com {@link Delivery#BACKGROUND}: preenchido pela
+     * thread de leitura e esvaziado no executor de segundo plano. Depois de {@link #close()},
+     * os dados novos são descartados.
+     */
+    private final class BackgroundReceiver implements Runnable {
+        private final BlueSession mmSession;
+        private final Executor mmExecutor;
+        private final RingBuffer mmBuffer = new RingBuffer(BACKGROUND_BUFFER_SIZE);
+
+        BackgroundReceiver(BlueSession session, Executor executor) {
+            mmSession = session;
+            mmExecutor = executor;
+        }
+
+        //Thread de leitura. Bloqueia enquanto o buffer estiver cheio, até ele ser fechado.
+        void write(byte[] buffer, int offset, int length) {
+            try {
+                while (length > 0) {
+                    final int writable = mmBuffer.awaitWritable();
+                    if (writable == 0) return;
+                    final int n = Math.min(writable, length);
+                    System.arraycopy(buffer, offset, mmBuffer.array(), mmBuffer.writeOffset(), n);
+                    mmBuffer.commitWrite(n);
+                    offset += n;
+                    length -= n;
+                    if (mmBuffer.signal()) mmExecutor.execute(this);
+                }
+            } catch (InterruptedException e) {
+                //A sessão está sendo encerrada.
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void close() {
+            mmBuffer.close();
+        }
+
+        //Enquanto o sinal estiver marcado, só esta tarefa consome o buffer, mesmo num executor
+        //com várias threads.
+        @Override
+        public void run() {
+            final RingBuffer ring = mmBuffer;
+
+            deliver(ring.capacity());
+
+            //Devolve a thread às outras sessões e continua depois.
+            if (ring.available() > 0) {
+                mmExecutor.execute(this);
+                return;
+            }
+
+            ring.clearSignal();
+            //Dados que chegaram antes de o sinal ser limpo.
+            if (ring.available() > 0 && ring.signal()) mmExecutor.execute(this);
+        }
+
+        /**
+         * Entrega tudo o que sobrou. Só na thread de segundo plano padrão, antes de ela encerrar,
+         * quando as tarefas agendadas depois seriam descartadas.
+         */
+        void drain() {
+            deliver(Integer.MAX_VALUE);
+        }
+
+        private void deliver(int budget) {
+            final RingBuffer ring = mmBuffer;
+            int length;
+
+            while (budget > 0 && (length = Math.min(ring.readableContiguous(), budget)) > 0) {
+                for (SessionDataReceivedListener listener : backgroundDataReceivedListener.array()) {
+                    listener.onDataReceived(mmSession, ring.array(), ring.readOffset(), length);
+                }
+                ring.commitRead(length);
+                budget -= length;
+            }
+        }
+    }
+
+    /**
+     * Adapta os listeners de dados para {@link SessionDataReceivedListener}, para guardá-los
+     * numa única lista por {@link Delivery}. Dois adaptadores são iguais se adaptam o mesmo
+     * listener.
+     */
+    private static final class DataReceivedAdapter implements SessionDataReceivedListener {
+        static final int BYTE = 0;
+        static final int BULK = 1;
+        static final int SESSION = 2;
+
+        private final int mmType;
+        private final Object mmListener;
+
+        DataReceivedAdapter(int type, Object listener) {
+            mmType = type;
+            mmListener = listener;
+        }
+
+        @Override
+        public void onDataReceived(BlueSession session, byte[] buffer, int offset, int length) {
+            if (mmType == SESSION) {
+                ((SessionDataReceivedListener) mmListener).onDataReceived(session, buffer, offset, length);
+            } else if (mmType == BULK) {
+                ((BulkDataReceivedListener) mmListener).onDataReceived(buffer, offset, length);
+            } else {
+                final DataReceivedListener listener = (DataReceivedListener) mmListener;
+                for (int i = offset; i < offset + length; i++) listener.onDataReceived(buffer[i]);
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof DataReceivedAdapter && ((DataReceivedAdapter) o).mmType == mmType &&
+                    ((DataReceivedAdapter) o).mmListener == mmListener;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(mmListener);
+        }
+    }
 }
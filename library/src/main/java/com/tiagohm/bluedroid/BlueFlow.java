@@ -0,0 +1,60 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+/**
+ * Interfaces de fluxo com controle de demanda, com os mesmos métodos e regras de
+ * {@code java.util.concurrent.Flow} e do Reactive Streams (que não estão disponíveis na API 16):
+ * um adaptador para qualquer um deles só repassa as chamadas.
+ * <p>
+ * O {@link Subscriber} recebe {@link Subscriber#onSubscribe(Subscription)} primeiro e depois
+ * no máximo tantos {@link Subscriber#onNext(Object)} quanto pediu por
+ * {@link Subscription#request(long)}, seguidos opcionalmente de um único
+ * {@link Subscriber#onComplete()} ou {@link Subscriber#onError(Throwable)}. Os sinais de uma
+ * assinatura nunca são concorrentes.
+ *
+ * @see SessionPublisher
+ */
+public final class BlueFlow {
+
+    private BlueFlow() {
+    }
+
+    public interface Publisher<T> {
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    public interface Subscriber<T> {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T item);
+
+        void onError(Throwable error);
+
+        void onComplete();
+    }
+
+    public interface Subscription {
+        /**
+         * Pede mais {@code n} itens. {@code n} deve ser positivo; {@link Long#MAX_VALUE}
+         * significa sem limite.
+         */
+        void request(long n);
+
+        void cancel();
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Resultado de uma operação assíncrona.
+ * <p>
+ * Os {@link Callback}s são chamados na thread que concluir a operação (ou imediatamente, na
+ * thread que os registrar, se ela já estiver concluída).
+ * <p>
+ * Quem inicia a operação trata o cancelamento e o fim do prazo de {@link #timeout(long)} como
+ * uma desistência: uma conexão é fechada, uma descoberta é cancelada e um envio ainda na fila
+ * é descartado.
+ */
+public class BlueFuture<T> implements Future<T> {
+
+    public interface Callback<T> {
+        void onSuccess(T result);
+
+        void onFailure(Throwable error);
+    }
+
+    private static final int PENDING = 0;
+    private static final int SUCCEEDED = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELLED = 3;
+
+    private static final long TIMER_KEEP_ALIVE_SECONDS = 30;
+    private static ScheduledThreadPoolExecutor sTimer;
+
+    private int mState = PENDING;
+    private T mResult;
+    private Throwable mError;
+    private List<Callback<? super T>> mCallbacks;
+
+    public static <T> BlueFuture<T> succeeded(T result) {
+        BlueFuture<T> future = new BlueFuture<>();
+        future.complete(result);
+        return future;
+    }
+
+    public static <T> BlueFuture<T> failed(Throwable error) {
+        BlueFuture<T> future = new BlueFuture<>();
+        future.fail(error);
+        return future;
+    }
+
+    /**
+     * Conclui com sucesso. Retorna {@code false} se já estava concluída.
+     */
+    public boolean complete(T result) {
+        synchronized (this) {
+            if (mState != PENDING) return false;
+            mResult = result;
+            mState = SUCCEEDED;
+            notifyAll();
+        }
+        dispatch();
+        return true;
+    }
+
+    /**
+     * Conclui com erro. Retorna {@code false} se já estava concluída.
+     */
+    public boolean fail(Throwable error) {
+        synchronized (this) {
+            if (mState != PENDING) return false;
+            mError = error;
+            mState = FAILED;
+            notifyAll();
+        }
+        dispatch();
+        return true;
+    }
+
+    /**
+     * Falha com {@link TimeoutException} se não for concluída em {@code millis} milissegundos.
+     * Retorna esta instância.
+     */
+    public BlueFuture<T> timeout(final long millis) {
+        if (millis <= 0 || isDone()) return this;
+
+        final ScheduledFuture<?> task = timer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                fail(new TimeoutException("Timed out after " + millis + "ms"));
+            }
+        }, millis, TimeUnit.MILLISECONDS);
+
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                task.cancel(false);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                task.cancel(false);
+            }
+        });
+
+        return this;
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor timer() {
+        if (sTimer == null) {
+            sTimer = new ScheduledThreadPoolExecutor(1, new BlueThreadFactory("BlueDroid-Timer", Thread.NORM_PRIORITY));
+            sTimer.setKeepAliveTime(TIMER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+            sTimer.allowCoreThreadTimeOut(true);
+        }
+        return sTimer;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (mState != PENDING) return false;
+            mError = new CancellationException();
+            mState = CANCELLED;
+            notifyAll();
+        }
+        dispatch();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mState == CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mState != PENDING;
+    }
+
+    public void addCallback(Callback<? super T> callback) {
+        synchronized (this) {
+            if (mState == PENDING) {
+                if (mCallbacks == null) mCallbacks = new ArrayList<>(2);
+                mCallbacks.add(callback);
+                return;
+            }
+        }
+        invokeCallback(callback);
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (mState == PENDING) wait();
+        return result();
+    }
+
+    @Override
+    public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long remaining;
+
+        while (mState == PENDING) {
+            remaining = deadline - System.nanoTime();
+            if (remaining <= 0) throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+
+        return result();
+    }
+
+    private T result() throws ExecutionException {
+        if (mState == SUCCEEDED) return mResult;
+        if (mState == CANCELLED) throw (CancellationException) mError;
+        throw new ExecutionException(mError);
+    }
+
+    private void dispatch() {
+        final List<Callback<? super T>> callbacks;
+
+        synchronized (this) {
+            callbacks = mCallbacks;
+            mCallbacks = null;
+        }
+
+        if (callbacks == null) return;
+
+        for (int i = 0; i < callbacks.size(); i++) {
+            invokeCallback(callbacks.get(i));
+        }
+    }
+
+    private void invokeCallback(Callback<? super T> callback) {
+        final int state;
+        synchronized (this) {
+            state = mState;
+        }
+
+        if (state == SUCCEEDED) {
+            callback.onSuccess(mResult);
+        } else {
+            callback.onFailure(mError);
+        }
+    }
+}
@@ -18,392 +18,746 @@ package com.tiagohm.bluedroid;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.os.Handler;
-import android.os.Message;
 import android.util.Log;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.UUID;
-
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Aceita e abre conexões, cada uma representada por uma {@link BlueSession}.
+ * <p>
+ * Por padrão mantém uma única conexão: conectar ou aceitar uma conexão encerra a anterior, e
+ * os métodos de envio e recepção deste serviço usam essa conexão. Com
+ * {@link #setMultiSession(boolean)}, várias sessões ficam abertas ao mesmo tempo.
+ * <p>
+ * A escuta, as conexões, as leituras e as escritas rodam como tarefas num {@link Executor}. O
+ * padrão reaproveita até {@link #DEFAULT_MAX_THREADS} workers entre as conexões e reconexões.
+ * Como os sockets são bloqueantes, cada sessão conectada ocupa um worker para a leitura, mais
+ * um enquanto estiver enviando; a escuta ocupa outro.
+ */
 public class BlueService {
 
+    /**
+     * Eventos do serviço. São chamados nas threads internas do serviço, exceto quando
+     * indicado o contrário.
+     */
+    public interface Callback {
+        /**
+         * Estado geral do serviço: o maior entre o de escuta e o das sessões abertas.
+         * {@link StateTransition#getSession()} é {@code null}.
+         */
+        void onStateChanged(StateTransition transition);
+
+        void onDeviceConnected(String address);
+
+        /**
+         * Chamado com o monitor do serviço adquirido: não bloqueie.
+         */
+        void onSessionStateChanged(StateTransition transition);
+
+        /**
+         * A sessão vai tentar reconectar daqui a {@code delayMillis} milissegundos. Chamado com
+         * o monitor do serviço adquirido: não bloqueie.
+         */
+        void onSessionReconnecting(BlueSession session, int attempt, long delayMillis);
+
+        /**
+         * Existem dados recebidos pela sessão aguardando {@link BlueSession#drainReceived(BlueDroid.BulkDataReceivedListener)}.
+         * Não é chamado novamente até que o consumidor comece a esvaziar o buffer.
+         */
+        void onDataAvailable(BlueSession session);
+
+        void onDataWritten(BlueSession session, int length);
+    }
+
     public static final int STATE_NONE = 0;
     public static final int STATE_LISTEN = 1;
     public static final int STATE_CONNECTING = 2;
     public static final int STATE_CONNECTED = 3;
+    /**
+     * {@code arg1} é o novo estado, {@code arg2} o anterior e {@code obj} a
+     * {@link StateTransition}. O mesmo vale para {@link #MESSAGE_SESSION_STATE_CHANGE}.
+     */
     public static final int MESSAGE_STATE_CHANGE = 1;
     public static final int MESSAGE_READ = 2;
     public static final int MESSAGE_WRITE = 3;
     public static final int MESSAGE_DEVICE_NAME = 4;
+    public static final int MESSAGE_FRAME = 5;
+    public static final int MESSAGE_SESSION_STATE_CHANGE = 6;
+    public static final int MESSAGE_SESSION_RECONNECTING = 7;
     private static final String TAG = "TAG";
-    private static final String NAME_SECURE = "Bluetooth Secure";
-
-    private static final UUID UUID_ANDROID_DEVICE =
-            UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
-    private static final UUID UUID_OTHER_DEVICE =
-            UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
-
-    private final BluetoothAdapter mAdapter;
-    private final Handler mHandler;
-
-    private AcceptThread mSecureAcceptThread;
-    private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
-    private int mState;
+    public static final int DEFAULT_WRITE_QUEUE_CAPACITY = 64 * 1024;
+    /**
+     * Tamanho típico do quadro RFCOMM negociado pelo Android.
+     */
+    public static final int DEFAULT_COALESCE_SIZE = 990;
+    /**
+     * Limite de workers do executor padrão: a escuta e sete sessões enviando e recebendo.
+     */
+    public static final int DEFAULT_MAX_THREADS = 15;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final Transport mTransport;
+    private final Callback mCallback;
+    private final Map<String, BlueSession> mSessions = new LinkedHashMap<>();
+
+    private Executor mExecutor;
+    private ThreadPoolExecutor mDefaultExecutor;
+    private int mMaxThreads = DEFAULT_MAX_THREADS;
+    private int mIoThreadPriority = Thread.MAX_PRIORITY - 1;
+    private int mControlThreadPriority = Thread.NORM_PRIORITY;
+    private AcceptTask mAcceptTask;
+    private volatile BlueSession mPrimarySession;
+    private final AtomicInteger mState = new AtomicInteger(STATE_NONE);
+    private FrameCodec mFrameCodec;
+    private FrameCodec.Listener mFrameListener;
+    private BlueDroid.SessionDataReceivedListener mReaderListener;
+    private final BlueStats mStats = new BlueStats();
+    private int mWriteQueueCapacity = DEFAULT_WRITE_QUEUE_CAPACITY;
+    private OverflowPolicy mOverflowPolicy = OverflowPolicy.BLOCK;
+    private int mCoalesceSize;
+    private long mCoalesceDelayNanos;
+    private ReconnectPolicy mReconnectPolicy;
+    private CompressedTransport mCompressedTransport;
 
     private boolean isAndroid;
     private boolean isSecure = true;
+    private boolean isMultiSession;
 
     public BlueService(Handler handler) {
-        mAdapter = BluetoothAdapter.getDefaultAdapter();
-        mState = STATE_NONE;
-        mHandler = handler;
+        this(handler, new RfcommTransport(BluetoothAdapter.getDefaultAdapter()));
     }
 
-    public synchronized int getState() {
-        Log.d("TAG", "BlueService.getState()=" + mState);
-        return mState;
+    public BlueService(Handler handler, Transport transport) {
+        this(new HandlerCallback(handler, true), transport);
     }
 
-    private synchronized void setState(int state) {
-        Log.d("TAG", "BlueService.setState(" + state + ")");
-        mState = state;
-        mHandler.obtainMessage(MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
+    /**
+     * Como {@link #BlueService(Handler)}, mas sem {@link #MESSAGE_WRITE} se {@code writeMessages}
+     * for {@code false}, para um handler que não a trata não receber uma mensagem por envio.
+     */
+    BlueService(Handler handler, boolean writeMessages) {
+        this(new HandlerCallback(handler, writeMessages), new RfcommTransport(BluetoothAdapter.getDefaultAdapter()));
     }
 
-    public synchronized void start(boolean android, boolean secure) {
-        Log.d("TAG", "BlueService.start(" + android + ", " + secure + ")");
-        isAndroid = android;
-        isSecure = secure;
+    public BlueService(Callback callback, Transport transport) {
+        mCallback = callback;
+        mTransport = transport;
+    }
 
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
+    public Transport getTransport() {
+        return mTransport;
+    }
 
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
+    /**
+     * Executa as tarefas do serviço no executor informado em vez do padrão. O executor deve ter
+     * workers suficientes para todas as tarefas bloqueantes ao mesmo tempo, ou recusá-las com
+     * {@link RejectedExecutionException} (a conexão correspondente falha). O serviço não o encerra.
+     * Deve ser chamado antes de {@link #start(boolean, boolean)} ou {@link #connect(String)}.
+     */
+    public synchronized void setExecutor(Executor executor) {
+        mExecutor = executor;
+    }
 
-        setState(STATE_LISTEN);
+    /**
+     * Limite de workers do executor padrão. As tarefas além do limite são recusadas e a conexão
+     * correspondente falha.
+     */
+    public synchronized void setMaxThreads(int maxThreads) {
+        mMaxThreads = maxThreads;
+        if (mDefaultExecutor != null) mDefaultExecutor.setMaximumPoolSize(maxThreads);
+    }
 
-        if (mSecureAcceptThread == null) {
-            mSecureAcceptThread = new AcceptThread(isAndroid, isSecure);
-            mSecureAcceptThread.start();
-        }
+    /**
+     * Prioridades (de {@link Thread#MIN_PRIORITY} a {@link Thread#MAX_PRIORITY}) das tarefas de
+     * leitura e escrita e das tarefas de escuta e conexão, aplicadas ao worker enquanto elas rodam.
+     */
+    public synchronized void setThreadPriorities(int ioPriority, int controlPriority) {
+        mIoThreadPriority = ioPriority;
+        mControlThreadPriority = controlPriority;
     }
 
-    public synchronized void connect(BluetoothDevice device) {
-        Log.d("TAG", "BlueService.connect()");
-        if (mState == STATE_CONNECTING) {
-            if (mConnectThread != null) {
-                mConnectThread.cancel();
-                mConnectThread = null;
-            }
-        }
+    synchronized int getIoThreadPriority() {
+        return mIoThreadPriority;
+    }
+
+    synchronized int getControlThreadPriority() {
+        return mControlThreadPriority;
+    }
+
+    /**
+     * O executor informado em {@link #setExecutor(Executor)} ou o padrão, criado na primeira vez.
+     * Os workers do padrão são encerrados depois de {@value #KEEP_ALIVE_SECONDS} segundos ociosos.
+     */
+    synchronized Executor getExecutor() {
+        if (mExecutor != null) return mExecutor;
 
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        if (mDefaultExecutor == null) {
+            mDefaultExecutor = new ThreadPoolExecutor(0, mMaxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new BlueThreadFactory("BlueDroid", Thread.NORM_PRIORITY));
         }
 
-        mConnectThread = new ConnectThread(device);
-        mConnectThread.start();
-        setState(STATE_CONNECTING);
+        return mDefaultExecutor;
     }
 
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice device, final String socketType) {
-        Log.d("TAG", "BlueService.connected()");
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+    void execute(BlueTask task) throws IOException {
+        try {
+            getExecutor().execute(task);
+        } catch (RejectedExecutionException e) {
+            throw new IOException("Thread budget exhausted: " + task.getName(), e);
         }
+    }
 
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
+    /**
+     * Permite várias sessões abertas ao mesmo tempo: {@link #connect(String)} não encerra as
+     * outras, as conexões continuam sendo aceitas depois da primeira e a perda de uma conexão
+     * não reinicia o serviço.
+     */
+    public synchronized void setMultiSession(boolean enabled) {
+        isMultiSession = enabled;
+    }
 
-        if (mSecureAcceptThread != null) {
-            mSecureAcceptThread.cancel();
-            mSecureAcceptThread = null;
-        }
+    public synchronized boolean isMultiSession() {
+        return isMultiSession;
+    }
 
-        mConnectedThread = new ConnectedThread(socket, socketType);
-        mConnectedThread.start();
+    /**
+     * Política de reconexão das próximas sessões abertas por {@link #connect(String)}, ou
+     * {@code null} (padrão) para encerrá-las quando a conexão cair ou falhar. No modo de uma
+     * conexão, o serviço volta a aceitar conexões somente quando as tentativas acabam.
+     */
+    public synchronized void setReconnectPolicy(ReconnectPolicy policy) {
+        mReconnectPolicy = policy;
+    }
 
-        Message msg = mHandler.obtainMessage(MESSAGE_DEVICE_NAME);
-        mHandler.sendMessage(msg);
+    public synchronized ReconnectPolicy getReconnectPolicy() {
+        return mReconnectPolicy;
+    }
 
-        setState(STATE_CONNECTED);
+    /**
+     * Comprime as conexões com {@link ConnectionDevice#ANDROID}, se o outro lado também tiver a
+     * compressão ativa. Vale a partir da próxima conexão e da próxima vez que o serviço começar
+     * a escutar. O transporte deve implementar {@link CompressedTransport.ChannelProvider}.
+     *
+     * @see CompressedTransport
+     */
+    public synchronized void setCompression(boolean enabled) {
+        mCompressedTransport = enabled ? new CompressedTransport(mTransport) : null;
     }
 
-    public synchronized void stop() {
-        Log.d("TAG", "BlueService.stop()");
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
+    public synchronized boolean isCompression() {
+        return mCompressedTransport != null;
+    }
 
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
+    private synchronized Transport activeTransport() {
+        return mCompressedTransport != null ? mCompressedTransport : mTransport;
+    }
 
-        if (mSecureAcceptThread != null) {
-            mSecureAcceptThread.cancel();
-            mSecureAcceptThread.kill();
-            mSecureAcceptThread = null;
-        }
-        setState(STATE_NONE);
+    /**
+     * Sessões abertas (conectando ou conectadas), na ordem em que foram criadas.
+     */
+    public synchronized List<BlueSession> getSessions() {
+        return new ArrayList<>(mSessions.values());
     }
 
-    public void write(int b) {
-        ConnectedThread r;
-        synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
-            r = mConnectedThread;
-        }
-        r.write(b);
+    public synchronized BlueSession getSession(String address) {
+        return mSessions.get(address);
     }
 
-    public void write(byte[] out) {
-        ConnectedThread r;
-        synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
-            r = mConnectedThread;
-        }
-        r.write(out);
+    /**
+     * Sessão usada pelos métodos de envio e recepção deste serviço: a única sessão ou, com
+     * várias sessões, a última que foi conectada. Quando ela é encerrada, a sessão conectada mais
+     * recente entre as que restaram passa a ser a principal. Não bloqueia.
+     */
+    public BlueSession getPrimarySession() {
+        return mPrimarySession;
     }
 
-    public void write(byte[] out, int off, int len) {
-        ConnectedThread r;
-        synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
-            r = mConnectedThread;
-        }
-        r.write(out, off, len);
+    /**
+     * Decodifica os dados recebidos na própria thread de leitura, antes de colocá-los no
+     * buffer de recepção. O listener é chamado nessa thread. Use {@code null} para desativar.
+     * <p>
+     * Vale para a sessão principal e, no modo de uma conexão, para as próximas. Com várias
+     * sessões use {@link BlueSession#setFrameCodec(FrameCodec, FrameCodec.Listener)}, com um
+     * codec por sessão.
+     */
+    public synchronized void setFrameCodec(FrameCodec codec, FrameCodec.Listener listener) {
+        mFrameListener = listener;
+        mFrameCodec = codec;
+        if (mPrimarySession != null) mPrimarySession.setFrameCodec(codec, listener);
     }
 
-    private void connectionFailed() {
-        Log.d("TAG", "BlueService.connectionFailed()");
-        BlueService.this.start(isAndroid, isSecure);
+    /**
+     * Recebe os dados de todas as sessões na thread de leitura de cada uma, antes que sejam
+     * colocados no buffer de recepção: não bloqueie. O array só é válido durante a chamada.
+     * Use {@code null} para desativar.
+     */
+    public synchronized void setReaderListener(BlueDroid.SessionDataReceivedListener listener) {
+        mReaderListener = listener;
+        for (BlueSession session : mSessions.values()) session.setReaderListener(listener);
     }
 
-    private void connectionLost() {
-        Log.d("TAG", "BlueService.connectionLost()");
-        BlueService.this.start(isAndroid, isSecure);
+    /**
+     * Tempo do serviço em cada estado. As demais métricas são de cada sessão:
+     * {@link BlueSession#getStats()}.
+     */
+    public BlueStats getStats() {
+        return mStats;
     }
 
-    private class AcceptThread extends Thread {
-        boolean isRunning = true;
-        private BluetoothServerSocket mmServerSocket;
-        private String mSocketType;
+    /**
+     * Estado geral do serviço. Não bloqueia.
+     */
+    public int getState() {
+        return mState.get();
+    }
 
-        public AcceptThread(boolean isAndroid, boolean secure) {
-            BluetoothServerSocket tmp = null;
+    /**
+     * Recalcula o estado geral a partir da escuta e das sessões. {@code cause} é o motivo da
+     * mudança que levou ao recálculo.
+     */
+    private synchronized void updateState(StateTransition.Cause cause) {
+        int state = mAcceptTask != null ? STATE_LISTEN : STATE_NONE;
+
+        for (BlueSession session : mSessions.values()) {
+            state = Math.max(state, session.getState());
+        }
+
+        final int previousState = mState.getAndSet(state);
+        if (state == previousState) return;
+
+        BlueTrace.serviceState(previousState, state);
+        mStats.onStateChanged(state);
+        mCallback.onStateChanged(new StateTransition(null, previousState, state, cause));
+    }
+
+    /**
+     * Entrega os dados recebidos pela sessão principal.
+     *
+     * @see BlueSession#drainReceived(BlueDroid.BulkDataReceivedListener)
+     */
+    public void drainReceived(BlueDroid.BulkDataReceivedListener listener) {
+        final BlueSession session = getPrimarySession();
+        if (session != null) session.drainReceived(listener);
+    }
+
+    /**
+     * Começa a aceitar conexões. No modo de uma conexão, encerra a sessão atual.
+     */
+    public synchronized void start(boolean android, boolean secure) {
+        Log.d("TAG", "BlueService.start(" + android + ", " + secure + ")");
+        isAndroid = android;
+        isSecure = secure;
+
+        if (!isMultiSession) closeSessions(null);
+
+        if (mAcceptTask == null) {
+            mAcceptTask = new AcceptTask(isAndroid, isSecure);
 
             try {
-                if (secure) {
-                    if (isAndroid)
-                        tmp = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE, UUID_ANDROID_DEVICE);
-                    else
-                        tmp = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE, UUID_OTHER_DEVICE);
-                } else {
-                    if (isAndroid)
-                        tmp = mAdapter.listenUsingInsecureRfcommWithServiceRecord(NAME_SECURE, UUID_ANDROID_DEVICE);
-                    else
-                        tmp = mAdapter.listenUsingInsecureRfcommWithServiceRecord(NAME_SECURE, UUID_OTHER_DEVICE);
-                }
+                mAcceptTask.start();
             } catch (IOException e) {
                 e.printStackTrace();
+                mAcceptTask.close();
+                mAcceptTask = null;
             }
-
-            mmServerSocket = tmp;
         }
 
-        public void run() {
-            Log.d(TAG, "BlueService$AcceptThread.run()");
-            setName("AcceptThread" + mSocketType);
-            BluetoothSocket socket;
+        updateState(StateTransition.Cause.LISTEN);
+    }
 
-            while (mState != STATE_CONNECTED && isRunning) {
-                try {
-                    socket = mmServerSocket.accept();
-                } catch (Exception e) {
-                    break;
-                }
+    public BlueSession connect(BluetoothDevice device) {
+        return connect(device.getAddress());
+    }
 
-                //Se uma conexão foi aceita.
-                if (socket != null) {
-                    synchronized (BlueService.this) {
-                        switch (mState) {
-                            case STATE_LISTEN:
-                            case STATE_CONNECTING:
-                                connected(socket, socket.getRemoteDevice(), mSocketType);
-                                break;
-                            case STATE_NONE:
-                            case STATE_CONNECTED:
-                                try {
-                                    socket.close();
-                                } catch (IOException e) {
-                                    e.printStackTrace();
-                                }
-                                break;
-                        }
-                    }
-                }
-            }
+    /**
+     * Abre uma sessão com o endereço informado. No modo de uma conexão, encerra as outras
+     * sessões. Com várias sessões, retorna a sessão já aberta com o endereço, se houver.
+     */
+    public synchronized BlueSession connect(String address) {
+        Log.d("TAG", "BlueService.connect()");
+        if (isMultiSession) {
+            final BlueSession current = mSessions.get(address);
+            if (current != null) return current;
+        } else {
+            closeSessions(null);
         }
 
-        public void cancel() {
-            Log.d(TAG, "BlueService$AcceptThread.cancel()");
-            try {
-                mmServerSocket.close();
-                mmServerSocket = null;
-            } catch (Exception e) {
-                e.printStackTrace();
+        final BlueSession session = newSession(address);
+        session.connect(activeTransport(), isAndroid, isSecure);
+        return session;
+    }
+
+    /**
+     * Como {@link #connect(String)}, mas concluído com a sessão quando ela estiver conectada, ou
+     * com o erro. Cancelar o resultado, ou o fim do prazo de {@link BlueFuture#timeout(long)},
+     * fecha a sessão e o socket que estiver sendo conectado.
+     */
+    public BlueFuture<BlueSession> connectAsync(String address) {
+        final BlueSession session = connect(address);
+        final BlueFuture<BlueSession> future = session.whenConnected();
+
+        future.addCallback(new BlueFuture.Callback<BlueSession>() {
+            @Override
+            public void onSuccess(BlueSession result) {
             }
-        }
 
-        public void kill() {
-            Log.d(TAG, "BlueService$AcceptThread.kill()");
-            isRunning = false;
-        }
+            @Override
+            public void onFailure(Throwable error) {
+                session.close();
+            }
+        });
+
+        return future;
     }
 
+    private synchronized void accepted(Transport.Connection connection) {
+        Log.d("TAG", "BlueService.accepted()");
+        final BlueSession current = mSessions.remove(connection.getAddress());
+        if (current != null) current.shutdown();
 
-    private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
-        private String mSocketType;
+        newSession(connection.getAddress()).connected(connection);
+    }
 
-        public ConnectThread(BluetoothDevice device) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
+    private BlueSession newSession(String address) {
+        final BlueSession session = new BlueSession(this, mCallback, address,
+                mCoalesceSize, mCoalesceDelayNanos, mReconnectPolicy);
+        if (!isMultiSession && mFrameCodec != null) session.setFrameCodec(mFrameCodec, mFrameListener);
+        session.setReaderListener(mReaderListener);
+        mSessions.put(address, session);
+        return session;
+    }
 
-            try {
-                if (isSecure) {
-                    if (isAndroid) {
-                        tmp = device.createRfcommSocketToServiceRecord(UUID_ANDROID_DEVICE);
-                    } else {
-                        tmp = device.createRfcommSocketToServiceRecord(UUID_OTHER_DEVICE);
-                    }
-                } else {
-                    if (isAndroid) {
-                        tmp = device.createInsecureRfcommSocketToServiceRecord(UUID_ANDROID_DEVICE);
-                    } else {
-                        tmp = device.createInsecureRfcommSocketToServiceRecord(UUID_OTHER_DEVICE);
-                    }
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
+    synchronized WriteQueue newWriteQueue() {
+        return new WriteQueue(mWriteQueueCapacity, mOverflowPolicy);
+    }
+
+    /**
+     * Encerra a sessão, sem reiniciar o serviço.
+     */
+    synchronized void closeSession(BlueSession session) {
+        if (mSessions.get(session.getAddress()) == session) {
+            mSessions.remove(session.getAddress());
+        }
+        session.shutdown();
+        updateState(StateTransition.Cause.CLOSE);
+    }
+
+    /**
+     * Encerra todas as sessões, exceto {@code keep}.
+     */
+    private synchronized void closeSessions(BlueSession keep) {
+        final List<BlueSession> sessions = new ArrayList<>(mSessions.values());
+        mSessions.clear();
+
+        for (BlueSession session : sessions) {
+            if (session == keep) {
+                mSessions.put(session.getAddress(), session);
+            } else {
+                session.shutdown();
             }
-            mmSocket = tmp;
         }
+    }
 
-        public void run() {
-            Log.d(TAG, "BlueService$ConnectThread.run()");
-            mAdapter.cancelDiscovery();
+    /**
+     * Chamado pela sessão, com o monitor do serviço adquirido, a cada mudança de estado.
+     */
+    synchronized void onSessionStateChanged(StateTransition transition) {
+        final BlueSession session = transition.getSession();
+        final int state = transition.getTo();
+        mCallback.onSessionStateChanged(transition);
+
+        if (state == STATE_CONNECTED) {
+            if (!isMultiSession) {
+                closeSessions(session);
+                stopAccepting();
+            }
 
-            try {
-                mmSocket.connect();
-            } catch (IOException e) {
-                try {
-                    mmSocket.close();
-                } catch (IOException e2) {
-                    e2.printStackTrace();
-                }
-                connectionFailed();
+            mPrimarySession = session;
+            mCallback.onDeviceConnected(session.getAddress());
+        } else if (state == STATE_NONE) {
+            if (mPrimarySession == session) mPrimarySession = lastConnectedSession(session);
+
+            //Encerrada pelo serviço: quem a encerrou atualiza o estado.
+            if (mSessions.get(session.getAddress()) != session) return;
+
+            //Falha ou perda da conexão.
+            Log.d("TAG", "BlueService.connectionLost()");
+            mSessions.remove(session.getAddress());
+            if (!isMultiSession) {
+                start(isAndroid, isSecure);
                 return;
             }
+        }
 
-            synchronized (BlueService.this) {
-                mConnectThread = null;
-            }
+        updateState(transition.getCause());
+    }
 
-            connected(mmSocket, mmDevice, mSocketType);
+    /**
+     * A última sessão conectada, sem contar {@code excluded}, ou {@code null}.
+     */
+    private BlueSession lastConnectedSession(BlueSession excluded) {
+        BlueSession last = null;
+        long lastConnectedAt = Long.MIN_VALUE;
+
+        for (BlueSession session : mSessions.values()) {
+            if (session == excluded || !session.isConnected()) continue;
+            final long connectedAt = session.getConnectedAt();
+            if (last == null || connectedAt > lastConnectedAt) {
+                last = session;
+                lastConnectedAt = connectedAt;
+            }
         }
 
-        public void cancel() {
-            Log.d(TAG, "BlueService$ConnectThread.cancel()");
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        return last;
+    }
+
+    private void stopAccepting() {
+        if (mAcceptTask != null) {
+            mAcceptTask.close();
+            mAcceptTask = null;
         }
     }
 
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final InputStream mmInStream;
-        private final OutputStream mmOutStream;
+    public synchronized void stop() {
+        Log.d("TAG", "BlueService.stop()");
+        stopAccepting();
+        closeSessions(null);
+        updateState(StateTransition.Cause.STOP);
+    }
+
+    /**
+     * Configura a fila de saída das próximas conexões (inclusive reconexões): a sua capacidade em bytes e o que fazer
+     * quando ela estiver cheia.
+     */
+    public synchronized void setWriteQueue(int capacity, OverflowPolicy policy) {
+        mWriteQueueCapacity = capacity;
+        mOverflowPolicy = policy;
+    }
+
+    /**
+     * Agrupa envios menores que {@code size} bytes num único envio, feito quando o grupo atinge
+     * {@code size} bytes, quando o envio mais antigo do grupo completa {@code delayMicros}
+     * microssegundos de espera ou quando {@link #flush()} é chamado. Use {@code size} igual a
+     * zero para desativar. Vale a partir da próxima conexão.
+     */
+    public synchronized void setWriteCoalescing(int size, long delayMicros) {
+        mCoalesceSize = Math.max(size, 0);
+        mCoalesceDelayNanos = delayMicros * 1000;
+    }
+
+    /**
+     * Envia imediatamente os dados que estão sendo agrupados. O resultado é concluído quando
+     * tudo o que foi enviado antes desta chamada tiver sido entregue ao socket.
+     */
+    public BlueFuture<Integer> flush() {
+        final BlueSession session = getPrimarySession();
+        if (session == null) return BlueFuture.failed(new IOException("Not connected"));
+        return session.flush();
+    }
+
+    /**
+     * Quantidade de bytes aguardando para serem enviados.
+     */
+    public int getQueuedBytes() {
+        final BlueSession session = getPrimarySession();
+        return session != null ? session.getQueuedBytes() : 0;
+    }
+
+    public void write(int b) {
+        writeAsync(new byte[]{(byte) b}, 0, 1);
+    }
+
+    public void write(byte[] out) {
+        write(out, 0, out.length);
+    }
+
+    /**
+     * Envia uma cópia dos dados pela thread de escrita, sem bloquear (exceto se a fila estiver
+     * cheia e a política for {@link OverflowPolicy#BLOCK}).
+     */
+    public void write(byte[] out, int off, int len) {
+        final byte[] copy = new byte[len];
+        System.arraycopy(out, off, copy, 0, len);
+        writeAsync(copy, 0, len);
+    }
+
+    /**
+     * Envia os dados pela thread de escrita, sem copiá-los: o array não deve ser alterado até o
+     * {@link BlueFuture} ser concluído. O resultado é a quantidade de bytes enviados ou o erro.
+     */
+    public BlueFuture<Integer> writeAsync(byte[] buffer, int offset, int length) {
+        final BlueSession session = getPrimarySession();
+        if (session == null) return BlueFuture.failed(new IOException("Not connected"));
+        return session.writeAsync(buffer, offset, length);
+    }
+
+    /**
+     * Como {@link #writeAsync(byte[], int, int)}, seguido do separador de linha. O separador é
+     * enviado a partir de uma constante: os dados não são copiados para anexá-lo.
+     */
+    public BlueFuture<Integer> writeAsync(byte[] buffer, int offset, int length, LineBreakType lbt) {
+        final BlueSession session = getPrimarySession();
+        if (session == null) return BlueFuture.failed(new IOException("Not connected"));
+        return session.writeAsync(buffer, offset, length, lbt);
+    }
+
+    /**
+     * Envia os bytes entre {@code position} e {@code limit} de cada buffer (heap ou direto), em
+     * ordem e como um único envio, seguidos do separador de linha. Nada é copiado ao enfileirar:
+     * os buffers (conteúdo, posição e limite) não devem ser alterados até o {@link BlueFuture}
+     * ser concluído, e a sua posição não é avançada.
+     */
+    public BlueFuture<Integer> writeAsync(LineBreakType lbt, ByteBuffer... buffers) {
+        final BlueSession session = getPrimarySession();
+        if (session == null) return BlueFuture.failed(new IOException("Not connected"));
+        return session.writeAsync(lbt, buffers);
+    }
+
+    /**
+     * Aceita as conexões da escuta. Se ela tiver mais de um canal
+     * ({@link CompressedTransport.ChannelAcceptor}), cada canal é aceito por uma tarefa.
+     */
+    private class AcceptTask extends BlueTask {
+        volatile boolean isRunning = true;
+        private Transport.Acceptor mmAcceptor;
+        private final Transport.Acceptor mmChannel;
+        private final List<AcceptTask> mmChannelTasks = new ArrayList<>();
 
-        public ConnectedThread(BluetoothSocket socket, String socketType) {
-            mmSocket = socket;
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
+        public AcceptTask(boolean isAndroid, boolean secure) {
+            super("BlueDroid-Accept", mControlThreadPriority);
+            Transport.Acceptor tmp = null;
 
             try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
+                tmp = activeTransport().listen(isAndroid, secure);
             } catch (IOException e) {
                 e.printStackTrace();
             }
 
-            mmInStream = tmpIn;
-            mmOutStream = tmpOut;
+            mmAcceptor = tmp;
+
+            if (tmp instanceof CompressedTransport.ChannelAcceptor) {
+                final Transport.Acceptor[] channels = ((CompressedTransport.ChannelAcceptor) tmp).getChannels();
+                mmChannel = channels[0];
+                for (int i = 1; i < channels.length; i++) {
+                    mmChannelTasks.add(new AcceptTask(channels[i], "BlueDroid-Accept-" + i));
+                }
+            } else {
+                mmChannel = tmp;
+            }
         }
 
-        public void run() {
-            Log.d(TAG, "BlueService$ConnectedThread.run()");
-            while (true) {
+        /**
+         * Tarefa de um dos canais. Quem fecha a escuta é a tarefa principal.
+         */
+        private AcceptTask(Transport.Acceptor channel, String name) {
+            super(name, mControlThreadPriority);
+            mmChannel = channel;
+        }
+
+        void start() throws IOException {
+            BlueService.this.execute(this);
+            for (AcceptTask task : mmChannelTasks) BlueService.this.execute(task);
+        }
+
+        @Override
+        protected void execute() {
+            Log.d(TAG, "BlueService$AcceptTask.execute()");
+            Transport.Connection socket;
+
+            while (isRunning) {
                 try {
-                    int data = mmInStream.read();
-                    mHandler.obtainMessage(MESSAGE_READ, data).sendToTarget();
-                } catch (IOException e) {
-                    connectionLost();
-                    BlueService.this.start(isAndroid, isSecure);
+                    socket = mmChannel.accept();
+                } catch (Exception e) {
                     break;
                 }
+
+                //Se uma conexão foi aceita.
+                if (socket != null) {
+                    synchronized (BlueService.this) {
+                        if (isRunning && (isMultiSession || mState.get() != STATE_CONNECTED)) {
+                            accepted(socket);
+                        } else {
+                            try {
+                                socket.close();
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                            }
+                        }
+                    }
+                }
             }
         }
 
-        public void write(int b) {
+        public void close() {
+            Log.d(TAG, "BlueService$AcceptTask.close()");
+            isRunning = false;
+            cancel();
+            for (AcceptTask task : mmChannelTasks) {
+                task.isRunning = false;
+                task.cancel();
+            }
             try {
-                mmOutStream.write(b);
-                mHandler.obtainMessage(MESSAGE_WRITE, -1, -1, b).sendToTarget();
-            } catch (IOException e) {
+                mmAcceptor.close();
+                mmAcceptor = null;
+            } catch (Exception e) {
                 e.printStackTrace();
             }
         }
+    }
 
-        public void write(byte[] buffer) {
-            write(buffer, 0, buffer.length);
+    /**
+     * Adapta os eventos do serviço para as mensagens {@code MESSAGE_*} de um {@link Handler}.
+     * As mensagens das sessões levam a {@link BlueSession} em {@code obj}.
+     */
+    private static class HandlerCallback implements Callback {
+        private final Handler mmHandler;
+        private final boolean isWriteReported;
+
+        HandlerCallback(Handler handler, boolean writeMessages) {
+            mmHandler = handler;
+            isWriteReported = writeMessages;
         }
 
-        public void write(byte[] buffer, int offset, int length) {
-            try {
-                mmOutStream.write(buffer, offset, length);
-                mHandler.obtainMessage(MESSAGE_WRITE, -1, -1, buffer).sendToTarget();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        @Override
+        public void onStateChanged(StateTransition transition) {
+            mmHandler.obtainMessage(MESSAGE_STATE_CHANGE, transition.getTo(), transition.getFrom(), transition).sendToTarget();
         }
 
-        public void cancel() {
-            Log.d(TAG, "BlueService$ConnectedThread.cancel()");
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        @Override
+        public void onDeviceConnected(String address) {
+            mmHandler.obtainMessage(MESSAGE_DEVICE_NAME, address).sendToTarget();
+        }
+
+        @Override
+        public void onSessionStateChanged(StateTransition transition) {
+            mmHandler.obtainMessage(MESSAGE_SESSION_STATE_CHANGE, transition.getTo(), transition.getFrom(), transition).sendToTarget();
+        }
+
+        @Override
+        public void onSessionReconnecting(BlueSession session, int attempt, long delayMillis) {
+            mmHandler.obtainMessage(MESSAGE_SESSION_RECONNECTING, attempt, (int) delayMillis, session).sendToTarget();
+        }
+
+        @Override
+        public void onDataAvailable(BlueSession session) {
+            mmHandler.obtainMessage(MESSAGE_READ, session).sendToTarget();
+        }
+
+        @Override
+        public void onDataWritten(BlueSession session, int length) {
+            if (isWriteReported) mmHandler.obtainMessage(MESSAGE_WRITE, length, -1, session).sendToTarget();
         }
     }
 }
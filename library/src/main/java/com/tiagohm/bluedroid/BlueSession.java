@@ -0,0 +1,912 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Conexão com um dispositivo remoto, criada pelo {@link BlueService}. Cada sessão tem o seu
+ * estado, as suas threads de leitura e escrita, o seu buffer de recepção, a sua fila de saída e
+ * os seus listeners.
+ * <p>
+ * Com um {@link ReconnectPolicy}, uma sessão aberta por {@link BlueService#connect(String)} que
+ * perde a conexão volta para {@link BlueService#STATE_CONNECTING} e tenta reconectar com o
+ * mesmo transporte e os mesmos parâmetros, mantendo os seus listeners. Ela só é encerrada quando
+ * as tentativas acabam.
+ * <p>
+ * O estado pode ser lido sem bloquear, de qualquer thread. As transições seguem a tabela de
+ * {@link StateTransition} e são feitas por compare-and-set, com o monitor do {@link BlueService}
+ * que criou a sessão adquirido para que os eventos saiam na ordem em que aconteceram.
+ * Os listeners são chamados pelo {@link BlueDroid}, na thread principal.
+ */
+public class BlueSession {
+
+    private static final String TAG = "TAG";
+    private static final int RECEIVE_BUFFER_SIZE = 16 * 1024;
+    private static final int SCRATCH_SIZE = 4 * 1024;
+    /**
+     * Quanto tempo a tarefa de escrita aguarda novos envios antes de liberar o worker.
+     */
+    private static final long WRITER_LINGER_NANOS = 5 * 1000 * 1000;
+
+    private final BlueService mService;
+    private final BlueService.Callback mCallback;
+    private final String mAddress;
+    private final RingBuffer mReceiveBuffer = new RingBuffer(RECEIVE_BUFFER_SIZE);
+    private final int mCoalesceSize;
+    private final long mCoalesceDelayNanos;
+    private final ListenerList<BlueDroid.ConnectionListener> connectionListener = new ListenerList<>(new BlueDroid.ConnectionListener[0]);
+    private final ListenerList<BlueDroid.BulkDataReceivedListener> bulkDataReceivedListener = new ListenerList<>(new BlueDroid.BulkDataReceivedListener[0]);
+
+    private volatile FrameCodec mFrameCodec;
+    private volatile FrameCodec.Listener mFrameListener;
+    private volatile BlueDroid.SessionDataReceivedListener mReaderListener;
+    private volatile SessionInputStream mInputStream;
+    private volatile SessionPublisher mPublisher;
+    private SessionOutputStream mOutputStream;
+    private List<BlueFuture<BlueSession>> mConnectFutures;
+    private final BlueStats mStats = new BlueStats();
+    private final AtomicInteger mState = new AtomicInteger(BlueService.STATE_NONE);
+    private boolean isClosed;
+    private StateTransition.Cause mClosedBy;
+    private volatile WriteQueue mWriteQueue;
+    private ConnectTask mConnectTask;
+    private ConnectedTask mConnectedTask;
+    private long mConnectedAt;
+    private Transport mTransport;
+    private boolean isAndroid;
+    private boolean isSecure;
+    private ReconnectPolicy mReconnectPolicy;
+    private int mReconnectAttempt;
+
+    BlueSession(BlueService service, BlueService.Callback callback, String address,
+                int coalesceSize, long coalesceDelayNanos, ReconnectPolicy reconnectPolicy) {
+        mService = service;
+        mCallback = callback;
+        mAddress = address;
+        mCoalesceSize = coalesceSize;
+        mCoalesceDelayNanos = coalesceDelayNanos;
+        mReconnectPolicy = reconnectPolicy;
+    }
+
+    /**
+     * Endereço do dispositivo remoto.
+     */
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public BlueService getService() {
+        return mService;
+    }
+
+    /**
+     * {@link BlueService#STATE_CONNECTING}, {@link BlueService#STATE_CONNECTED} ou, depois de
+     * encerrada, {@link BlueService#STATE_NONE}. Não bloqueia.
+     */
+    public int getState() {
+        return mState.get();
+    }
+
+    public boolean isConnected() {
+        return getState() == BlueService.STATE_CONNECTED;
+    }
+
+    /**
+     * Tenta reconectar, conforme a política, quando a conexão cair ou falhar. Use {@code null}
+     * para encerrar a sessão nesses casos. Não tem efeito nas sessões de conexões aceitas.
+     */
+    public void setReconnectPolicy(ReconnectPolicy policy) {
+        synchronized (mService) {
+            mReconnectPolicy = policy;
+        }
+    }
+
+    public ReconnectPolicy getReconnectPolicy() {
+        synchronized (mService) {
+            return mReconnectPolicy;
+        }
+    }
+
+    /**
+     * Tentativa de reconexão em andamento (a partir de 1), ou zero se estiver conectada ou
+     * conectando pela primeira vez.
+     */
+    public int getReconnectAttempt() {
+        synchronized (mService) {
+            return mReconnectAttempt;
+        }
+    }
+
+    /**
+     * Métricas da sessão, mantidas entre as reconexões.
+     */
+    public BlueStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Concluído quando a sessão estiver conectada (imediatamente, se já estiver), ou com
+     * {@link IOException} se ela for encerrada antes. Os callbacks são chamados num worker do
+     * executor do serviço. Cancelar o resultado não fecha a sessão.
+     *
+     * @see BlueService#connectAsync(String)
+     */
+    public BlueFuture<BlueSession> whenConnected() {
+        synchronized (mService) {
+            if (mState.get() == BlueService.STATE_CONNECTED) return BlueFuture.succeeded(this);
+            if (isClosed) return BlueFuture.failed(closedBy(mClosedBy));
+
+            final BlueFuture<BlueSession> future = new BlueFuture<>();
+            if (mConnectFutures == null) mConnectFutures = new ArrayList<>(2);
+            mConnectFutures.add(future);
+            return future;
+        }
+    }
+
+    /**
+     * Conclui os resultados de {@link #whenConnected()} fora do monitor do serviço.
+     */
+    private void completeConnectFutures(final IOException error) {
+        if (mConnectFutures == null) return;
+        final List<BlueFuture<BlueSession>> futures = mConnectFutures;
+        mConnectFutures = null;
+
+        final Runnable complete = new Runnable() {
+            @Override
+            public void run() {
+                for (BlueFuture<BlueSession> future : futures) {
+                    if (error == null) {
+                        future.complete(BlueSession.this);
+                    } else {
+                        future.fail(error);
+                    }
+                }
+            }
+        };
+
+        try {
+            mService.getExecutor().execute(complete);
+        } catch (RejectedExecutionException e) {
+            complete.run();
+        }
+    }
+
+    /**
+     * Os dados recebidos a partir de agora, lidos diretamente da thread de leitura. Retorna o
+     * mesmo stream até que ele seja fechado.
+     */
+    public SessionInputStream getInputStream() {
+        synchronized (mService) {
+            if (mInputStream == null) {
+                final SessionInputStream in = new SessionInputStream(this, SessionInputStream.DEFAULT_BUFFER_SIZE);
+                if (isClosed) in.finish();
+                mInputStream = in;
+            }
+            return mInputStream;
+        }
+    }
+
+    void detachInputStream(SessionInputStream in) {
+        synchronized (mService) {
+            if (mInputStream == in) mInputStream = null;
+        }
+    }
+
+    /**
+     * Os dados recebidos, entregues conforme a demanda dos assinantes. Sem demanda, a leitura do
+     * socket é suspensa.
+     */
+    public SessionPublisher getPublisher() {
+        synchronized (mService) {
+            if (mPublisher == null) {
+                mPublisher = new SessionPublisher(this);
+                if (isClosed) mPublisher.finish(mClosedBy == StateTransition.Cause.CLOSE ? null : closedBy(mClosedBy));
+            }
+            return mPublisher;
+        }
+    }
+
+    /**
+     * Envio bufferizado por esta sessão. Retorna o mesmo stream até que ele seja fechado.
+     */
+    public SessionOutputStream getOutputStream() {
+        synchronized (mService) {
+            if (mOutputStream == null) {
+                mOutputStream = new SessionOutputStream(this, SessionOutputStream.DEFAULT_BUFFER_SIZE);
+            }
+            return mOutputStream;
+        }
+    }
+
+    void detachOutputStream(SessionOutputStream out) {
+        synchronized (mService) {
+            if (mOutputStream == out) mOutputStream = null;
+        }
+    }
+
+    /**
+     * Encerra a conexão. A sessão não pode ser reaproveitada.
+     */
+    public void close() {
+        mService.closeSession(this);
+    }
+
+    /**
+     * Decodifica os dados recebidos por esta sessão na sua thread de leitura. O listener é
+     * chamado nessa thread. O codec é reiniciado pela thread de leitura antes de decodificar os
+     * primeiros dados. Use {@code null} para desativar.
+     */
+    public void setFrameCodec(FrameCodec codec, FrameCodec.Listener listener) {
+        synchronized (mService) {
+            mFrameListener = listener;
+            mFrameCodec = codec;
+        }
+    }
+
+    /**
+     * Entrega os dados lidos na própria thread de leitura, antes de colocá-los no buffer de
+     * recepção. O array é o próprio buffer: só é válido durante a chamada.
+     */
+    void setReaderListener(BlueDroid.SessionDataReceivedListener listener) {
+        mReaderListener = listener;
+    }
+
+    /**
+     * Entrega todos os dados recebidos pendentes ao listener, em blocos contíguos.
+     * Deve ser chamado por uma única thread, após {@link BlueService.Callback#onDataAvailable(BlueSession)}.
+     * O array passado ao listener pertence à sessão e é reutilizado após o retorno.
+     */
+    public void drainReceived(BlueDroid.BulkDataReceivedListener listener) {
+        final RingBuffer ring = mReceiveBuffer;
+        ring.clearSignal();
+
+        int budget = ring.capacity();
+        int length;
+
+        while (budget > 0 && (length = Math.min(ring.readableContiguous(), budget)) > 0) {
+            listener.onDataReceived(ring.array(), ring.readOffset(), length);
+            ring.commitRead(length);
+            budget -= length;
+        }
+
+        //Devolve o controle ao consumidor e continua depois.
+        if (ring.available() > 0 && ring.signal()) {
+            mCallback.onDataAvailable(this);
+        }
+    }
+
+    /**
+     * Envia imediatamente os dados que estão sendo agrupados. O resultado é concluído quando
+     * tudo o que foi enviado antes desta chamada tiver sido entregue ao socket.
+     */
+    public BlueFuture<Integer> flush() {
+        final WriteQueue queue = getWriteQueue();
+        if (queue == null) return BlueFuture.failed(new IOException("Not connected"));
+        return queue.flush();
+    }
+
+    /**
+     * Quantidade de bytes aguardando para serem enviados.
+     */
+    public int getQueuedBytes() {
+        final WriteQueue queue = getWriteQueue();
+        return queue != null ? queue.getQueuedBytes() : 0;
+    }
+
+    /**
+     * Fila da conexão atual, ou {@code null} se não estiver conectada. Não bloqueia: a fila é
+     * publicada antes da transição para {@link BlueService#STATE_CONNECTED}.
+     */
+    private WriteQueue getWriteQueue() {
+        if (mState.get() != BlueService.STATE_CONNECTED) return null;
+        return mWriteQueue;
+    }
+
+    public void write(int b) {
+        writeAsync(new byte[]{(byte) b}, 0, 1);
+    }
+
+    public void write(byte[] out) {
+        write(out, 0, out.length);
+    }
+
+    /**
+     * Envia uma cópia dos dados pela thread de escrita.
+     */
+    public void write(byte[] out, int off, int len) {
+        final byte[] copy = new byte[len];
+        System.arraycopy(out, off, copy, 0, len);
+        writeAsync(copy, 0, len);
+    }
+
+    /**
+     * @see BlueService#writeAsync(byte[], int, int)
+     */
+    public BlueFuture<Integer> writeAsync(byte[] buffer, int offset, int length) {
+        return enqueue(new WriteQueue.Request(buffer, offset, length, null));
+    }
+
+    /**
+     * @see BlueService#writeAsync(byte[], int, int, LineBreakType)
+     */
+    public BlueFuture<Integer> writeAsync(byte[] buffer, int offset, int length, LineBreakType lbt) {
+        return enqueue(new WriteQueue.Request(buffer, offset, length, lbt.bytes()));
+    }
+
+    /**
+     * @see BlueService#writeAsync(LineBreakType, ByteBuffer...)
+     */
+    public BlueFuture<Integer> writeAsync(LineBreakType lbt, ByteBuffer... buffers) {
+        return enqueue(new WriteQueue.Request(buffers, lbt.bytes()));
+    }
+
+    private BlueFuture<Integer> enqueue(WriteQueue.Request request) {
+        final WriteQueue queue = getWriteQueue();
+        if (queue == null) return BlueFuture.failed(new IOException("Not connected"));
+        return queue.offer(request);
+    }
+
+    /**
+     * Abre a conexão num worker do executor do serviço.
+     */
+    void connect(Transport transport, boolean android, boolean secure) {
+        synchronized (mService) {
+            mTransport = transport;
+            isAndroid = android;
+            isSecure = secure;
+            transition(BlueService.STATE_CONNECTING, StateTransition.Cause.CONNECT);
+            startConnect(0);
+        }
+    }
+
+    private void startConnect(long delayMillis) {
+        mConnectTask = new ConnectTask(delayMillis);
+
+        try {
+            mService.execute(mConnectTask);
+        } catch (IOException e) {
+            e.printStackTrace();
+            shutdown(StateTransition.Cause.CONNECT_FAILED);
+        }
+    }
+
+    private boolean canReconnect() {
+        final ReconnectPolicy policy = mReconnectPolicy;
+        return !isClosed && mTransport != null && policy != null && policy.canRetry(mReconnectAttempt + 1);
+    }
+
+    /**
+     * Avança para a próxima tentativa de reconexão e retorna o intervalo até ela.
+     */
+    private long nextReconnectAttempt() {
+        mReconnectAttempt++;
+        mStats.onReconnect();
+        final long delay = mReconnectPolicy.getDelayMillis(mReconnectAttempt);
+        BlueTrace.reconnect(mAddress, mReconnectAttempt, delay);
+        Log.d(TAG, "BlueSession.reconnect(" + mAddress + ", " + mReconnectAttempt + ", " + delay + "ms)");
+        mCallback.onSessionReconnecting(this, mReconnectAttempt, delay);
+        return delay;
+    }
+
+    /**
+     * Chamado pela tarefa de leitura quando a conexão cai.
+     */
+    private void connectionLost() {
+        synchronized (mService) {
+            Log.d(TAG, "BlueSession.connectionLost(" + mAddress + ")");
+            if (isClosed) return;
+            mStats.onConnectionLost();
+
+            if (!canReconnect()) {
+                shutdown(StateTransition.Cause.CONNECTION_LOST);
+                return;
+            }
+
+            releaseConnection(new IOException("Connection lost"));
+            transition(BlueService.STATE_CONNECTING, StateTransition.Cause.CONNECTION_LOST);
+            startConnect(nextReconnectAttempt());
+        }
+    }
+
+    /**
+     * Passa a usar uma conexão já estabelecida.
+     */
+    void connected(Transport.Connection connection) {
+        synchronized (mService) {
+            final ConnectedTask task = startConnected(connection);
+            if (task == null) return;
+
+            try {
+                mService.execute(task);
+            } catch (IOException e) {
+                e.printStackTrace();
+                shutdown(StateTransition.Cause.CONNECTION_LOST);
+            }
+        }
+    }
+
+    /**
+     * Prepara a leitura da conexão e retorna a tarefa que deve executá-la, ou {@code null} se a
+     * sessão foi encerrada.
+     */
+    private ConnectedTask startConnected(Transport.Connection connection) {
+        synchronized (mService) {
+            Log.d(TAG, "BlueSession.connected(" + mAddress + ")");
+            mConnectTask = null;
+
+            //Encerrada enquanto conectava.
+            if (isClosed) {
+                closeQuietly(connection);
+                return null;
+            }
+
+            mReconnectAttempt = 0;
+            mWriteQueue = mService.newWriteQueue();
+            mConnectedTask = new ConnectedTask(connection);
+            mStats.setWriteQueue(mWriteQueue);
+            mStats.onConnected();
+            mConnectedAt = System.nanoTime();
+
+            mWriteQueue.bind(mService.getExecutor(), mConnectedTask.mmWriter);
+            transition(BlueService.STATE_CONNECTED, mState.get() == BlueService.STATE_NONE ?
+                    StateTransition.Cause.ACCEPT : StateTransition.Cause.CONNECTED);
+            return mConnectedTask;
+        }
+    }
+
+    /**
+     * Momento, em {@link System#nanoTime()}, da última conexão. Lido com o monitor do serviço.
+     */
+    long getConnectedAt() {
+        return mConnectedAt;
+    }
+
+    /**
+     * Libera a conexão e os workers. O {@link BlueService} é avisado pela mudança de estado.
+     */
+    void shutdown() {
+        shutdown(StateTransition.Cause.CLOSE);
+    }
+
+    private void shutdown(StateTransition.Cause cause) {
+        synchronized (mService) {
+            Log.d(TAG, "BlueSession.shutdown(" + mAddress + ")");
+            if (!isClosed) mClosedBy = cause;
+            isClosed = true;
+            if (mInputStream != null) mInputStream.finish();
+            if (mPublisher != null) {
+                mPublisher.finish(cause == StateTransition.Cause.CLOSE ? null : closedBy(cause));
+            }
+            if (mState.get() == BlueService.STATE_NONE) return;
+
+            if (mConnectTask != null) {
+                mConnectTask.close();
+                mConnectTask = null;
+            }
+
+            releaseConnection(new IOException("Connection closed"));
+            transition(BlueService.STATE_NONE, cause);
+        }
+    }
+
+    private void releaseConnection(IOException cause) {
+        if (mConnectedTask != null) {
+            mConnectedTask.close();
+            mConnectedTask = null;
+        }
+
+        if (mWriteQueue != null) mWriteQueue.close(cause);
+    }
+
+    /**
+     * Passa para {@code state} se a tabela de {@link StateTransition} permitir. Retorna
+     * {@code false}, sem avisar ninguém, se a transição não for válida a partir do estado atual.
+     * <p>
+     * Chamado com o monitor do serviço adquirido, junto com a troca das tarefas e dos buffers da
+     * conexão: é isso que mantém os eventos na ordem em que aconteceram. O compare-and-set só
+     * garante que quem lê o estado sem o monitor nunca veja uma transição fora da tabela.
+     */
+    private boolean transition(int state, StateTransition.Cause cause) {
+        int previousState;
+
+        do {
+            previousState = mState.get();
+            if (!StateTransition.isAllowed(previousState, state)) {
+                Log.d(TAG, "BlueSession.transition(" + mAddress + ", " + previousState + " -> " + state + ", " + cause + ")");
+                return false;
+            }
+        } while (!mState.compareAndSet(previousState, state));
+
+        mStats.onStateChanged(state);
+        BlueTrace.sessionState(mAddress, previousState, state);
+        if (state == BlueService.STATE_CONNECTED) {
+            completeConnectFutures(null);
+        } else if (state == BlueService.STATE_NONE) {
+            completeConnectFutures(closedBy(cause));
+        }
+        mService.onSessionStateChanged(new StateTransition(this, previousState, state, cause));
+        return true;
+    }
+
+    /**
+     * O erro que descreve o encerramento da sessão.
+     */
+    private static IOException closedBy(StateTransition.Cause cause) {
+        if (cause == StateTransition.Cause.CLOSE) return new IOException("Session closed");
+        if (cause == StateTransition.Cause.CONNECT_FAILED) return new IOException("Connection failed");
+        return new IOException("Connection lost");
+    }
+
+    private static void closeQuietly(Transport.Connection connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    protected void fireOnDeviceConnecting() {
+        for (BlueDroid.ConnectionListener listener : connectionListener.array()) listener.onDeviceConnecting();
+    }
+
+    protected void fireOnDeviceConnected() {
+        for (BlueDroid.ConnectionListener listener : connectionListener.array()) listener.onDeviceConnected();
+    }
+
+    protected void fireOnDeviceDisconnected() {
+        for (BlueDroid.ConnectionListener listener : connectionListener.array()) listener.onDeviceDisconnected();
+    }
+
+    protected void fireOnDeviceConnectionFailed() {
+        for (BlueDroid.ConnectionListener listener : connectionListener.array()) listener.onDeviceConnectionFailed();
+    }
+
+    protected void fireOnDeviceReconnecting(int attempt, long delayMillis) {
+        for (BlueDroid.ConnectionListener listener : connectionListener.array()) {
+            if (listener instanceof BlueDroid.ReconnectListener) {
+                ((BlueDroid.ReconnectListener) listener).onDeviceReconnecting(attempt, delayMillis);
+            }
+        }
+    }
+
+    public void addConnectionListener(BlueDroid.ConnectionListener listener) {
+        connectionListener.add(listener);
+    }
+
+    public void removeConnectionListener(BlueDroid.ConnectionListener listener) {
+        connectionListener.remove(listener);
+    }
+
+    public void clearConnectionListener() {
+        connectionListener.clear();
+    }
+
+    protected void fireOnDataReceived(byte[] buffer, int offset, int length) {
+        for (BlueDroid.BulkDataReceivedListener listener : bulkDataReceivedListener.array()) {
+            listener.onDataReceived(buffer, offset, length);
+        }
+    }
+
+    public void addBulkDataReceivedListener(BlueDroid.BulkDataReceivedListener listener) {
+        bulkDataReceivedListener.add(listener);
+    }
+
+    public void removeBulkDataReceivedListener(BlueDroid.BulkDataReceivedListener listener) {
+        bulkDataReceivedListener.remove(listener);
+    }
+
+    public void clearBulkDataReceivedListener() {
+        bulkDataReceivedListener.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "BlueSession{" + mAddress + ", state=" + mState.get() + "}";
+    }
+
+    /**
+     * Abre a conexão e, se configurado, tenta de novo conforme o {@link ReconnectPolicy}.
+     * Depois de conectar, continua no mesmo worker como tarefa de leitura.
+     */
+    private class ConnectTask extends BlueTask {
+        private long mmDelayMillis;
+        private Transport.Connection mmSocket;
+
+        public ConnectTask(long delayMillis) {
+            super("BlueDroid-Connect-" + mAddress, mService.getControlThreadPriority());
+            mmDelayMillis = delayMillis;
+        }
+
+        @Override
+        protected void execute() {
+            Log.d(TAG, "BlueSession$ConnectTask.execute()");
+
+            while (true) {
+                try {
+                    if (mmDelayMillis > 0) Thread.sleep(mmDelayMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                Transport.Connection socket = null;
+
+                try {
+                    socket = mTransport.open(mAddress, isAndroid, isSecure);
+
+                    synchronized (mService) {
+                        //Cancelada enquanto aguardava.
+                        if (mConnectTask != this) {
+                            closeQuietly(socket);
+                            return;
+                        }
+                        mmSocket = socket;
+                    }
+
+                    socket.connect();
+                } catch (IOException e) {
+                    BlueTrace.error(mAddress, e);
+                    if (socket != null) closeQuietly(socket);
+
+                    synchronized (mService) {
+                        if (mConnectTask != this) return;
+                        mStats.onConnectionFailed();
+
+                        if (!canReconnect()) {
+                            shutdown(StateTransition.Cause.CONNECT_FAILED);
+                            return;
+                        }
+
+                        mmDelayMillis = nextReconnectAttempt();
+                    }
+
+                    continue;
+                }
+
+                final ConnectedTask task;
+
+                synchronized (mService) {
+                    //Cancelada enquanto conectava.
+                    if (mConnectTask != this) {
+                        closeQuietly(socket);
+                        return;
+                    }
+
+                    task = startConnected(socket);
+                }
+
+                //A leitura continua no mesmo worker.
+                if (task != null) task.run();
+                return;
+            }
+        }
+
+        public void close() {
+            Log.d(TAG, "BlueSession$ConnectTask.close()");
+            cancel();
+            synchronized (mService) {
+                if (mmSocket != null) closeQuietly(mmSocket);
+            }
+        }
+    }
+
+    private class ConnectedTask extends BlueTask {
+        private final Transport.Connection mmSocket;
+        private final InputStream mmInStream;
+        private final WriterTask mmWriter;
+
+        public ConnectedTask(Transport.Connection socket) {
+            super("BlueDroid-Reader-" + mAddress, mService.getIoThreadPriority());
+            mmSocket = socket;
+            InputStream tmpIn = null;
+            OutputStream tmpOut = null;
+
+            try {
+                tmpIn = socket.getInputStream();
+                tmpOut = socket.getOutputStream();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            mmInStream = tmpIn;
+            mmWriter = new WriterTask(tmpOut, mWriteQueue, mCoalesceSize, mCoalesceDelayNanos);
+        }
+
+        @Override
+        protected void execute() {
+            Log.d(TAG, "BlueSession$ConnectedTask.execute()");
+
+            final RingBuffer ring = mReceiveBuffer;
+            //Codec em uso: só esta thread o reinicia e decodifica com ele.
+            FrameCodec current = null;
+
+            while (true) {
+                try {
+                    //Lê diretamente no espaço livre do buffer circular.
+                    //Se estiver cheio, aguarda o consumidor (o controle de fluxo do RFCOMM segura o outro lado).
+                    //O mesmo vale enquanto algum assinante do publisher não tiver demanda.
+                    final SessionPublisher demand = mPublisher;
+                    if (demand != null) demand.awaitDemand();
+                    int writable = ring.awaitWritable();
+                    int length = mmInStream.read(ring.array(), ring.writeOffset(), writable);
+                    if (length < 0) throw new IOException("End of stream");
+                    if (length == 0) continue;
+                    mStats.onRead(length);
+                    BlueTrace.read(mAddress, length);
+                    final FrameCodec codec = mFrameCodec;
+                    final FrameCodec.Listener frameListener = mFrameListener;
+                    if (codec != null && frameListener != null) {
+                        if (codec != current) {
+                            codec.reset();
+                            current = codec;
+                        }
+                        codec.decode(ring.array(), ring.writeOffset(), length, frameListener);
+                    }
+                    final BlueDroid.SessionDataReceivedListener readerListener = mReaderListener;
+                    if (readerListener != null) {
+                        readerListener.onDataReceived(BlueSession.this, ring.array(), ring.writeOffset(), length);
+                    }
+                    final SessionInputStream in = mInputStream;
+                    if (in != null) in.receive(ring.array(), ring.writeOffset(), length);
+                    final SessionPublisher publisher = mPublisher;
+                    if (publisher != null) publisher.publish(ring.array(), ring.writeOffset(), length);
+                    ring.commitWrite(length);
+                    if (ring.signal()) {
+                        mCallback.onDataAvailable(BlueSession.this);
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                } catch (IOException e) {
+                    BlueTrace.error(mAddress, e);
+                    connectionLost();
+                    break;
+                }
+            }
+        }
+
+        public void close() {
+            Log.d(TAG, "BlueSession$ConnectedTask.close()");
+            cancel();
+            closeQuietly(mmSocket);
+        }
+    }
+
+    /**
+     * Esvazia a fila de saída de uma conexão, para que quem envia nunca bloqueie no socket.
+     * Se configurado, agrupa os envios pequenos antes de escrevê-los. Só ocupa um worker
+     * enquanto houver envios pendentes (e por {@link #WRITER_LINGER_NANOS} depois deles).
+     */
+    private class WriterTask extends BlueTask {
+        private final OutputStream mmOutStream;
+        private final WriteQueue mmQueue;
+        private final byte[] mmBatch;
+        private final long mmDelayNanos;
+        private final ArrayList<WriteQueue.Request> mmBatched = new ArrayList<>();
+        private final byte[] mmScratch = new byte[SCRATCH_SIZE];
+        private int mmBatchLength;
+        private long mmDeadline;
+
+        WriterTask(OutputStream outStream, WriteQueue queue, int coalesceSize, long delayNanos) {
+            super("BlueDroid-Writer-" + mAddress, mService.getIoThreadPriority());
+            mmOutStream = outStream;
+            mmQueue = queue;
+            mmBatch = coalesceSize > 0 ? new byte[coalesceSize] : null;
+            mmDelayNanos = delayNanos;
+        }
+
+        @Override
+        protected void execute() {
+            WriteQueue.Request request = null;
+
+            try {
+                while (true) {
+                    final long timeout = mmBatchLength > 0 ? Math.max(0, mmDeadline - System.nanoTime()) : WRITER_LINGER_NANOS;
+                    request = mmQueue.poll(timeout, mmBatchLength == 0);
+
+                    if (request == null) {
+                        if (mmQueue.isClosed()) break;
+                        //Fila vazia: libera o worker até o próximo envio.
+                        if (mmBatchLength == 0) return;
+                        //Prazo do grupo esgotado.
+                        writeBatch();
+                        continue;
+                    }
+
+                    //Cancelado enquanto aguardava na fila.
+                    if (request.future.isDone()) continue;
+
+                    if (request.isFlush) {
+                        writeBatch();
+                        mmOutStream.flush();
+                        request.future.complete(0);
+                        continue;
+                    }
+
+                    if (mmBatch != null && request.length < mmBatch.length) {
+                        if (mmBatchLength + request.length > mmBatch.length) writeBatch();
+                        if (mmBatchLength == 0) mmDeadline = System.nanoTime() + mmDelayNanos;
+
+                        request.copyTo(mmBatch, mmBatchLength);
+                        mmBatchLength += request.length;
+                        mmBatched.add(request);
+
+                        if (mmBatchLength == mmBatch.length) writeBatch();
+                        continue;
+                    }
+
+                    writeBatch();
+                    request.writeTo(mmOutStream, mmScratch);
+                    if (mmQueue.isEmpty()) mmOutStream.flush();
+                    request.future.complete(request.length);
+                    final long latency = System.nanoTime() - request.enqueuedNanos;
+                    mStats.onWrite(request.length, latency);
+                    BlueTrace.write(mAddress, request.length, latency);
+                    mCallback.onDataWritten(BlueSession.this, request.length);
+                }
+            } catch (IOException e) {
+                BlueTrace.error(mAddress, e);
+                if (request != null) request.future.fail(e);
+                mmQueue.close(e);
+                failBatch(e);
+                return;
+            } catch (InterruptedException e) {
+                mmQueue.close(new IOException("Writer interrupted"));
+            }
+
+            failBatch(new IOException("Connection closed"));
+        }
+
+        private void writeBatch() throws IOException {
+            if (mmBatchLength == 0) return;
+
+            try {
+                mmOutStream.write(mmBatch, 0, mmBatchLength);
+                mmOutStream.flush();
+            } catch (IOException e) {
+                failBatch(e);
+                throw e;
+            }
+
+            final long now = System.nanoTime();
+            for (int i = 0; i < mmBatched.size(); i++) {
+                final WriteQueue.Request request = mmBatched.get(i);
+                request.future.complete(request.length);
+                mStats.onWrite(request.length, now - request.enqueuedNanos);
+                BlueTrace.write(mAddress, request.length, now - request.enqueuedNanos);
+            }
+
+            mmBatched.clear();
+            mCallback.onDataWritten(BlueSession.this, mmBatchLength);
+            mmBatchLength = 0;
+        }
+
+        private void failBatch(IOException e) {
+            for (int i = 0; i < mmBatched.size(); i++) mmBatched.get(i).future.fail(e);
+            mmBatched.clear();
+            mmBatchLength = 0;
+        }
+    }
+}
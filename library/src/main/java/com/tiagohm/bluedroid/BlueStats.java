@@ -0,0 +1,328 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Métricas de uma conexão ({@link BlueSession#getStats()}) ou, somente com o tempo em cada
+ * estado, do serviço ({@link BlueService#getStats()}).
+ * <p>
+ * Os contadores e histogramas são atualizados sem locks pelas threads de leitura e escrita.
+ * {@link #snapshot()} é barato e pode ser chamado de qualquer thread; os valores de um mesmo
+ * snapshot podem ser de instantes ligeiramente diferentes.
+ */
+public class BlueStats {
+
+    private final AtomicLong mBytesReceived = new AtomicLong();
+    private final AtomicLong mBytesSent = new AtomicLong();
+    private final AtomicLong mMessagesReceived = new AtomicLong();
+    private final AtomicLong mMessagesSent = new AtomicLong();
+    private final AtomicLong mConnections = new AtomicLong();
+    private final AtomicLong mReconnects = new AtomicLong();
+    private final AtomicLong mConnectionFailures = new AtomicLong();
+    private final AtomicLong mConnectionsLost = new AtomicLong();
+    private final Histogram mWriteLatency = new Histogram();
+    private final Histogram mReadChunkSize = new Histogram();
+    //Tempo em cada estado (BlueService.STATE_*), em nanossegundos.
+    private final long[] mStateNanos = new long[4];
+    private final long mCreatedNanos = System.nanoTime();
+    private int mState = BlueService.STATE_NONE;
+    private long mStateEnteredNanos = mCreatedNanos;
+    private volatile WriteQueue mWriteQueue;
+
+    void onRead(int length) {
+        mBytesReceived.addAndGet(length);
+        mMessagesReceived.incrementAndGet();
+        mReadChunkSize.record(length);
+    }
+
+    /**
+     * Um envio de {@code length} bytes entregue ao socket, {@code latencyNanos} depois de
+     * enfileirado.
+     */
+    void onWrite(int length, long latencyNanos) {
+        mBytesSent.addAndGet(length);
+        mMessagesSent.incrementAndGet();
+        mWriteLatency.record(latencyNanos);
+    }
+
+    void onConnected() {
+        mConnections.incrementAndGet();
+    }
+
+    void onReconnect() {
+        mReconnects.incrementAndGet();
+    }
+
+    void onConnectionFailed() {
+        mConnectionFailures.incrementAndGet();
+    }
+
+    void onConnectionLost() {
+        mConnectionsLost.incrementAndGet();
+    }
+
+    synchronized void onStateChanged(int state) {
+        final long now = System.nanoTime();
+        mStateNanos[mState] += now - mStateEnteredNanos;
+        mState = state;
+        mStateEnteredNanos = now;
+    }
+
+    /**
+     * Fila de saída atual, lida por {@link Snapshot#getQueuedBytes()}.
+     */
+    void setWriteQueue(WriteQueue queue) {
+        mWriteQueue = queue;
+    }
+
+    public Snapshot snapshot() {
+        final long[] stateNanos;
+        final long now = System.nanoTime();
+
+        synchronized (this) {
+            stateNanos = mStateNanos.clone();
+            stateNanos[mState] += now - mStateEnteredNanos;
+        }
+
+        final WriteQueue queue = mWriteQueue;
+
+        return new Snapshot(now - mCreatedNanos, mBytesReceived.get(), mBytesSent.get(),
+                mMessagesReceived.get(), mMessagesSent.get(),
+                queue != null ? queue.getQueuedBytes() : 0, queue != null ? queue.size() : 0,
+                mConnections.get(), mReconnects.get(), mConnectionFailures.get(), mConnectionsLost.get(),
+                stateNanos, mWriteLatency.snapshot(), mReadChunkSize.snapshot());
+    }
+
+    /**
+     * Histograma de valores não negativos em faixas de potências de 2: a faixa {@code i} contém
+     * os valores de {@code 2^(i-1)} até {@code 2^i - 1} (a faixa 0 contém somente o 0).
+     */
+    static final class Histogram {
+        static final int BUCKETS = 64;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        void record(long value) {
+            if (value < 0) value = 0;
+            mBuckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+
+            long max;
+            while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+                //Outra thread atualizou o máximo.
+            }
+        }
+
+        HistogramSnapshot snapshot() {
+            final long[] buckets = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) buckets[i] = mBuckets.get(i);
+            return new HistogramSnapshot(buckets, mCount.get(), mSum.get(), mMax.get());
+        }
+    }
+
+    public static final class HistogramSnapshot {
+        private final long[] mBuckets;
+        private final long mCount;
+        private final long mSum;
+        private final long mMax;
+
+        HistogramSnapshot(long[] buckets, long count, long sum, long max) {
+            mBuckets = buckets;
+            mCount = count;
+            mSum = sum;
+            mMax = max;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getSum() {
+            return mSum;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        public double getMean() {
+            return mCount == 0 ? 0 : (double) mSum / mCount;
+        }
+
+        /**
+         * Limite superior da faixa que contém o percentil {@code p} (entre 0 e 100): o valor
+         * real é no máximo esse, e maior que a metade dele.
+         */
+        public long getPercentile(double p) {
+            long total = 0;
+            for (long n : mBuckets) total += n;
+            if (total == 0) return 0;
+
+            final long rank = Math.max(1, (long) Math.ceil(total * p / 100));
+            long seen = 0;
+
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank) return Math.min(i == 0 ? 0 : (1L << i) - 1, mMax);
+            }
+
+            return mMax;
+        }
+
+        /**
+         * Quantidade de valores na faixa {@code index}.
+         */
+        public long getBucket(int index) {
+            return mBuckets[index];
+        }
+
+        public int getBucketCount() {
+            return mBuckets.length;
+        }
+    }
+
+    public static final class Snapshot {
+        private final long mUptimeNanos;
+        private final long mBytesReceived;
+        private final long mBytesSent;
+        private final long mMessagesReceived;
+        private final long mMessagesSent;
+        private final int mQueuedBytes;
+        private final int mQueuedMessages;
+        private final long mConnections;
+        private final long mReconnects;
+        private final long mConnectionFailures;
+        private final long mConnectionsLost;
+        private final long[] mStateNanos;
+        private final HistogramSnapshot mWriteLatency;
+        private final HistogramSnapshot mReadChunkSize;
+
+        Snapshot(long uptimeNanos, long bytesReceived, long bytesSent, long messagesReceived,
+                 long messagesSent, int queuedBytes, int queuedMessages, long connections,
+                 long reconnects, long connectionFailures, long connectionsLost, long[] stateNanos,
+                 HistogramSnapshot writeLatency, HistogramSnapshot readChunkSize) {
+            mUptimeNanos = uptimeNanos;
+            mBytesReceived = bytesReceived;
+            mBytesSent = bytesSent;
+            mMessagesReceived = messagesReceived;
+            mMessagesSent = messagesSent;
+            mQueuedBytes = queuedBytes;
+            mQueuedMessages = queuedMessages;
+            mConnections = connections;
+            mReconnects = reconnects;
+            mConnectionFailures = connectionFailures;
+            mConnectionsLost = connectionsLost;
+            mStateNanos = stateNanos;
+            mWriteLatency = writeLatency;
+            mReadChunkSize = readChunkSize;
+        }
+
+        public long getUptimeMillis() {
+            return mUptimeNanos / 1000000;
+        }
+
+        public long getBytesReceived() {
+            return mBytesReceived;
+        }
+
+        public long getBytesSent() {
+            return mBytesSent;
+        }
+
+        /**
+         * Leituras do socket que retornaram dados.
+         */
+        public long getMessagesReceived() {
+            return mMessagesReceived;
+        }
+
+        /**
+         * Envios entregues ao socket (cada envio agrupado conta separadamente).
+         */
+        public long getMessagesSent() {
+            return mMessagesSent;
+        }
+
+        /**
+         * Bytes na fila de saída no momento do snapshot.
+         */
+        public int getQueuedBytes() {
+            return mQueuedBytes;
+        }
+
+        public int getQueuedMessages() {
+            return mQueuedMessages;
+        }
+
+        public long getConnections() {
+            return mConnections;
+        }
+
+        public long getReconnects() {
+            return mReconnects;
+        }
+
+        /**
+         * Tentativas de conexão que falharam.
+         */
+        public long getConnectionFailures() {
+            return mConnectionFailures;
+        }
+
+        public long getConnectionsLost() {
+            return mConnectionsLost;
+        }
+
+        /**
+         * Tempo total no estado {@code state} ({@link BlueService#STATE_NONE},
+         * {@link BlueService#STATE_LISTEN}, {@link BlueService#STATE_CONNECTING} ou
+         * {@link BlueService#STATE_CONNECTED}), incluindo o atual.
+         */
+        public long getTimeInStateMillis(int state) {
+            return mStateNanos[state] / 1000000;
+        }
+
+        /**
+         * Do envio até a escrita no socket, em nanossegundos.
+         */
+        public HistogramSnapshot getWriteLatency() {
+            return mWriteLatency;
+        }
+
+        public HistogramSnapshot getReadChunkSize() {
+            return mReadChunkSize;
+        }
+
+        @Override
+        public String toString() {
+            return "BlueStats{in=" + mBytesReceived + "B/" + mMessagesReceived +
+                    ", out=" + mBytesSent + "B/" + mMessagesSent +
+                    ", queued=" + mQueuedBytes + "B/" + mQueuedMessages +
+                    ", connections=" + mConnections + ", reconnects=" + mReconnects +
+                    ", failures=" + mConnectionFailures + ", lost=" + mConnectionsLost +
+                    ", writeLatencyP99=" + mWriteLatency.getPercentile(99) / 1000 + "us" +
+                    ", readChunkP50=" + mReadChunkSize.getPercentile(50) + "B}";
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+/**
+ * Tarefa executada num worker do executor do {@link BlueService}. Enquanto roda, o worker
+ * recebe o nome e a prioridade da tarefa, e os recupera ao terminar.
+ */
+abstract class BlueTask implements Runnable {
+
+    private final String mName;
+    private final int mPriority;
+    private Thread mThread;
+    private boolean isCancelled;
+
+    BlueTask(String name, int priority) {
+        mName = name;
+        mPriority = priority;
+    }
+
+    @Override
+    public final void run() {
+        final Thread thread = Thread.currentThread();
+        final String name = thread.getName();
+        final int priority = thread.getPriority();
+
+        synchronized (this) {
+            if (isCancelled) return;
+            mThread = thread;
+        }
+
+        thread.setName(mName);
+        thread.setPriority(mPriority);
+
+        try {
+            execute();
+        } finally {
+            synchronized (this) {
+                if (mThread == thread) mThread = null;
+            }
+            //Não deixa a interrupção para a próxima tarefa do worker.
+            Thread.interrupted();
+            thread.setName(name);
+            thread.setPriority(priority);
+        }
+    }
+
+    protected abstract void execute();
+
+    /**
+     * Interrompe o worker, se a tarefa estiver rodando, e impede que ela comece depois.
+     */
+    synchronized void cancel() {
+        isCancelled = true;
+        if (mThread != null) mThread.interrupt();
+    }
+
+    synchronized boolean isCancelled() {
+        return isCancelled;
+    }
+
+    String getName() {
+        return mName;
+    }
+}
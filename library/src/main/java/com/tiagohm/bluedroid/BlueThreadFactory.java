@@ -0,0 +1,45 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cria os workers do executor padrão do {@link BlueService}: threads daemon, numeradas e com a
+ * prioridade informada. Cada tarefa renomeia o worker enquanto roda (por exemplo,
+ * {@code "BlueDroid-Reader-00:11:22:33:44:55"}).
+ */
+public class BlueThreadFactory implements ThreadFactory {
+
+    private final String mPrefix;
+    private final int mPriority;
+    private final AtomicInteger mCount = new AtomicInteger();
+
+    public BlueThreadFactory(String prefix, int priority) {
+        mPrefix = prefix;
+        mPriority = priority;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        final Thread thread = new Thread(r, mPrefix + "-" + mCount.incrementAndGet());
+        thread.setDaemon(true);
+        thread.setPriority(mPriority);
+        return thread;
+    }
+}
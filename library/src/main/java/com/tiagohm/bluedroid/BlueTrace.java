@@ -0,0 +1,235 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Registro dos eventos do BlueDroid (mudanças de estado, leituras, envios e erros) num buffer
+ * circular de tamanho fixo em memória, com o momento de cada um em nanossegundos. Os eventos
+ * mais antigos são sobrescritos.
+ * <p>
+ * Desativado por padrão: cada ponto de registro custa somente uma leitura de campo. Ativado, o
+ * registro não aloca memória nem usa locks. Use {@link #dump(File)} para gravar os eventos
+ * num arquivo, por exemplo após uma falha.
+ * <p>
+ * O dump pode rodar junto com o registro: os eventos sendo escritos são omitidos. Só se mais
+ * eventos que a capacidade forem registrados enquanto um deles é escrito, duas threads podem
+ * escrever na mesma posição ao mesmo tempo e o dump pode mostrar esse evento misturado.
+ */
+public final class BlueTrace {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * Estado de uma sessão: {@code a} é o anterior e {@code b} o novo.
+     */
+    public static final int EVENT_SESSION_STATE = 1;
+    /**
+     * Estado geral do serviço: {@code a} é o anterior e {@code b} o novo.
+     */
+    public static final int EVENT_SERVICE_STATE = 2;
+    /**
+     * Leitura do socket: {@code a} é o tamanho.
+     */
+    public static final int EVENT_READ = 3;
+    /**
+     * Envio entregue ao socket: {@code a} é o tamanho e {@code b} a latência em nanossegundos.
+     */
+    public static final int EVENT_WRITE = 4;
+    /**
+     * Tentativa de reconexão: {@code a} é a tentativa e {@code b} o intervalo em milissegundos.
+     */
+    public static final int EVENT_RECONNECT = 5;
+    public static final int EVENT_ERROR = 6;
+
+    private static final String[] EVENT_NAMES = {
+            "?", "SESSION_STATE", "SERVICE_STATE", "READ", "WRITE", "RECONNECT", "ERROR"
+    };
+
+    private static volatile BlueTrace sTrace;
+
+    private final int mMask;
+    private final AtomicLong mNext = new AtomicLong();
+    //Sequência + 1 do evento em cada posição: permite ao dump detectar posições sendo escritas.
+    //Os campos também são atômicos para que as escritas não passem à frente da sequência zerada.
+    private final AtomicLongArray mSequences;
+    private final AtomicLongArray mTimes;
+    private final AtomicLongArray mThreads;
+    private final AtomicIntegerArray mTypes;
+    private final AtomicLongArray mA;
+    private final AtomicLongArray mB;
+    private final AtomicReferenceArray<String> mSubjects;
+    private final AtomicReferenceArray<Throwable> mErrors;
+    private final long mStartNanos = System.nanoTime();
+    private final long mStartMillis = System.currentTimeMillis();
+
+    private BlueTrace(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 16));
+        if (size < capacity) size <<= 1;
+        mMask = size - 1;
+        mSequences = new AtomicLongArray(size);
+        mTimes = new AtomicLongArray(size);
+        mThreads = new AtomicLongArray(size);
+        mTypes = new AtomicIntegerArray(size);
+        mA = new AtomicLongArray(size);
+        mB = new AtomicLongArray(size);
+        mSubjects = new AtomicReferenceArray<>(size);
+        mErrors = new AtomicReferenceArray<>(size);
+    }
+
+    /**
+     * Começa a registrar, descartando os eventos anteriores. A capacidade é arredondada para
+     * uma potência de 2.
+     */
+    public static void enable(int capacity) {
+        sTrace = new BlueTrace(capacity);
+    }
+
+    public static void enable() {
+        enable(DEFAULT_CAPACITY);
+    }
+
+    public static void disable() {
+        sTrace = null;
+    }
+
+    public static boolean isEnabled() {
+        return sTrace != null;
+    }
+
+    static void sessionState(String address, int previousState, int state) {
+        final BlueTrace trace = sTrace;
+        if (trace != null) trace.add(EVENT_SESSION_STATE, address, previousState, state, null);
+    }
+
+    static void serviceState(int previousState, int state) {
+        final BlueTrace trace = sTrace;
+        if (trace != null) trace.add(EVENT_SERVICE_STATE, null, previousState, state, null);
+    }
+
+    static void read(String address, int length) {
+        final BlueTrace trace = sTrace;
+        if (trace != null) trace.add(EVENT_READ, address, length, 0, null);
+    }
+
+    static void write(String address, int length, long latencyNanos) {
+        final BlueTrace trace = sTrace;
+        if (trace != null) trace.add(EVENT_WRITE, address, length, latencyNanos, null);
+    }
+
+    static void reconnect(String address, int attempt, long delayMillis) {
+        final BlueTrace trace = sTrace;
+        if (trace != null) trace.add(EVENT_RECONNECT, address, attempt, delayMillis, null);
+    }
+
+    static void error(String address, Throwable error) {
+        final BlueTrace trace = sTrace;
+        if (trace != null) trace.add(EVENT_ERROR, address, 0, 0, error);
+    }
+
+    private void add(int type, String subject, long a, long b, Throwable error) {
+        final long sequence = mNext.getAndIncrement();
+        final int i = (int) sequence & mMask;
+
+        //Cada lazySet só é visto depois das escritas anteriores: zerar, os campos, a sequência.
+        mSequences.lazySet(i, 0);
+        mTimes.lazySet(i, System.nanoTime());
+        mThreads.lazySet(i, Thread.currentThread().getId());
+        mTypes.lazySet(i, type);
+        mA.lazySet(i, a);
+        mB.lazySet(i, b);
+        mSubjects.lazySet(i, subject);
+        mErrors.lazySet(i, error);
+        mSequences.lazySet(i, sequence + 1);
+    }
+
+    /**
+     * Grava os eventos registrados, do mais antigo para o mais recente. Não faz nada se o
+     * registro estiver desativado.
+     */
+    public static void dump(File file) throws IOException {
+        final Writer writer = new BufferedWriter(new FileWriter(file));
+        try {
+            dump(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    public static void dump(Writer writer) throws IOException {
+        final BlueTrace trace = sTrace;
+        if (trace != null) trace.write(writer);
+    }
+
+    private void write(Writer writer) throws IOException {
+        final long next = mNext.get();
+        final long first = Math.max(0, next - mMask - 1);
+
+        writer.write(String.format(Locale.US, "# BlueTrace: %d events since %s%n", next, new Date(mStartMillis)));
+
+        for (long sequence = first; sequence < next; sequence++) {
+            final int i = (int) sequence & mMask;
+            if (mSequences.get(i) != sequence + 1) continue;
+
+            final long time = mTimes.get(i);
+            final long thread = mThreads.get(i);
+            final int type = mTypes.get(i);
+            final long a = mA.get(i);
+            final long b = mB.get(i);
+            final String subject = mSubjects.get(i);
+            final Throwable error = mErrors.get(i);
+
+            //Sobrescrito durante a leitura.
+            if (mSequences.get(i) != sequence + 1) continue;
+
+            writer.write(String.format(Locale.US, "%12.3f ms  t%-4d %-13s %s %s%n",
+                    (time - mStartNanos) / 1e6, thread, EVENT_NAMES[type],
+                    subject != null ? subject : "-", describe(type, a, b, error)));
+        }
+
+        writer.flush();
+    }
+
+    private static String describe(int type, long a, long b, Throwable error) {
+        switch (type) {
+            case EVENT_SESSION_STATE:
+            case EVENT_SERVICE_STATE:
+                return a + " -> " + b;
+            case EVENT_READ:
+                return "length=" + a;
+            case EVENT_WRITE:
+                return "length=" + a + " latency=" + b / 1000 + "us";
+            case EVENT_RECONNECT:
+                return "attempt=" + a + " delay=" + b + "ms";
+            case EVENT_ERROR:
+                return String.valueOf(error);
+            default:
+                return a + " " + b;
+        }
+    }
+}
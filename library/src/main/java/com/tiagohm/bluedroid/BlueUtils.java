@@ -16,5 +16,40 @@
 
 package com.tiagohm.bluedroid;
 
+import java.nio.ByteOrder;
+
 public class BlueUtils {
+
+    /**
+     * Lê um inteiro sem sinal de {@code width} bytes (1 a 8).
+     */
+    public static long readUnsigned(byte[] buffer, int offset, int width, ByteOrder order) {
+        long value = 0;
+
+        if (order == ByteOrder.BIG_ENDIAN) {
+            for (int i = 0; i < width; i++) {
+                value = (value << 8) | (buffer[offset + i] & 0xFF);
+            }
+        } else {
+            for (int i = width - 1; i >= 0; i--) {
+                value = (value << 8) | (buffer[offset + i] & 0xFF);
+            }
+        }
+
+        return value;
+    }
+
+    /**
+     * Escreve os {@code width} bytes menos significativos de {@code value}.
+     */
+    public static void writeUnsigned(long value, byte[] buffer, int offset, int width, ByteOrder order) {
+        for (int i = 0; i < width; i++) {
+            final byte b = (byte) (value >>> (8 * i));
+            if (order == ByteOrder.BIG_ENDIAN) {
+                buffer[offset + width - 1 - i] = b;
+            } else {
+                buffer[offset + i] = b;
+            }
+        }
+    }
 }
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Tipos de CRC anexados aos pacotes pelos {@link FrameCodec}s.
+ */
+public enum ChecksumType {
+    NONE(0),
+    /**
+     * CRC-16/CCITT-FALSE (polinômio 0x1021, valor inicial 0xFFFF).
+     */
+    CRC16(2),
+    CRC32(4);
+
+    public final int width;
+
+    ChecksumType(int width) {
+        this.width = width;
+    }
+
+    Checksum create() {
+        switch (this) {
+            case CRC16:
+                return new Crc16();
+            case CRC32:
+                return new CRC32();
+            default:
+                return null;
+        }
+    }
+
+    static final class Crc16 implements Checksum {
+        private static final int[] TABLE = new int[256];
+
+        static {
+            for (int i = 0; i < 256; i++) {
+                int crc = i << 8;
+                for (int j = 0; j < 8; j++) {
+                    crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+                }
+                TABLE[i] = crc & 0xFFFF;
+            }
+        }
+
+        private int mCrc = 0xFFFF;
+
+        @Override
+        public void update(int b) {
+            mCrc = ((mCrc << 8) ^ TABLE[((mCrc >> 8) ^ b) & 0xFF]) & 0xFFFF;
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            int crc = mCrc;
+            for (int i = off; i < off + len; i++) {
+                crc = ((crc << 8) ^ TABLE[((crc >> 8) ^ b[i]) & 0xFF]) & 0xFFFF;
+            }
+            mCrc = crc;
+        }
+
+        @Override
+        public long getValue() {
+            return mCrc;
+        }
+
+        @Override
+        public void reset() {
+            mCrc = 0xFFFF;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import java.nio.ByteOrder;
+import java.util.zip.Checksum;
+
+/**
+ * Pacotes codificados com COBS (Consistent Overhead Byte Stuffing) e terminados por 0x00.
+ * O CRC, se houver, é calculado sobre o conteúdo, anexado em big-endian e codificado junto
+ * com ele. Como o 0x00 só aparece no fim do pacote, a decodificação se ressincroniza sozinha
+ * após qualquer erro.
+ */
+public class CobsFrameCodec implements FrameCodec {
+
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 4096;
+
+    private final ChecksumType mChecksumType;
+    private final Checksum mDecodeChecksum;
+    private final Checksum mEncodeChecksum;
+    private final byte[] mFrame;
+
+    private int mLength;
+    private int mCode;
+    private int mRemaining;
+    private boolean isDiscarding;
+    private long mDroppedFrames;
+
+    public CobsFrameCodec() {
+        this(ChecksumType.NONE, DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    public CobsFrameCodec(ChecksumType checksum, int maxFrameLength) {
+        mChecksumType = checksum;
+        mDecodeChecksum = checksum.create();
+        mEncodeChecksum = checksum.create();
+        mFrame = new byte[maxFrameLength + checksum.width];
+    }
+
+    @Override
+    public void decode(byte[] buffer, int offset, int length, Listener listener) {
+        final int end = offset + length;
+
+        for (int i = offset; i < end; i++) {
+            final int b = buffer[i] & 0xFF;
+
+            if (b == 0) {
+                complete(listener);
+                continue;
+            }
+
+            if (isDiscarding) continue;
+
+            if (mRemaining == 0) {
+                //Início de um bloco: o bloco anterior, se menor que 254 bytes, terminava num zero.
+                if (mCode != 0 && mCode != 0xFF && !append((byte) 0)) continue;
+                mCode = b;
+                mRemaining = b - 1;
+            } else {
+                append((byte) b);
+                mRemaining--;
+            }
+        }
+    }
+
+    private boolean append(byte b) {
+        if (mLength == mFrame.length) {
+            isDiscarding = true;
+            return false;
+        }
+        mFrame[mLength++] = b;
+        return true;
+    }
+
+    private void complete(Listener listener) {
+        final boolean isValid = !isDiscarding && mRemaining == 0 && mLength >= mChecksumType.width;
+        final boolean isEmpty = mCode == 0 && !isDiscarding;
+        final int length = mLength - mChecksumType.width;
+
+        reset();
+
+        //Delimitadores consecutivos.
+        if (isEmpty) return;
+
+        if (!isValid) {
+            mDroppedFrames++;
+            return;
+        }
+
+        if (mDecodeChecksum != null) {
+            mDecodeChecksum.reset();
+            mDecodeChecksum.update(mFrame, 0, length);
+            final long expected = BlueUtils.readUnsigned(mFrame, length, mChecksumType.width, ByteOrder.BIG_ENDIAN);
+            if (mDecodeChecksum.getValue() != expected) {
+                mDroppedFrames++;
+                return;
+            }
+        }
+
+        listener.onFrameDecoded(mFrame, 0, length);
+    }
+
+    @Override
+    public byte[] encode(byte[] data, int offset, int length) {
+        final int total = length + mChecksumType.width;
+        final byte[] raw;
+        final int rawOffset;
+
+        if (mEncodeChecksum != null) {
+            raw = new byte[total];
+            rawOffset = 0;
+            System.arraycopy(data, offset, raw, 0, length);
+            synchronized (mEncodeChecksum) {
+                mEncodeChecksum.reset();
+                mEncodeChecksum.update(data, offset, length);
+                BlueUtils.writeUnsigned(mEncodeChecksum.getValue(), raw, length, mChecksumType.width, ByteOrder.BIG_ENDIAN);
+            }
+        } else {
+            raw = data;
+            rawOffset = offset;
+        }
+
+        final byte[] out = new byte[total + total / 254 + 2];
+        int codeIndex = 0;
+        int code = 1;
+        int o = 1;
+
+        for (int i = rawOffset; i < rawOffset + total; i++) {
+            if (raw[i] == 0) {
+                out[codeIndex] = (byte) code;
+                codeIndex = o++;
+                code = 1;
+            } else {
+                out[o++] = raw[i];
+                if (++code == 0xFF) {
+                    out[codeIndex] = (byte) code;
+                    codeIndex = o++;
+                    code = 1;
+                }
+            }
+        }
+
+        out[codeIndex] = (byte) code;
+        out[o++] = 0;
+
+        if (o == out.length) return out;
+
+        final byte[] result = new byte[o];
+        System.arraycopy(out, 0, result, 0, o);
+        return result;
+    }
+
+    @Override
+    public void reset() {
+        mLength = 0;
+        mCode = 0;
+        mRemaining = 0;
+        isDiscarding = false;
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+}
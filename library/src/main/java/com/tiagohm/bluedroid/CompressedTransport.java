@@ -0,0 +1,662 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Transporte que comprime os dados de outro transporte com Deflate. Só vale para as conexões
+ * entre dois aparelhos Android ({@link ConnectionDevice#ANDROID}); as demais passam direto.
+ * <p>
+ * As conexões comprimidas usam um canal separado do transporte (no RFCOMM, outro UUID), que só
+ * existe nos aparelhos com a compressão ativa. Ao conectar, o canal comprimido é tentado primeiro;
+ * se o outro lado não o oferecer, a conexão é feita pelo canal normal, sem compressão e sem nenhum
+ * byte a mais. Ao escutar, os dois canais são aceitos ({@link ChannelAcceptor}).
+ * <p>
+ * No canal comprimido, cada lado envia um cumprimento de {@value #HELLO_SIZE} bytes dizendo o que
+ * sabe fazer. Cada sentido da conexão é comprimido só se quem envia consegue comprimir (Android
+ * 4.4 ou superior, que tem {@link Deflater#SYNC_FLUSH}) e quem recebe consegue descomprimir.
+ * <p>
+ * Os dados comprimidos formam um único fluxo Deflate, esvaziado a cada {@code flush()} da tarefa
+ * de escrita e dividido em blocos de até {@link #BLOCK_SIZE} bytes. Um bloco que não diminui é
+ * enviado sem compressão.
+ */
+public class CompressedTransport implements Transport {
+
+    /**
+     * Transporte que oferece o canal separado usado pelas conexões comprimidas.
+     */
+    public interface ChannelProvider {
+        /**
+         * Transporte que conecta e escuta no canal comprimido, com os mesmos endereços.
+         */
+        Transport getCompressedChannel();
+    }
+
+    private static final String TAG = "TAG";
+
+    /**
+     * Tamanho máximo de um bloco, antes e depois de comprimido.
+     */
+    public static final int BLOCK_SIZE = 16 * 1024;
+    public static final long HANDSHAKE_TIMEOUT_MILLIS = 2000;
+
+    static final int HELLO_SIZE = 5;
+    private static final byte[] MAGIC = {'B', 'D', 'Z'};
+    private static final int VERSION = 1;
+    /**
+     * Quem envia o cumprimento aceita receber dados comprimidos.
+     */
+    private static final int FLAG_INFLATE = 1;
+    /**
+     * Quem envia o cumprimento consegue comprimir.
+     */
+    private static final int FLAG_DEFLATE = 2;
+
+    private static final int HEADER_SIZE = 3;
+    private static final int TYPE_RAW = 0;
+    private static final int TYPE_DEFLATE = 1;
+    /**
+     * Bloco comprimido que inicia um novo fluxo Deflate.
+     */
+    private static final int TYPE_DEFLATE_RESET = 2;
+    /**
+     * Blocos menores não compensam o cabeçalho do Deflate.
+     */
+    private static final int MIN_DEFLATE_SIZE = 64;
+    /**
+     * Blocos enviados sem tentar comprimir depois de um bloco que não diminuiu.
+     */
+    private static final int RAW_BACKOFF_BLOCKS = 8;
+
+    private final Transport mTransport;
+    private final Transport mChannel;
+    private final int mLevel;
+    private final boolean isDeflateSupported;
+
+    /**
+     * @param transport transporte que implementa {@link ChannelProvider}.
+     */
+    public CompressedTransport(Transport transport) {
+        this(transport, Deflater.BEST_SPEED);
+    }
+
+    /**
+     * @param transport transporte que implementa {@link ChannelProvider}.
+     * @param level     nível de compressão do {@link Deflater}.
+     */
+    public CompressedTransport(Transport transport, int level) {
+        this(transport, compressedChannel(transport), level);
+    }
+
+    /**
+     * @param channel transporte do canal comprimido, que não deve aceitar conexões de quem não
+     *                tiver a compressão ativa.
+     */
+    public CompressedTransport(Transport transport, Transport channel, int level) {
+        this(transport, channel, level, canDeflate());
+    }
+
+    /**
+     * @param deflate se este lado comprime, independente de {@link #canDeflate()}. Usado nos
+     *                testes, que não rodam num Android.
+     */
+    CompressedTransport(Transport transport, Transport channel, int level, boolean deflate) {
+        mTransport = transport;
+        mChannel = channel;
+        mLevel = level;
+        isDeflateSupported = deflate;
+    }
+
+    private static Transport compressedChannel(Transport transport) {
+        if (!(transport instanceof ChannelProvider)) {
+            throw new IllegalArgumentException("Transport has no compressed channel: " + transport);
+        }
+        return ((ChannelProvider) transport).getCompressedChannel();
+    }
+
+    public Transport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * Retorna {@code true} se este aparelho consegue comprimir. Descomprimir é sempre possível.
+     */
+    public static boolean canDeflate() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    @Override
+    public Transport.Connection open(String address, boolean android, boolean secure) throws IOException {
+        return android ? new Connection(address, secure) : mTransport.open(address, false, secure);
+    }
+
+    @Override
+    public Transport.Acceptor listen(boolean android, boolean secure) throws IOException {
+        final Transport.Acceptor acceptor = mTransport.listen(android, secure);
+        if (!android) return acceptor;
+
+        final Transport.Acceptor compressed;
+
+        try {
+            compressed = mChannel.listen(true, secure);
+        } catch (IOException e) {
+            Log.d(TAG, "CompressedTransport: compressed channel unavailable: " + e.getMessage());
+            return acceptor;
+        }
+
+        return new Acceptor(acceptor, compressed);
+    }
+
+    /**
+     * Conexão de saída: tenta o canal comprimido e, se não der, o canal normal.
+     */
+    private class Connection implements Transport.Connection {
+        private final String mmAddress;
+        private final boolean isSecure;
+        private Transport.Connection mmConnection;
+        private InputStream mmInStream;
+        private OutputStream mmOutStream;
+        private boolean isClosed;
+
+        Connection(String address, boolean secure) {
+            mmAddress = address;
+            isSecure = secure;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            final Transport.Connection compressed = attach(mChannel.open(mmAddress, true, isSecure));
+
+            try {
+                compressed.connect();
+                final Stream stream = negotiate(compressed);
+                synchronized (this) {
+                    mmInStream = stream.mmInStream;
+                    mmOutStream = stream.mmOutStream;
+                }
+                return;
+            } catch (IOException e) {
+                closeQuietly(compressed);
+                Log.d(TAG, "CompressedTransport: " + mmAddress + " without compression: " + e.getMessage());
+            }
+
+            final Transport.Connection plain = attach(mTransport.open(mmAddress, true, isSecure));
+            plain.connect();
+        }
+
+        /**
+         * Passa a usar a conexão informada, a não ser que esta já tenha sido fechada.
+         */
+        private Transport.Connection attach(Transport.Connection connection) throws IOException {
+            synchronized (this) {
+                if (!isClosed) {
+                    mmConnection = connection;
+                    return connection;
+                }
+            }
+
+            closeQuietly(connection);
+            throw new IOException("Connection closed");
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (mmConnection == null) throw new IOException("Not connected");
+            return mmInStream != null ? mmInStream : mmConnection.getInputStream();
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (mmConnection == null) throw new IOException("Not connected");
+            return mmOutStream != null ? mmOutStream : mmConnection.getOutputStream();
+        }
+
+        @Override
+        public String getAddress() {
+            return mmAddress;
+        }
+
+        @Override
+        public void close() throws IOException {
+            final Transport.Connection connection;
+            final InputStream in;
+            final OutputStream out;
+
+            synchronized (this) {
+                isClosed = true;
+                connection = mmConnection;
+                in = mmInStream;
+                out = mmOutStream;
+            }
+
+            if (connection != null) closeStreams(connection, in, out);
+        }
+    }
+
+    /**
+     * Conexão aceita pelo canal comprimido, já negociada.
+     */
+    private static final class Accepted implements Transport.Connection {
+        private final Transport.Connection mmConnection;
+        private final Stream mmStream;
+
+        Accepted(Transport.Connection connection, Stream stream) {
+            mmConnection = connection;
+            mmStream = stream;
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return mmStream.mmInStream;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mmStream.mmOutStream;
+        }
+
+        @Override
+        public String getAddress() {
+            return mmConnection.getAddress();
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeStreams(mmConnection, mmStream.mmInStream, mmStream.mmOutStream);
+        }
+    }
+
+    /**
+     * Acceptor com mais de um canal. Cada canal deve ser aceito pela sua própria tarefa, para que
+     * uma negociação lenta não atrase as conexões do outro; o {@link BlueService} faz isso nos
+     * seus workers.
+     */
+    interface ChannelAcceptor extends Transport.Acceptor {
+        /**
+         * Os canais, começando pelo normal. Fechar este acceptor fecha todos eles.
+         */
+        Transport.Acceptor[] getChannels();
+    }
+
+    /**
+     * Os dois canais da escuta. {@link #accept()} não é suportado: cada canal é aceito à parte.
+     */
+    private class Acceptor implements ChannelAcceptor {
+        private final Transport.Acceptor mmPlain;
+        private final Transport.Acceptor mmCompressed;
+
+        Acceptor(Transport.Acceptor plain, final Transport.Acceptor compressed) {
+            mmPlain = plain;
+            mmCompressed = new Transport.Acceptor() {
+                @Override
+                public Transport.Connection accept() throws IOException {
+                    return acceptCompressed(compressed);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    compressed.close();
+                }
+            };
+        }
+
+        @Override
+        public Transport.Acceptor[] getChannels() {
+            return new Transport.Acceptor[]{mmPlain, mmCompressed};
+        }
+
+        @Override
+        public Transport.Connection accept() {
+            throw new UnsupportedOperationException("Accept each channel");
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                mmCompressed.close();
+            } finally {
+                mmPlain.close();
+            }
+        }
+    }
+
+    /**
+     * Aceita uma conexão do canal comprimido e a negocia na mesma thread. As que falham na
+     * negociação são fechadas e a espera continua.
+     */
+    private Transport.Connection acceptCompressed(Transport.Acceptor acceptor) throws IOException {
+        while (true) {
+            final Transport.Connection connection = acceptor.accept();
+
+            try {
+                return new Accepted(connection, negotiate(connection));
+            } catch (IOException e) {
+                Log.d(TAG, "CompressedTransport: handshake failed: " + e.getMessage());
+                closeQuietly(connection);
+            }
+        }
+    }
+
+    /**
+     * Streams de uma conexão negociada.
+     */
+    private static final class Stream {
+        final InputStream mmInStream;
+        final OutputStream mmOutStream;
+
+        Stream(InputStream in, OutputStream out) {
+            mmInStream = in;
+            mmOutStream = out;
+        }
+    }
+
+    /**
+     * Troca os cumprimentos no canal comprimido e decide a compressão de cada sentido.
+     */
+    private Stream negotiate(Transport.Connection connection) throws IOException {
+        final InputStream in = connection.getInputStream();
+        final OutputStream out = connection.getOutputStream();
+        final boolean deflate = isDeflateSupported;
+
+        out.write(new byte[]{MAGIC[0], MAGIC[1], MAGIC[2], VERSION,
+                (byte) (FLAG_INFLATE | (deflate ? FLAG_DEFLATE : 0))});
+        out.flush();
+
+        final byte[] hello = new byte[HELLO_SIZE];
+        readHello(connection, in, hello);
+
+        if (hello[0] != MAGIC[0] || hello[1] != MAGIC[1] || hello[2] != MAGIC[2] || hello[3] < VERSION) {
+            throw new IOException("Invalid handshake");
+        }
+
+        final int flags = hello[4];
+        final boolean compressIn = (flags & FLAG_DEFLATE) != 0;
+        final boolean compressOut = deflate && (flags & FLAG_INFLATE) != 0;
+
+        Log.d(TAG, "CompressedTransport: " + connection.getAddress() + " in=" + compressIn + " out=" + compressOut);
+
+        return new Stream(compressIn ? new InflatingInputStream(in) : in,
+                compressOut ? new DeflatingOutputStream(out, mLevel) : out);
+    }
+
+    /**
+     * Lê o cumprimento do outro lado. Nem todo socket aceita um tempo limite de leitura, então a
+     * conexão é fechada pelo timer de {@link BlueFuture} se o prazo acabar antes.
+     */
+    private static void readHello(final Transport.Connection connection, InputStream in, byte[] hello) throws IOException {
+        final BlueFuture<Void> deadline = new BlueFuture<Void>().timeout(HANDSHAKE_TIMEOUT_MILLIS);
+        deadline.addCallback(new BlueFuture.Callback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                closeQuietly(connection);
+            }
+        });
+
+        try {
+            int length = 0;
+
+            while (length < hello.length) {
+                final int n = in.read(hello, length, hello.length - length);
+                if (n < 0) throw new EOFException();
+                length += n;
+            }
+        } catch (IOException e) {
+            if (!deadline.complete(null)) throw new IOException("Handshake timed out");
+            throw e;
+        }
+
+        if (!deadline.complete(null)) throw new IOException("Handshake timed out");
+    }
+
+    /**
+     * Fecha o socket primeiro, para desbloquear a leitura e a escrita, e depois libera o
+     * compressor e o descompressor.
+     */
+    private static void closeStreams(Transport.Connection connection, InputStream in, OutputStream out) throws IOException {
+        connection.close();
+        if (in instanceof InflatingInputStream) ((InflatingInputStream) in).release();
+        if (out instanceof DeflatingOutputStream) ((DeflatingOutputStream) out).release();
+    }
+
+    private static void closeQuietly(Transport.Connection connection) {
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Comprime os dados em blocos. Cada bloco é enviado com um cabeçalho de {@value #HEADER_SIZE}
+     * bytes: o tipo e o tamanho. Só é criado se este lado comprime ({@link #canDeflate()}).
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static final class DeflatingOutputStream extends OutputStream {
+        private final OutputStream mOut;
+        private final Deflater mDeflater;
+        private final byte[] mBlock = new byte[BLOCK_SIZE];
+        private final byte[] mCompressed = new byte[HEADER_SIZE + BLOCK_SIZE];
+        private int mCount;
+        private int mRawBlocks;
+        private boolean isReset;
+        private boolean isClosed;
+
+        DeflatingOutputStream(OutputStream out, int level) {
+            mOut = out;
+            mDeflater = new Deflater(level, true);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (mCount == mBlock.length) writeBlock();
+            mBlock[mCount++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (mCount == mBlock.length) writeBlock();
+                final int n = Math.min(len, mBlock.length - mCount);
+                System.arraycopy(b, off, mBlock, mCount, n);
+                mCount += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (mCount > 0) writeBlock();
+            mOut.flush();
+        }
+
+        private synchronized void writeBlock() throws IOException {
+            if (isClosed) throw new IOException("Stream closed");
+
+            final int count = mCount;
+            mCount = 0;
+
+            if (count >= MIN_DEFLATE_SIZE) {
+                if (mRawBlocks > 0) {
+                    mRawBlocks--;
+                } else {
+                    mDeflater.setInput(mBlock, 0, count);
+                    //Só interessa um resultado menor que o bloco.
+                    final int n = mDeflater.deflate(mCompressed, HEADER_SIZE, count - 1, Deflater.SYNC_FLUSH);
+
+                    if (n < count - 1) {
+                        writeHeader(mCompressed, isReset ? TYPE_DEFLATE_RESET : TYPE_DEFLATE, n);
+                        mOut.write(mCompressed, 0, HEADER_SIZE + n);
+                        isReset = false;
+                        return;
+                    }
+
+                    //Não diminuiu: descarta o que foi comprimido e recomeça o fluxo depois.
+                    mDeflater.reset();
+                    isReset = true;
+                    mRawBlocks = RAW_BACKOFF_BLOCKS;
+                }
+            }
+
+            writeHeader(mCompressed, TYPE_RAW, count);
+            mOut.write(mCompressed, 0, HEADER_SIZE);
+            mOut.write(mBlock, 0, count);
+        }
+
+        private static void writeHeader(byte[] b, int type, int length) {
+            b[0] = (byte) type;
+            b[1] = (byte) (length >> 8);
+            b[2] = (byte) length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOut.close();
+            release();
+        }
+
+        synchronized void release() {
+            if (isClosed) return;
+            isClosed = true;
+            mDeflater.end();
+        }
+    }
+
+    /**
+     * Desfaz os blocos de {@link DeflatingOutputStream}.
+     */
+    private static final class InflatingInputStream extends InputStream {
+        private final InputStream mIn;
+        private final Inflater mInflater = new Inflater(true);
+        private final byte[] mHeader = new byte[HEADER_SIZE];
+        private final byte[] mPayload = new byte[BLOCK_SIZE];
+        private final byte[] mSingle = new byte[1];
+        private int mRawPosition;
+        private int mRawLimit;
+        private boolean isClosed;
+
+        InflatingInputStream(InputStream in) {
+            mIn = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int n = read(mSingle, 0, 1);
+            return n < 0 ? -1 : mSingle[0] & 0xFF;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+
+            while (true) {
+                if (isClosed) throw new IOException("Stream closed");
+
+                if (mRawPosition < mRawLimit) {
+                    final int n = Math.min(len, mRawLimit - mRawPosition);
+                    System.arraycopy(mPayload, mRawPosition, b, off, n);
+                    mRawPosition += n;
+                    return n;
+                }
+
+                if (!mInflater.needsInput()) {
+                    try {
+                        final int n = mInflater.inflate(b, off, len);
+                        if (n > 0) return n;
+                    } catch (DataFormatException e) {
+                        throw new IOException("Corrupt compressed block", e);
+                    }
+
+                    if (!mInflater.needsInput()) throw new IOException("Corrupt compressed block");
+                }
+
+                if (!readBlock()) return -1;
+            }
+        }
+
+        /**
+         * Lê o próximo bloco. Retorna {@code false} no fim do fluxo.
+         */
+        private boolean readBlock() throws IOException {
+            final int n = mIn.read(mHeader, 0, 1);
+            if (n < 0) return false;
+            readFully(mHeader, 1, HEADER_SIZE - 1);
+
+            final int type = mHeader[0];
+            final int length = ((mHeader[1] & 0xFF) << 8) | (mHeader[2] & 0xFF);
+
+            if (length > mPayload.length) throw new IOException("Invalid compressed block");
+            readFully(mPayload, 0, length);
+
+            if (type == TYPE_RAW) {
+                mRawPosition = 0;
+                mRawLimit = length;
+            } else if (type == TYPE_DEFLATE || type == TYPE_DEFLATE_RESET) {
+                if (type == TYPE_DEFLATE_RESET) mInflater.reset();
+                mInflater.setInput(mPayload, 0, length);
+            } else {
+                throw new IOException("Invalid compressed block");
+            }
+
+            return true;
+        }
+
+        private void readFully(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                final int n = mIn.read(b, off, len);
+                if (n < 0) throw new EOFException();
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public synchronized int available() {
+            return mRawLimit - mRawPosition;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+            release();
+        }
+
+        synchronized void release() {
+            if (isClosed) return;
+            isClosed = true;
+            mInflater.end();
+        }
+    }
+}
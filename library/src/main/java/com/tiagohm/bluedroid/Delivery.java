@@ -0,0 +1,48 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+/**
+ * Em que thread um listener de dados recebidos ({@link BlueDroid.DataReceivedListener},
+ * {@link BlueDroid.BulkDataReceivedListener}, {@link BlueDroid.SessionDataReceivedListener} e
+ * {@link BlueDroid.FrameReceivedListener}) é chamado. Os eventos de conexão, sessão e descoberta
+ * são sempre entregues na thread principal.
+ * <p>
+ * Em todos os modos, os dados de uma mesma sessão chegam na ordem em que foram lidos, e os
+ * arrays passados aos listeners de blocos só são válidos durante a chamada.
+ */
+public enum Delivery {
+    /**
+     * Na thread principal, junto com a interface. Se os listeners demorarem, a leitura da
+     * sessão para quando o buffer de recepção encher.
+     */
+    MAIN,
+    /**
+     * Numa thread compartilhada por todas as sessões ({@code BlueDroid-Dispatch}) ou no executor
+     * de {@link BlueDroid#setBackgroundExecutor(java.util.concurrent.Executor)}. Os dados são
+     * copiados para um buffer próprio de cada sessão: se os listeners demorarem, a leitura da
+     * sessão para quando ele encher. Com um executor de várias threads, sessões diferentes
+     * podem ser entregues ao mesmo tempo.
+     */
+    BACKGROUND,
+    /**
+     * Na própria thread de leitura da sessão, antes dos outros modos e sem cópia: a menor
+     * latência. O listener não deve bloquear, pois a leitura fica parada enquanto ele executa,
+     * e é chamado ao mesmo tempo pelas threads de sessões diferentes.
+     */
+    DIRECT
+}
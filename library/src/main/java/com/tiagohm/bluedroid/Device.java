@@ -17,7 +17,6 @@
 package com.tiagohm.bluedroid;
 
 import android.bluetooth.BluetoothClass;
-import android.util.Log;
 
 import java.io.Serializable;
 
@@ -68,7 +67,6 @@ public class Device implements Serializable {
     }
 
     public int getDeviceClassIcon() {
-        Log.d("TAG", "Device.getDeviceClass() = " + getDeviceClass());
 
         final int deviceClass = getDeviceClass();
         final int deviceClassMasked = deviceClass & 0x1F00;
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dispositivos conhecidos (pareados, encontrados ou conectados), guardados num arquivo para
+ * serem exibidos logo ao abrir o app, sem esperar a descoberta. Os dispositivos não pareados
+ * expiram depois de {@code ttlMillis} sem serem vistos.
+ * <p>
+ * O arquivo é binário e compacto: um cabeçalho e, para cada dispositivo, o endereço MAC em 6
+ * bytes, flags, a classe, o momento em que foi visto pela última vez e o nome.
+ */
+public class DeviceCache {
+
+    public static final String DEFAULT_FILE_NAME = "bluedroid-devices.bin";
+    public static final long DEFAULT_TTL = 7L * 24 * 60 * 60 * 1000;
+
+    private static final String TAG = "TAG";
+    private static final int MAGIC = 0x42444331; //BDC1
+    private static final int FLAG_PAIRED = 1;
+    private static final int FLAG_MAC_ADDRESS = 2;
+    private static final int FLAG_NAME = 4;
+
+    private final File mFile;
+    private final long mTtlMillis;
+    //Ordenado do mais antigo para o mais recente.
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>();
+    //Serializa as gravações, que são feitas sem bloquear quem usa o cache.
+    private final Object mSaveLock = new Object();
+    private boolean isDirty;
+
+    public DeviceCache(File file) {
+        this(file, DEFAULT_TTL);
+    }
+
+    public DeviceCache(File file, long ttlMillis) {
+        mFile = file;
+        mTtlMillis = ttlMillis;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Dispositivos não expirados, do visto mais recentemente para o mais antigo.
+     */
+    public synchronized List<Device> getDevices() {
+        final long now = System.currentTimeMillis();
+        final List<Device> devices = new ArrayList<>(mEntries.size());
+
+        for (Iterator<Entry> it = mEntries.values().iterator(); it.hasNext(); ) {
+            final Entry entry = it.next();
+            if (isExpired(entry, now)) {
+                it.remove();
+                isDirty = true;
+            } else {
+                devices.add(entry.mmDevice);
+            }
+        }
+
+        Collections.reverse(devices);
+        return devices;
+    }
+
+    public synchronized Device get(String address) {
+        final Entry entry = mEntries.get(address);
+        return entry != null && !isExpired(entry, System.currentTimeMillis()) ? entry.mmDevice : null;
+    }
+
+    /**
+     * Adiciona ou atualiza o dispositivo, marcando-o como visto agora.
+     */
+    public synchronized void put(Device device) {
+        put(device, System.currentTimeMillis());
+    }
+
+    /**
+     * Adiciona os dispositivos pareados, que não expiram.
+     */
+    public synchronized void putAll(Collection<Device> devices) {
+        final long now = System.currentTimeMillis();
+        for (Device device : devices) put(device, now);
+    }
+
+    private void put(Device device, long lastSeen) {
+        final Entry current = mEntries.remove(device.getAddress());
+
+        //Mantém o nome conhecido se a descoberta não o informar.
+        if (current != null && device.getName() == null && current.mmDevice.getName() != null) {
+            device = new Device(current.mmDevice.getName(), device.getAddress(), device.isPaired(), device.getDeviceClass());
+        }
+
+        //Reinsere no fim.
+        mEntries.put(device.getAddress(), new Entry(device, lastSeen));
+        isDirty = true;
+    }
+
+    public synchronized void remove(String address) {
+        if (mEntries.remove(address) != null) isDirty = true;
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        isDirty = true;
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return !entry.mmDevice.isPaired() && now - entry.mmLastSeen > mTtlMillis;
+    }
+
+    /**
+     * Lê o arquivo, descartando os dispositivos expirados. Um arquivo inexistente ou inválido
+     * é ignorado. Os dispositivos adicionados antes (ou durante) a leitura são mantidos, como os
+     * mais recentes.
+     */
+    public void load() {
+        final LinkedHashMap<String, Entry> loaded = new LinkedHashMap<>();
+        boolean expired = false;
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+
+            if (in.readInt() != MAGIC) throw new IOException("Invalid device cache: " + mFile);
+
+            final int count = in.readInt();
+            final long now = System.currentTimeMillis();
+
+            for (int i = 0; i < count; i++) {
+                final int flags = in.readUnsignedByte();
+                final String address = (flags & FLAG_MAC_ADDRESS) != 0 ? readMacAddress(in) : in.readUTF();
+                final int deviceClass = in.readInt();
+                final long lastSeen = in.readLong();
+                final String name = (flags & FLAG_NAME) != 0 ? in.readUTF() : null;
+                final Entry entry = new Entry(new Device(name, address, (flags & FLAG_PAIRED) != 0, deviceClass), lastSeen);
+
+                if (isExpired(entry, now)) {
+                    expired = true;
+                } else {
+                    loaded.put(address, entry);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            Log.d(TAG, "DeviceCache.load(): " + mFile + " not found");
+        } catch (IOException e) {
+            Log.d(TAG, "DeviceCache.load(): " + e.getMessage());
+            loaded.clear();
+        } finally {
+            closeQuietly(in);
+        }
+
+        synchronized (this) {
+            isDirty |= expired || !mEntries.isEmpty();
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                loaded.remove(entry.getKey());
+                loaded.put(entry.getKey(), entry.getValue());
+            }
+            mEntries.clear();
+            mEntries.putAll(loaded);
+        }
+    }
+
+    /**
+     * Grava o arquivo se houver mudanças. A gravação é feita num arquivo temporário, que então
+     * substitui o anterior.
+     */
+    public void save() throws IOException {
+        synchronized (mSaveLock) {
+            final Entry[] entries;
+
+            synchronized (this) {
+                if (!isDirty) return;
+                entries = mEntries.values().toArray(new Entry[mEntries.size()]);
+                isDirty = false;
+            }
+
+            try {
+                write(entries);
+            } catch (IOException e) {
+                synchronized (this) {
+                    isDirty = true;
+                }
+                throw e;
+            }
+        }
+    }
+
+    private void write(Entry[] entries) throws IOException {
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(entries.length);
+
+            for (Entry entry : entries) {
+                final Device device = entry.mmDevice;
+                final boolean isMac = isMacAddress(device.getAddress());
+                int flags = 0;
+                if (device.isPaired()) flags |= FLAG_PAIRED;
+                if (isMac) flags |= FLAG_MAC_ADDRESS;
+                if (device.getName() != null) flags |= FLAG_NAME;
+
+                out.writeByte(flags);
+                if (isMac) {
+                    writeMacAddress(out, device.getAddress());
+                } else {
+                    out.writeUTF(device.getAddress());
+                }
+                out.writeInt(device.getDeviceClass());
+                out.writeLong(entry.mmLastSeen);
+                if (device.getName() != null) out.writeUTF(device.getName());
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(mFile)) {
+            tmp.delete();
+            throw new IOException("Unable to replace " + mFile);
+        }
+    }
+
+    private static boolean isMacAddress(String address) {
+        if (address == null || address.length() != 17) return false;
+
+        for (int i = 0; i < 17; i++) {
+            final char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') return false;
+            } else if (Character.digit(c, 16) < 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static void writeMacAddress(DataOutputStream out, String address) throws IOException {
+        for (int i = 0; i < 17; i += 3) {
+            out.writeByte(Integer.parseInt(address.substring(i, i + 2), 16));
+        }
+    }
+
+    private static String readMacAddress(DataInputStream in) throws IOException {
+        final StringBuilder sb = new StringBuilder(17);
+
+        for (int i = 0; i < 6; i++) {
+            if (i > 0) sb.append(':');
+            final int b = in.readUnsignedByte();
+            sb.append(Character.toUpperCase(Character.forDigit(b >> 4, 16)));
+            sb.append(Character.toUpperCase(Character.forDigit(b & 0xF, 16)));
+        }
+
+        return sb.toString();
+    }
+
+    private static void closeQuietly(DataInputStream in) {
+        if (in == null) return;
+        try {
+            in.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static final class Entry {
+        final Device mmDevice;
+        final long mmLastSeen;
+
+        Entry(Device device, long lastSeen) {
+            mmDevice = device;
+            mmLastSeen = lastSeen;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Dispositivos conhecidos e encontrados, indexados pelo endereço MAC. Cada endereço aparece uma
+ * única vez: avistamentos repetidos atualizam o RSSI, o momento em que o dispositivo foi visto
+ * e a contagem de avistamentos.
+ * <p>
+ * Não é thread-safe: o BlueDroid a atualiza na thread principal.
+ */
+public class DeviceRegistry {
+
+    public static final int RSSI_UNKNOWN = Short.MIN_VALUE;
+
+    static final int UNCHANGED = 0;
+    static final int ADDED = 1;
+    static final int UPDATED = 2;
+
+    public static final class Entry {
+        private Device mDevice;
+        private int mRssi = RSSI_UNKNOWN;
+        private long mFirstSeen;
+        private long mLastSeen;
+        private int mSightings;
+
+        Entry(Device device) {
+            mDevice = device;
+        }
+
+        public Device getDevice() {
+            return mDevice;
+        }
+
+        /**
+         * RSSI do último avistamento, em dBm, ou {@link #RSSI_UNKNOWN}.
+         */
+        public int getRssi() {
+            return mRssi;
+        }
+
+        /**
+         * Momento do primeiro avistamento ({@link System#currentTimeMillis()}), ou 0 se o
+         * dispositivo é somente conhecido (pareado ou do cache).
+         */
+        public long getFirstSeen() {
+            return mFirstSeen;
+        }
+
+        public long getLastSeen() {
+            return mLastSeen;
+        }
+
+        public int getSightingCount() {
+            return mSightings;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(64);
+
+    public Entry get(String address) {
+        return mEntries.get(address);
+    }
+
+    public boolean contains(String address) {
+        return mEntries.containsKey(address);
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Cópia da lista de dispositivos, na ordem em que foram adicionados.
+     */
+    public List<Device> getDevices() {
+        final List<Device> devices = new ArrayList<>(mEntries.size());
+        for (Entry entry : mEntries.values()) devices.add(entry.mDevice);
+        return devices;
+    }
+
+    public List<Entry> getEntries() {
+        return new ArrayList<>(mEntries.values());
+    }
+
+    /**
+     * Adiciona um dispositivo conhecido, sem contá-lo como avistado. Retorna a entrada criada,
+     * ou {@code null} se ele já estava registrado.
+     */
+    Entry add(Device device) {
+        if (mEntries.containsKey(device.getAddress())) return null;
+        final Entry entry = new Entry(device);
+        mEntries.put(device.getAddress(), entry);
+        return entry;
+    }
+
+    /**
+     * Registra um avistamento. Retorna {@link #ADDED}, {@link #UPDATED} se o nome, o pareamento ou
+     * o RSSI mudaram, ou {@link #UNCHANGED}.
+     */
+    int put(Device device, int rssi, long now) {
+        Entry entry = mEntries.get(device.getAddress());
+        final int result;
+
+        if (entry == null) {
+            entry = new Entry(device);
+            mEntries.put(device.getAddress(), entry);
+            result = ADDED;
+        } else {
+            final Device current = entry.mDevice;
+            //Mantém o nome conhecido se o avistamento não o informar.
+            if (device.getName() == null && current.getName() != null) {
+                device = new Device(current.getName(), device.getAddress(), device.isPaired(), device.getDeviceClass());
+            }
+
+            final boolean changed = rssi != entry.mRssi || device.isPaired() != current.isPaired() ||
+                    device.getDeviceClass() != current.getDeviceClass() ||
+                    (device.getName() == null ? current.getName() != null : !device.getName().equals(current.getName()));
+            entry.mDevice = device;
+            result = changed ? UPDATED : UNCHANGED;
+        }
+
+        if (entry.mSightings == 0) entry.mFirstSeen = now;
+        entry.mLastSeen = now;
+        entry.mSightings++;
+        entry.mRssi = rssi;
+
+        return result;
+    }
+
+    /**
+     * Remove os dispositivos não pareados que foram avistados alguma vez, mas não desde
+     * {@code time}. Os dispositivos somente conhecidos permanecem.
+     */
+    List<Entry> removeNotSeenSince(long time) {
+        final List<Entry> removed = new ArrayList<>();
+
+        for (Iterator<Entry> it = mEntries.values().iterator(); it.hasNext(); ) {
+            final Entry entry = it.next();
+            if (entry.mSightings > 0 && entry.mLastSeen < time && !entry.mDevice.isPaired()) {
+                it.remove();
+                removed.add(entry);
+            }
+        }
+
+        return removed;
+    }
+
+    Collection<Entry> clear() {
+        final List<Entry> removed = new ArrayList<>(mEntries.values());
+        mEntries.clear();
+        return removed;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+/**
+ * Codifica e decodifica pacotes binários.
+ * <p>
+ * A decodificação roda na thread de leitura do {@link BlueService}, sobre os blocos recebidos,
+ * e somente pacotes completos e válidos chegam ao {@link Listener}. Cada instância guarda o
+ * estado de um único fluxo de dados e não deve ser compartilhada entre conexões.
+ *
+ * @see LengthPrefixedFrameCodec
+ * @see CobsFrameCodec
+ */
+public interface FrameCodec {
+
+    /**
+     * Recebe o conteúdo (sem cabeçalho, delimitador ou CRC) de um pacote válido, na thread de
+     * leitura. O array pertence ao codec e é reutilizado após o retorno.
+     */
+    interface Listener {
+        void onFrameDecoded(byte[] frame, int offset, int length);
+    }
+
+    void decode(byte[] buffer, int offset, int length, Listener listener);
+
+    /**
+     * Retorna o pacote pronto para ser enviado.
+     */
+    byte[] encode(byte[] data, int offset, int length);
+
+    /**
+     * Descarta o pacote parcialmente recebido.
+     */
+    void reset();
+
+    /**
+     * Quantidade de pacotes descartados por CRC inválido, tamanho excessivo ou formato inválido.
+     */
+    long getDroppedFrames();
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import java.nio.ByteOrder;
+import java.util.zip.Checksum;
+
+/**
+ * Pacotes no formato {@code [tamanho][conteúdo][CRC]}, onde o tamanho (de 1, 2 ou 4 bytes)
+ * conta somente o conteúdo. O CRC, se houver, é calculado sobre o conteúdo e usa a mesma
+ * ordem de bytes do tamanho.
+ */
+public class LengthPrefixedFrameCodec implements FrameCodec {
+
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 4096;
+
+    private final int mHeaderWidth;
+    private final ByteOrder mOrder;
+    private final ChecksumType mChecksumType;
+    private final int mMaxFrameLength;
+    private final Checksum mDecodeChecksum;
+    private final Checksum mEncodeChecksum;
+    private final byte[] mFrame;
+
+    private long mHeader;
+    private int mHeaderRead;
+    private boolean isReadingBody;
+    private int mBodyLength;
+    private int mBodyRead;
+    private long mSkip;
+    private long mDroppedFrames;
+
+    public LengthPrefixedFrameCodec(int headerWidth, ByteOrder order) {
+        this(headerWidth, order, ChecksumType.NONE, DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    public LengthPrefixedFrameCodec(int headerWidth, ByteOrder order, ChecksumType checksum, int maxFrameLength) {
+        if (headerWidth != 1 && headerWidth != 2 && headerWidth != 4) {
+            throw new IllegalArgumentException("headerWidth must be 1, 2 or 4");
+        }
+
+        mHeaderWidth = headerWidth;
+        mOrder = order;
+        mChecksumType = checksum;
+        mMaxFrameLength = Math.min(maxFrameLength, (int) Math.min(Integer.MAX_VALUE - 8, (1L << (8 * headerWidth)) - 1));
+        mDecodeChecksum = checksum.create();
+        mEncodeChecksum = checksum.create();
+        mFrame = new byte[mMaxFrameLength + checksum.width];
+    }
+
+    @Override
+    public void decode(byte[] buffer, int offset, int length, Listener listener) {
+        final int end = offset + length;
+        int i = offset;
+
+        while (i < end) {
+            //Descartando um pacote grande demais.
+            if (mSkip > 0) {
+                final int n = (int) Math.min(mSkip, end - i);
+                mSkip -= n;
+                i += n;
+                continue;
+            }
+
+            if (!isReadingBody) {
+                final int b = buffer[i++] & 0xFF;
+                mHeader = mOrder == ByteOrder.BIG_ENDIAN ? (mHeader << 8) | b : mHeader | ((long) b << (8 * mHeaderRead));
+
+                if (++mHeaderRead == mHeaderWidth) {
+                    if (mHeader > mMaxFrameLength) {
+                        mDroppedFrames++;
+                        mSkip = mHeader + mChecksumType.width;
+                    } else {
+                        isReadingBody = true;
+                        mBodyLength = (int) mHeader + mChecksumType.width;
+                        mBodyRead = 0;
+                        if (mBodyLength == 0) complete(mFrame, 0, listener);
+                    }
+                    mHeader = 0;
+                    mHeaderRead = 0;
+                }
+                continue;
+            }
+
+            final int remaining = mBodyLength - mBodyRead;
+
+            //O pacote inteiro está neste bloco: entrega sem copiar.
+            if (mBodyRead == 0 && end - i >= remaining) {
+                complete(buffer, i, listener);
+                i += remaining;
+                continue;
+            }
+
+            final int n = Math.min(remaining, end - i);
+            System.arraycopy(buffer, i, mFrame, mBodyRead, n);
+            mBodyRead += n;
+            i += n;
+
+            if (mBodyRead == mBodyLength) complete(mFrame, 0, listener);
+        }
+    }
+
+    private void complete(byte[] buffer, int offset, Listener listener) {
+        isReadingBody = false;
+
+        final int length = mBodyLength - mChecksumType.width;
+
+        if (mDecodeChecksum != null) {
+            mDecodeChecksum.reset();
+            mDecodeChecksum.update(buffer, offset, length);
+            final long expected = BlueUtils.readUnsigned(buffer, offset + length, mChecksumType.width, mOrder);
+            if (mDecodeChecksum.getValue() != expected) {
+                mDroppedFrames++;
+                return;
+            }
+        }
+
+        listener.onFrameDecoded(buffer, offset, length);
+    }
+
+    @Override
+    public byte[] encode(byte[] data, int offset, int length) {
+        if (length > mMaxFrameLength) {
+            throw new IllegalArgumentException("Frame too long: " + length);
+        }
+
+        final byte[] frame = new byte[mHeaderWidth + length + mChecksumType.width];
+        BlueUtils.writeUnsigned(length, frame, 0, mHeaderWidth, mOrder);
+        System.arraycopy(data, offset, frame, mHeaderWidth, length);
+
+        if (mEncodeChecksum != null) {
+            synchronized (mEncodeChecksum) {
+                mEncodeChecksum.reset();
+                mEncodeChecksum.update(data, offset, length);
+                BlueUtils.writeUnsigned(mEncodeChecksum.getValue(), frame, mHeaderWidth + length, mChecksumType.width, mOrder);
+            }
+        }
+
+        return frame;
+    }
+
+    @Override
+    public void reset() {
+        mHeader = 0;
+        mHeaderRead = 0;
+        isReadingBody = false;
+        mSkip = 0;
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+}
@@ -25,9 +25,24 @@ public enum LineBreakType {
     LF(2),
     CR(3);
 
+    private static final byte[] BYTES_CRLF = {0x0D, 0x0A};
+    private static final byte[] BYTES_LF = {0x0A};
+    private static final byte[] BYTES_CR = {0x0D};
+
     public final int value;
 
     LineBreakType(int value) {
         this.value = value;
     }
+
+    /**
+     * Bytes do separador, compartilhados entre todos os envios (não devem ser alterados),
+     * ou {@code null} para {@link #NONE}.
+     */
+    byte[] bytes() {
+        if (value == CRLF.value) return BYTES_CRLF;
+        if (value == LF.value) return BYTES_LF;
+        if (value == CR.value) return BYTES_CR;
+        return null;
+    }
 }
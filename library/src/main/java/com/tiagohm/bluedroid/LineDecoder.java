@@ -0,0 +1,148 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+/**
+ * Separa os dados recebidos em linhas, conforme o {@link LineBreakType}.
+ * <p>
+ * Registre-o com {@link BlueDroid#addBulkDataReceivedListener(BlueDroid.BulkDataReceivedListener)}.
+ * Linhas que chegam inteiras num mesmo bloco são entregues sem cópia; somente o início de uma
+ * linha que continua no próximo bloco é guardado num buffer de tamanho fixo. Linhas maiores
+ * que o limite são descartadas até o próximo separador.
+ * <p>
+ * Com {@link LineBreakType#NONE}, qualquer um entre CR, LF e CRLF encerra a linha.
+ */
+public class LineDecoder implements BlueDroid.BulkDataReceivedListener {
+
+    /**
+     * Recebe uma linha sem o separador. Assim como em
+     * {@link BlueDroid.BulkDataReceivedListener}, o array é reutilizado após o retorno.
+     */
+    public interface LineReceivedListener {
+        void onLineReceived(byte[] line, int offset, int length);
+    }
+
+    public static final int DEFAULT_MAX_LINE_LENGTH = 1024;
+
+    private static final byte CR = 0x0D;
+    private static final byte LF = 0x0A;
+
+    private final int mLineBreak;
+    private final LineReceivedListener mListener;
+    private final byte[] mPending;
+    private int mPendingLength;
+    private boolean isDiscarding;
+    private boolean isLastCr;
+    private long mDroppedLines;
+
+    public LineDecoder(LineBreakType lbt, LineReceivedListener listener) {
+        this(lbt, DEFAULT_MAX_LINE_LENGTH, listener);
+    }
+
+    public LineDecoder(LineBreakType lbt, int maxLineLength, LineReceivedListener listener) {
+        mLineBreak = lbt.value;
+        mListener = listener;
+        mPending = new byte[maxLineLength];
+    }
+
+    /**
+     * Quantidade de linhas descartadas por excederem o tamanho máximo.
+     */
+    public long getDroppedLines() {
+        return mDroppedLines;
+    }
+
+    /**
+     * Descarta a linha incompleta, por exemplo ao reconectar.
+     */
+    public void reset() {
+        mPendingLength = 0;
+        isDiscarding = false;
+        isLastCr = false;
+    }
+
+    @Override
+    public void onDataReceived(byte[] buffer, int offset, int length) {
+        final int end = offset + length;
+        int start = offset;
+
+        for (int i = offset; i < end; i++) {
+            final byte b = buffer[i];
+
+            if (mLineBreak == LineBreakType.NONE.value) {
+                if (b == LF && isLastCr && i == start && mPendingLength == 0 && !isDiscarding) {
+                    //LF de um CRLF.
+                    isLastCr = false;
+                    start = i + 1;
+                    continue;
+                }
+                isLastCr = b == CR;
+                if (b != CR && b != LF) continue;
+            } else if (mLineBreak == LineBreakType.CR.value) {
+                if (b != CR) continue;
+            } else if (b != LF) {
+                continue;
+            }
+
+            emit(buffer, start, i - start);
+            start = i + 1;
+        }
+
+        if (start < end) append(buffer, start, end - start);
+    }
+
+    private void emit(byte[] buffer, int offset, int length) {
+        if (isDiscarding || mPendingLength + length > mPending.length) {
+            isDiscarding = false;
+            mPendingLength = 0;
+            mDroppedLines++;
+            return;
+        }
+
+        byte[] line = buffer;
+        int lineOffset = offset;
+        int lineLength = length;
+
+        //Parte da linha chegou no bloco anterior.
+        if (mPendingLength > 0) {
+            System.arraycopy(buffer, offset, mPending, mPendingLength, length);
+            line = mPending;
+            lineOffset = 0;
+            lineLength = mPendingLength + length;
+            mPendingLength = 0;
+        }
+
+        if (mLineBreak == LineBreakType.CRLF.value && lineLength > 0 && line[lineOffset + lineLength - 1] == CR) {
+            lineLength--;
+        }
+
+        mListener.onLineReceived(line, lineOffset, lineLength);
+    }
+
+    private void append(byte[] buffer, int offset, int length) {
+        if (isDiscarding) return;
+
+        if (mPendingLength + length > mPending.length) {
+            isDiscarding = true;
+            mPendingLength = 0;
+            return;
+        }
+
+        System.arraycopy(buffer, offset, mPending, mPendingLength, length);
+        mPendingLength += length;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import java.util.Arrays;
+
+/**
+ * Lista de listeners copy-on-write. Adicionar e remover trocam um array imutável; quem dispara
+ * os eventos percorre {@link #array()} sem locks e sem alocar, e pode fazê-lo em qualquer
+ * thread, mesmo durante uma alteração: cada disparo vê a lista de antes ou a de depois.
+ * <p>
+ * Diferente de uma {@code ArrayList}, um listener (comparado por {@code equals}) entra só uma
+ * vez: adicioná-lo de novo não faz nada, e uma única remoção o retira.
+ */
+final class ListenerList<T> {
+
+    private volatile T[] mListeners;
+
+    /**
+     * @param empty array vazio do tipo dos listeners.
+     */
+    ListenerList(T[] empty) {
+        mListeners = empty;
+    }
+
+    /**
+     * Listeners atuais. O array não deve ser modificado.
+     */
+    T[] array() {
+        return mListeners;
+    }
+
+    boolean isEmpty() {
+        return mListeners.length == 0;
+    }
+
+    int size() {
+        return mListeners.length;
+    }
+
+    boolean contains(Object listener) {
+        return indexOf(mListeners, listener) >= 0;
+    }
+
+    /**
+     * Adiciona o listener, se ainda não estiver na lista. Retorna {@code false} se já estava.
+     */
+    synchronized boolean add(T listener) {
+        final T[] listeners = mListeners;
+        if (indexOf(listeners, listener) >= 0) return false;
+
+        final T[] copy = Arrays.copyOf(listeners, listeners.length + 1);
+        copy[listeners.length] = listener;
+        mListeners = copy;
+        return true;
+    }
+
+    synchronized boolean remove(Object listener) {
+        final T[] listeners = mListeners;
+        final int index = indexOf(listeners, listener);
+        if (index < 0) return false;
+
+        final T[] copy = Arrays.copyOf(listeners, listeners.length - 1);
+        System.arraycopy(listeners, index + 1, copy, index, listeners.length - index - 1);
+        mListeners = copy;
+        return true;
+    }
+
+    synchronized void clear() {
+        mListeners = Arrays.copyOf(mListeners, 0);
+    }
+
+    private static int indexOf(Object[] listeners, Object listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i].equals(listener)) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Transporte em memória. Vários transportes que compartilham a mesma {@link Network}
+ * podem se conectar entre si pelo endereço informado no construtor, sem Bluetooth.
+ * <p>
+ * Útil para testes e benchmarks numa JVM comum:
+ * <pre>
+ * LoopbackTransport.Network network = new LoopbackTransport.Network();
+ * BlueService server = new BlueService(callback, new LoopbackTransport(network, "00:00:00:00:00:01"));
+ * BlueService client = new BlueService(callback, new LoopbackTransport(network, "00:00:00:00:00:02"));
+ * server.start(false, true);
+ * client.connect("00:00:00:00:00:01");
+ * </pre>
+ */
+public class LoopbackTransport implements Transport, CompressedTransport.ChannelProvider {
+
+    public static final int DEFAULT_PIPE_SIZE = 64 * 1024;
+
+    private final Network mNetwork;
+    private final String mAddress;
+    private final int mPipeSize;
+    /**
+     * Separa os canais de um mesmo endereço na {@link Network}.
+     */
+    private final String mChannel;
+
+    public LoopbackTransport(Network network, String address) {
+        this(network, address, DEFAULT_PIPE_SIZE);
+    }
+
+    public LoopbackTransport(Network network, String address, int pipeSize) {
+        this(network, address, pipeSize, "");
+    }
+
+    private LoopbackTransport(Network network, String address, int pipeSize, String channel) {
+        mNetwork = network;
+        mAddress = address;
+        mPipeSize = pipeSize;
+        mChannel = channel;
+    }
+
+    @Override
+    public Transport getCompressedChannel() {
+        return new LoopbackTransport(mNetwork, mAddress, mPipeSize, mChannel + "#compressed");
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public Transport.Connection open(String address, boolean android, boolean secure) {
+        return new OutgoingConnection(address);
+    }
+
+    @Override
+    public Transport.Acceptor listen(boolean android, boolean secure) throws IOException {
+        Acceptor acceptor = new Acceptor();
+        mNetwork.bind(mAddress + mChannel, acceptor);
+        return acceptor;
+    }
+
+    /**
+     * Conjunto de endereços visíveis entre si.
+     */
+    public static class Network {
+        private final Map<String, Acceptor> mAcceptors = new HashMap<>();
+
+        synchronized void bind(String address, Acceptor acceptor) throws IOException {
+            Acceptor current = mAcceptors.get(address);
+            if (current != null && !current.isClosed()) {
+                throw new IOException("Address already in use: " + address);
+            }
+            mAcceptors.put(address, acceptor);
+        }
+
+        synchronized void unbind(String address, Acceptor acceptor) {
+            if (mAcceptors.get(address) == acceptor) {
+                mAcceptors.remove(address);
+            }
+        }
+
+        synchronized Acceptor lookup(String address) {
+            return mAcceptors.get(address);
+        }
+    }
+
+    /**
+     * Canal unidirecional com buffer circular limitado. A escrita bloqueia quando está cheio
+     * e a leitura bloqueia quando está vazio, como um socket.
+     */
+    static class Pipe {
+        private final byte[] mBuffer;
+        private int mReadPos;
+        private int mCount;
+        private boolean isClosed;
+
+        Pipe(int size) {
+            mBuffer = new byte[size];
+        }
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+
+            try {
+                while (mCount == 0) {
+                    if (isClosed) return -1;
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+
+            int total = 0;
+            while (total < len && mCount > 0) {
+                int n = Math.min(len - total, Math.min(mCount, mBuffer.length - mReadPos));
+                System.arraycopy(mBuffer, mReadPos, b, off + total, n);
+                mReadPos = (mReadPos + n) % mBuffer.length;
+                mCount -= n;
+                total += n;
+            }
+
+            notifyAll();
+            return total;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            try {
+                while (len > 0) {
+                    if (isClosed) throw new IOException("Pipe closed");
+
+                    if (mCount == mBuffer.length) {
+                        wait();
+                        continue;
+                    }
+
+                    int writePos = (mReadPos + mCount) % mBuffer.length;
+                    int n = Math.min(len, Math.min(mBuffer.length - mCount, mBuffer.length - writePos));
+                    System.arraycopy(b, off, mBuffer, writePos, n);
+                    mCount += n;
+                    off += n;
+                    len -= n;
+                    notifyAll();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        synchronized int available() {
+            return mCount;
+        }
+
+        synchronized void close() {
+            isClosed = true;
+            notifyAll();
+        }
+    }
+
+    private static class PipeInputStream extends InputStream {
+        private final Pipe mPipe;
+        private final byte[] mSingle = new byte[1];
+
+        PipeInputStream(Pipe pipe) {
+            mPipe = pipe;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(mSingle, 0, 1) < 0 ? -1 : mSingle[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return mPipe.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            return mPipe.available();
+        }
+
+        @Override
+        public void close() {
+            mPipe.close();
+        }
+    }
+
+    private static class PipeOutputStream extends OutputStream {
+        private final Pipe mPipe;
+        private final byte[] mSingle = new byte[1];
+
+        PipeOutputStream(Pipe pipe) {
+            mPipe = pipe;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mSingle[0] = (byte) b;
+            mPipe.write(mSingle, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mPipe.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            mPipe.close();
+        }
+    }
+
+    /**
+     * Uma das pontas de um par de {@link Pipe}s.
+     */
+    private static class PipeConnection implements Transport.Connection {
+        private final String mmAddress;
+        private final Pipe mmIn;
+        private final Pipe mmOut;
+        private final InputStream mmInStream;
+        private final OutputStream mmOutStream;
+
+        PipeConnection(String address, Pipe in, Pipe out) {
+            mmAddress = address;
+            mmIn = in;
+            mmOut = out;
+            mmInStream = new PipeInputStream(in);
+            mmOutStream = new PipeOutputStream(out);
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return mmInStream;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mmOutStream;
+        }
+
+        @Override
+        public String getAddress() {
+            return mmAddress;
+        }
+
+        @Override
+        public void close() {
+            mmIn.close();
+            mmOut.close();
+        }
+    }
+
+    private class OutgoingConnection implements Transport.Connection {
+        private final String mmRemoteAddress;
+        private PipeConnection mmConnection;
+        private boolean isClosed;
+
+        OutgoingConnection(String address) {
+            mmRemoteAddress = address;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            final Acceptor acceptor = mNetwork.lookup(mmRemoteAddress + mChannel);
+            if (acceptor == null) throw new IOException("Connection refused: " + mmRemoteAddress);
+
+            final Pipe up = new Pipe(mPipeSize);
+            final Pipe down = new Pipe(mPipeSize);
+
+            synchronized (this) {
+                if (isClosed) throw new IOException("Connection closed");
+                mmConnection = new PipeConnection(mmRemoteAddress, down, up);
+            }
+
+            acceptor.offer(new PipeConnection(mAddress, up, down));
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (mmConnection == null) throw new IOException("Not connected");
+            return mmConnection.getInputStream();
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (mmConnection == null) throw new IOException("Not connected");
+            return mmConnection.getOutputStream();
+        }
+
+        @Override
+        public String getAddress() {
+            return mmRemoteAddress;
+        }
+
+        @Override
+        public synchronized void close() {
+            isClosed = true;
+            if (mmConnection != null) mmConnection.close();
+        }
+    }
+
+    private class Acceptor implements Transport.Acceptor {
+        private final ArrayDeque<PipeConnection> mmPending = new ArrayDeque<>();
+        private boolean isClosed;
+
+        synchronized void offer(PipeConnection connection) throws IOException {
+            if (isClosed) {
+                connection.close();
+                throw new IOException("Connection refused: " + mAddress);
+            }
+            mmPending.add(connection);
+            notifyAll();
+        }
+
+        synchronized boolean isClosed() {
+            return isClosed;
+        }
+
+        @Override
+        public synchronized Transport.Connection accept() throws IOException {
+            try {
+                while (mmPending.isEmpty()) {
+                    if (isClosed) throw new IOException("Acceptor closed");
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            return mmPending.poll();
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                isClosed = true;
+                for (PipeConnection connection : mmPending) connection.close();
+                mmPending.clear();
+                notifyAll();
+            }
+            mNetwork.unbind(mAddress + mChannel, this);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+/**
+ * O que fazer com um envio quando a fila de saída está cheia.
+ */
+public enum OverflowPolicy {
+    /**
+     * Bloqueia quem enviou até haver espaço na fila.
+     */
+    BLOCK,
+    /**
+     * Rejeita o envio: o {@link BlueFuture} retornado falha imediatamente.
+     */
+    FAIL,
+    /**
+     * Descarta os envios mais antigos ainda não iniciados (os seus {@link BlueFuture}s falham).
+     */
+    DROP_OLDEST
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import java.util.Random;
+
+/**
+ * Quando tentar reconectar uma sessão aberta por {@link BlueService#connect(String)} que perdeu
+ * a conexão ou não conseguiu conectar.
+ * <p>
+ * A primeira tentativa é imediata. As seguintes aguardam {@code initialDelayMillis}, multiplicado
+ * por {@code multiplier} a cada tentativa até {@code maxDelayMillis}, menos uma fração aleatória
+ * de até {@code jitter} do intervalo, para que vários dispositivos não tentem ao mesmo tempo.
+ */
+public class ReconnectPolicy {
+
+    /**
+     * Sem limite de tentativas.
+     */
+    public static final int UNLIMITED = 0;
+
+    /**
+     * Imediata, depois 250 ms, 500 ms, 1 s, ... até 30 s, sem limite de tentativas.
+     */
+    public static final ReconnectPolicy DEFAULT = new ReconnectPolicy(250, 30 * 1000, UNLIMITED);
+
+    private final long mInitialDelayMillis;
+    private final long mMaxDelayMillis;
+    private final double mMultiplier;
+    private final double mJitter;
+    private final int mMaxAttempts;
+    private final Random mRandom = new Random();
+
+    public ReconnectPolicy(long initialDelayMillis, long maxDelayMillis, int maxAttempts) {
+        this(initialDelayMillis, maxDelayMillis, 2, 0.2, maxAttempts);
+    }
+
+    /**
+     * @param jitter      fração do intervalo, entre 0 e 1, que pode ser descontada aleatoriamente.
+     * @param maxAttempts quantidade máxima de tentativas seguidas, ou {@link #UNLIMITED}.
+     */
+    public ReconnectPolicy(long initialDelayMillis, long maxDelayMillis, double multiplier,
+                           double jitter, int maxAttempts) {
+        if (initialDelayMillis < 0 || maxDelayMillis < initialDelayMillis) {
+            throw new IllegalArgumentException("Invalid delays: " + initialDelayMillis + ", " + maxDelayMillis);
+        }
+        if (multiplier < 1 || jitter < 0 || jitter > 1 || maxAttempts < 0) {
+            throw new IllegalArgumentException("Invalid policy");
+        }
+
+        mInitialDelayMillis = initialDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+        mMultiplier = multiplier;
+        mJitter = jitter;
+        mMaxAttempts = maxAttempts;
+    }
+
+    /**
+     * Verifica se a tentativa (a partir de 1) deve ser feita.
+     */
+    public boolean canRetry(int attempt) {
+        return mMaxAttempts == UNLIMITED || attempt <= mMaxAttempts;
+    }
+
+    /**
+     * Intervalo antes da tentativa (a partir de 1).
+     */
+    public long getDelayMillis(int attempt) {
+        if (attempt <= 1) return 0;
+
+        final double delay = Math.min(mInitialDelayMillis * Math.pow(mMultiplier, attempt - 2), mMaxDelayMillis);
+        return (long) (delay - delay * mJitter * mRandom.nextDouble());
+    }
+
+    public long getInitialDelayMillis() {
+        return mInitialDelayMillis;
+    }
+
+    public long getMaxDelayMillis() {
+        return mMaxDelayMillis;
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pedidos e respostas sobre uma {@link BlueSession}, para dispositivos de comando e resposta
+ * (ELM327, gateways Modbus, módulos AT). Vários pedidos podem aguardar resposta ao mesmo tempo:
+ * cada um é enviado assim que feito, e as respostas são separadas e associadas conforme o
+ * {@link ResponseMatcher}.
+ * <p>
+ * Registre-o para receber os dados das sessões, de preferência com {@link Delivery#DIRECT}; os
+ * dados das outras sessões são ignorados:
+ * <pre>
+ * RequestPipeline obd = new RequestPipeline(sessao, ResponseMatcher.terminator((byte) '&gt;'));
+ * bt.addSessionDataReceivedListener(obd, Delivery.DIRECT);
+ * obd.request(comando, 1000).addCallback(...);
+ * </pre>
+ * Os resultados são concluídos na thread que entregar os dados; com {@link Delivery#DIRECT},
+ * a thread de leitura: não bloqueie nos callbacks.
+ * <p>
+ * Associando pela ordem de envio, um pedido cancelado ou sem resposta no prazo continua na
+ * fila, e a sua resposta, se chegar depois, é descartada. Se o dispositivo puder não
+ * responder, use um identificador ({@link ResponseMatcher#withSequenceId(int, int)}) ou
+ * {@link #reset()}.
+ */
+public class RequestPipeline implements BlueDroid.SessionDataReceivedListener {
+
+    public static final int DEFAULT_MAX_RESPONSE_LENGTH = 4 * 1024;
+
+    private final BlueSession mSession;
+    private final ResponseMatcher mMatcher;
+    private final byte[] mBuffer;
+    private final ArrayDeque<Request> mOrdered = new ArrayDeque<>();
+    private final Map<Integer, Request> mById = new HashMap<>();
+    /**
+     * Mantém a ordem de envio igual à ordem da fila sem segurar o monitor do pipeline, que a
+     * thread de leitura precisa, enquanto o envio aguarda espaço na fila de saída.
+     */
+    private final Object mSendLock = new Object();
+    private int mLength;
+    private boolean isDiscarding;
+    private long mUnmatchedResponses;
+    private long mDroppedBytes;
+
+    public RequestPipeline(BlueSession session, ResponseMatcher matcher) {
+        this(session, matcher, DEFAULT_MAX_RESPONSE_LENGTH);
+    }
+
+    /**
+     * @param maxResponseLength respostas maiores são descartadas até o fim do quadro, e o pedido a
+     *                          que pertenciam falha com {@link IOException}.
+     */
+    public RequestPipeline(BlueSession session, ResponseMatcher matcher, int maxResponseLength) {
+        mSession = session;
+        mMatcher = matcher;
+        mBuffer = new byte[maxResponseLength];
+    }
+
+    public BlueFuture<byte[]> request(byte[] data) {
+        return request(data, 0, data.length, 0);
+    }
+
+    public BlueFuture<byte[]> request(byte[] data, long timeoutMillis) {
+        return request(data, 0, data.length, timeoutMillis);
+    }
+
+    /**
+     * Envia o pedido sem copiá-lo (o array não deve ser alterado até a resposta) e retorna a
+     * resposta, sem o que o {@link ResponseMatcher} descartar. Falha com
+     * {@link java.util.concurrent.TimeoutException} se ela não chegar em {@code timeoutMillis}
+     * milissegundos (0 para aguardar indefinidamente), ou com o erro do envio.
+     */
+    public BlueFuture<byte[]> request(byte[] data, int offset, int length, long timeoutMillis) {
+        final int id = mMatcher.requestId(data, offset, length);
+        final Request request = new Request(id);
+        final BlueFuture<Integer> write;
+
+        //A ordem da fila tem que ser a ordem de envio.
+        synchronized (mSendLock) {
+            synchronized (this) {
+                if (id == ResponseMatcher.NO_ID) {
+                    mOrdered.add(request);
+                } else if (mById.containsKey(id)) {
+                    return BlueFuture.failed(new IllegalStateException("Request id " + id + " already in flight"));
+                } else {
+                    mById.put(id, request);
+                }
+            }
+
+            write = mSession.writeAsync(data, offset, length);
+        }
+
+        write.addCallback(new BlueFuture.Callback<Integer>() {
+            @Override
+            public void onSuccess(Integer result) {
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                //Não foi enviado: não há resposta a esperar.
+                remove(request);
+                request.mmFuture.fail(error);
+            }
+        });
+
+        request.mmFuture.timeout(timeoutMillis).addCallback(new BlueFuture.Callback<byte[]>() {
+            @Override
+            public void onSuccess(byte[] result) {
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                abandon(request);
+            }
+        });
+
+        return request.mmFuture;
+    }
+
+    /**
+     * Quantidade de pedidos aguardando resposta, inclusive os abandonados que ainda ocupam o seu
+     * lugar na fila.
+     */
+    public synchronized int getPendingCount() {
+        return mOrdered.size() + mById.size();
+    }
+
+    /**
+     * Respostas sem pedido correspondente, ou que chegaram depois de o pedido ser abandonado.
+     */
+    public synchronized long getUnmatchedResponses() {
+        return mUnmatchedResponses;
+    }
+
+    /**
+     * Bytes descartados por pertencerem a respostas maiores que o limite.
+     */
+    public synchronized long getDroppedBytes() {
+        return mDroppedBytes;
+    }
+
+    /**
+     * Falha todos os pedidos pendentes e descarta a resposta incompleta, por exemplo depois de
+     * reconectar ou de perder o sincronismo com o dispositivo.
+     */
+    public void reset() {
+        final List<Request> requests;
+
+        synchronized (this) {
+            requests = new ArrayList<>(mOrdered);
+            requests.addAll(mById.values());
+            mOrdered.clear();
+            mById.clear();
+            mLength = 0;
+            isDiscarding = false;
+        }
+
+        final IOException error = new IOException("Pipeline reset");
+        for (Request request : requests) request.mmFuture.fail(error);
+    }
+
+    @Override
+    public void onDataReceived(BlueSession session, byte[] buffer, int offset, int length) {
+        if (session != mSession) return;
+
+        while (length > 0) {
+            final int n;
+            List<Request> completed = null;
+            Request overflowed = null;
+
+            synchronized (this) {
+                n = Math.min(length, mBuffer.length - mLength);
+                System.arraycopy(buffer, offset, mBuffer, mLength, n);
+                mLength += n;
+
+                if (isDiscarding) discard();
+
+                if (!isDiscarding) {
+                    completed = extract();
+
+                    //Buffer cheio sem nenhuma resposta completa: o resto dela também é descartado.
+                    if (mLength == mBuffer.length) {
+                        overflowed = match(mMatcher.responseId(mBuffer, 0, mLength));
+                        mDroppedBytes += mLength;
+                        mLength = 0;
+                        isDiscarding = true;
+                    }
+                }
+            }
+
+            offset += n;
+            length -= n;
+
+            if (completed != null) {
+                for (Request request : completed) request.mmFuture.complete(request.mmResponse);
+            }
+
+            if (overflowed != null) {
+                overflowed.mmFuture.fail(new IOException("Response longer than " + mBuffer.length + " bytes"));
+            }
+        }
+    }
+
+    /**
+     * Descarta o resto de uma resposta grande demais, até o fim do primeiro quadro.
+     */
+    private void discard() {
+        final int end = mMatcher.frameLength(mBuffer, 0, mLength);
+
+        if (end > 0) {
+            mDroppedBytes += end;
+            System.arraycopy(mBuffer, end, mBuffer, 0, mLength - end);
+            mLength -= end;
+            isDiscarding = false;
+        } else if (mLength == mBuffer.length) {
+            mDroppedBytes += mLength;
+            mLength = 0;
+        }
+    }
+
+    /**
+     * Separa as respostas completas e retorna os pedidos a concluir, ou {@code null}.
+     */
+    private List<Request> extract() {
+        List<Request> completed = null;
+        int start = 0;
+        int frameLength;
+
+        while (start < mLength && (frameLength = mMatcher.frameLength(mBuffer, start, mLength - start)) > 0) {
+            final int responseLength = mMatcher.responseLength(mBuffer, start, frameLength);
+            final Request request = match(mMatcher.responseId(mBuffer, start, responseLength));
+
+            if (request != null) {
+                request.mmResponse = Arrays.copyOfRange(mBuffer, start, start + responseLength);
+                if (completed == null) completed = new ArrayList<>(2);
+                completed.add(request);
+            } else {
+                mUnmatchedResponses++;
+            }
+
+            start += frameLength;
+        }
+
+        if (start > 0) {
+            System.arraycopy(mBuffer, start, mBuffer, 0, mLength - start);
+            mLength -= start;
+        }
+
+        return completed;
+    }
+
+    private Request match(int id) {
+        if (id != ResponseMatcher.NO_ID) return mById.remove(id);
+
+        final Request request = mOrdered.poll();
+        return request == null || request.isAbandoned ? null : request;
+    }
+
+    private synchronized void remove(Request request) {
+        if (request.mmId == ResponseMatcher.NO_ID) {
+            mOrdered.remove(request);
+        } else if (mById.get(request.mmId) == request) {
+            mById.remove(request.mmId);
+        }
+    }
+
+    /**
+     * Cancelado ou sem resposta no prazo. Na ordem de envio, continua na fila até a sua resposta.
+     */
+    private synchronized void abandon(Request request) {
+        if (request.mmId == ResponseMatcher.NO_ID) {
+            request.isAbandoned = true;
+        } else if (mById.get(request.mmId) == request) {
+            mById.remove(request.mmId);
+        }
+    }
+
+    private static final class Request {
+        final int mmId;
+        final BlueFuture<byte[]> mmFuture = new BlueFuture<>();
+        byte[] mmResponse;
+        boolean isAbandoned;
+
+        Request(int id) {
+            mmId = id;
+        }
+    }
+}
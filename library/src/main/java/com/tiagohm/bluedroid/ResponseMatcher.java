@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+/**
+ * Regras do {@link RequestPipeline} para separar as respostas nos dados recebidos e associá-las
+ * aos pedidos.
+ * <p>
+ * Sem identificador ({@link #NO_ID}), as respostas são associadas aos pedidos na ordem de envio.
+ * Com identificador, cada resposta vai para o pedido com o mesmo identificador, em qualquer
+ * ordem.
+ *
+ * @see #terminator(byte...)
+ * @see #withSequenceId(int, int)
+ */
+public abstract class ResponseMatcher {
+
+    public static final int NO_ID = -1;
+
+    /**
+     * Procura o fim da primeira resposta nos bytes acumulados desde o fim da anterior. Retorna
+     * a quantidade de bytes que ela ocupa, ou 0 se ainda não estiver completa.
+     */
+    public abstract int frameLength(byte[] buffer, int offset, int length);
+
+    /**
+     * Quantos bytes do início da resposta são entregues ao pedido. Por padrão, todos.
+     */
+    public int responseLength(byte[] buffer, int offset, int frameLength) {
+        return frameLength;
+    }
+
+    /**
+     * Identificador do pedido, ou {@link #NO_ID} para associá-lo pela ordem de envio.
+     */
+    public int requestId(byte[] request, int offset, int length) {
+        return NO_ID;
+    }
+
+    /**
+     * Identificador da resposta (sem o que foi descartado por
+     * {@link #responseLength(byte[], int, int)}), ou {@link #NO_ID} para entregá-la ao pedido
+     * mais antigo.
+     */
+    public int responseId(byte[] response, int offset, int length) {
+        return NO_ID;
+    }
+
+    /**
+     * Respostas terminadas por {@code terminator} (que não é entregue), na ordem de envio. Por
+     * exemplo, o prompt {@code '>'} de um ELM327 ou o {@code "\r\n"} de um módulo AT.
+     */
+    public static ResponseMatcher terminator(final byte... terminator) {
+        if (terminator.length == 0) throw new IllegalArgumentException("Empty terminator");
+
+        return new ResponseMatcher() {
+            @Override
+            public int frameLength(byte[] buffer, int offset, int length) {
+                final int last = offset + length - terminator.length;
+
+                outer:
+                for (int i = offset; i <= last; i++) {
+                    for (int j = 0; j < terminator.length; j++) {
+                        if (buffer[i + j] != terminator[j]) continue outer;
+                    }
+                    return i - offset + terminator.length;
+                }
+
+                return 0;
+            }
+
+            @Override
+            public int responseLength(byte[] buffer, int offset, int frameLength) {
+                return frameLength - terminator.length;
+            }
+        };
+    }
+
+    /**
+     * Mantém a separação das respostas, mas as associa pelo número sem sinal, big-endian, de
+     * {@code length} bytes (1 a 3) na posição {@code offset} do pedido e da resposta, como o
+     * identificador de transação do Modbus TCP.
+     */
+    public ResponseMatcher withSequenceId(int offset, int length) {
+        return withSequenceId(offset, offset, length);
+    }
+
+    /**
+     * Como {@link #withSequenceId(int, int)}, com o identificador em posições diferentes no
+     * pedido e na resposta.
+     */
+    public ResponseMatcher withSequenceId(final int requestOffset, final int responseOffset, final int length) {
+        if (length < 1 || length > 3) throw new IllegalArgumentException("length must be 1 to 3");
+        final ResponseMatcher framing = this;
+
+        return new ResponseMatcher() {
+            @Override
+            public int frameLength(byte[] buffer, int off, int len) {
+                return framing.frameLength(buffer, off, len);
+            }
+
+            @Override
+            public int responseLength(byte[] buffer, int off, int frameLength) {
+                return framing.responseLength(buffer, off, frameLength);
+            }
+
+            @Override
+            public int requestId(byte[] request, int off, int len) {
+                return readId(request, off + requestOffset, len - requestOffset);
+            }
+
+            @Override
+            public int responseId(byte[] response, int off, int len) {
+                return readId(response, off + responseOffset, len - responseOffset);
+            }
+
+            private int readId(byte[] buffer, int off, int len) {
+                if (length > len) return NO_ID;
+                int id = 0;
+                for (int i = 0; i < length; i++) id = id << 8 | buffer[off + i] & 0xFF;
+                return id;
+            }
+        };
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * Transporte Bluetooth RFCOMM (SPP).
+ */
+public class RfcommTransport implements Transport, CompressedTransport.ChannelProvider {
+
+    static final UUID UUID_ANDROID_DEVICE =
+            UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
+    static final UUID UUID_OTHER_DEVICE =
+            UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    /**
+     * Serviço das conexões comprimidas entre aparelhos Android.
+     */
+    static final UUID UUID_ANDROID_COMPRESSED =
+            UUID.fromString("222424f1-99fd-482c-891d-8e9d6e2fd839");
+    private static final String NAME_SECURE = "Bluetooth Secure";
+
+    private final BluetoothAdapter mAdapter;
+    private final UUID mAndroidUuid;
+
+    public RfcommTransport(BluetoothAdapter adapter) {
+        this(adapter, UUID_ANDROID_DEVICE);
+    }
+
+    private RfcommTransport(BluetoothAdapter adapter, UUID androidUuid) {
+        mAdapter = adapter;
+        mAndroidUuid = androidUuid;
+    }
+
+    @Override
+    public Transport getCompressedChannel() {
+        return new RfcommTransport(mAdapter, UUID_ANDROID_COMPRESSED);
+    }
+
+    @Override
+    public Transport.Connection open(String address, boolean android, boolean secure) throws IOException {
+        if (!BluetoothAdapter.checkBluetoothAddress(address)) {
+            throw new IOException("Invalid Bluetooth address: " + address);
+        }
+
+        final BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        final UUID uuid = android ? mAndroidUuid : UUID_OTHER_DEVICE;
+
+        if (secure) {
+            return new Connection(device.createRfcommSocketToServiceRecord(uuid), true);
+        } else {
+            return new Connection(device.createInsecureRfcommSocketToServiceRecord(uuid), true);
+        }
+    }
+
+    @Override
+    public Transport.Acceptor listen(boolean android, boolean secure) throws IOException {
+        final UUID uuid = android ? mAndroidUuid : UUID_OTHER_DEVICE;
+
+        if (secure) {
+            return new Acceptor(mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE, uuid));
+        } else {
+            return new Acceptor(mAdapter.listenUsingInsecureRfcommWithServiceRecord(NAME_SECURE, uuid));
+        }
+    }
+
+    private class Connection implements Transport.Connection {
+        private final BluetoothSocket mmSocket;
+        private final boolean isOutgoing;
+
+        Connection(BluetoothSocket socket, boolean outgoing) {
+            mmSocket = socket;
+            isOutgoing = outgoing;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (!isOutgoing) return;
+            //A descoberta deixa a conexão muito lenta.
+            mAdapter.cancelDiscovery();
+            mmSocket.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mmSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mmSocket.getOutputStream();
+        }
+
+        @Override
+        public String getAddress() {
+            return mmSocket.getRemoteDevice().getAddress();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mmSocket.close();
+        }
+    }
+
+    private class Acceptor implements Transport.Acceptor {
+        private final BluetoothServerSocket mmServerSocket;
+
+        Acceptor(BluetoothServerSocket serverSocket) {
+            mmServerSocket = serverSocket;
+        }
+
+        @Override
+        public Transport.Connection accept() throws IOException {
+            return new Connection(mmServerSocket.accept(), false);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mmServerSocket.close();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Buffer circular pré-alocado com um único produtor (a thread de leitura) e um único
+ * consumidor (a thread que entrega os dados aos listeners).
+ * <p>
+ * O produtor escreve diretamente no array retornado por {@link #array()}, a partir de
+ * {@link #writeOffset()}, e confirma com {@link #commitWrite(int)}. O consumidor lê a partir
+ * de {@link #readOffset()} e libera o espaço com {@link #commitRead(int)}. Nenhuma operação
+ * aloca memória.
+ */
+final class RingBuffer {
+
+    private final byte[] mBuffer;
+    private final int mMask;
+    private final AtomicBoolean mSignaled = new AtomicBoolean();
+    private volatile long mWriteIndex;
+    private volatile long mReadIndex;
+    private volatile boolean isWriterWaiting;
+    private volatile boolean isClosed;
+
+    RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 16));
+        if (size < capacity) size <<= 1;
+        mBuffer = new byte[size];
+        mMask = size - 1;
+    }
+
+    byte[] array() {
+        return mBuffer;
+    }
+
+    int capacity() {
+        return mBuffer.length;
+    }
+
+    /**
+     * Quantidade de bytes escritos e ainda não consumidos.
+     */
+    int available() {
+        return (int) (mWriteIndex - mReadIndex);
+    }
+
+    int writeOffset() {
+        return (int) (mWriteIndex & mMask);
+    }
+
+    /**
+     * Espaço livre contíguo a partir de {@link #writeOffset()}.
+     */
+    int writableContiguous() {
+        final int free = mBuffer.length - available();
+        return Math.min(free, mBuffer.length - writeOffset());
+    }
+
+    /**
+     * Bloqueia o produtor até existir espaço livre e retorna o espaço contíguo disponível, ou
+     * {@code 0} se o buffer tiver sido fechado por {@link #close()}.
+     */
+    int awaitWritable() throws InterruptedException {
+        if (isClosed) return 0;
+        int writable = writableContiguous();
+        if (writable > 0) return writable;
+
+        synchronized (this) {
+            try {
+                while (true) {
+                    isWriterWaiting = true;
+                    if (isClosed) return 0;
+                    writable = writableContiguous();
+                    if (writable > 0) return writable;
+                    wait();
+                }
+            } finally {
+                isWriterWaiting = false;
+            }
+        }
+    }
+
+    void commitWrite(int length) {
+        mWriteIndex += length;
+    }
+
+    int readOffset() {
+        return (int) (mReadIndex & mMask);
+    }
+
+    /**
+     * Bytes disponíveis contíguos a partir de {@link #readOffset()}.
+     */
+    int readableContiguous() {
+        return Math.min(available(), mBuffer.length - readOffset());
+    }
+
+    void commitRead(int length) {
+        mReadIndex += length;
+        if (isWriterWaiting) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Acorda o produtor bloqueado em {@link #awaitWritable()} e não o deixa mais esperar. O que
+     * já foi escrito continua disponível para o consumidor.
+     */
+    void close() {
+        isClosed = true;
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Marca que o consumidor precisa ser avisado. Retorna {@code true} somente para quem
+     * efetivamente mudou o estado, evitando avisos duplicados.
+     */
+    boolean signal() {
+        return mSignaled.compareAndSet(false, true);
+    }
+
+    /**
+     * Deve ser chamado pelo consumidor antes de começar a esvaziar o buffer ou, se ele puder
+     * rodar em mais de uma thread, depois de esvaziá-lo, verificando {@link #available()} de novo.
+     */
+    void clearSignal() {
+        mSignaled.set(false);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dados recebidos por uma {@link BlueSession}, como {@link InputStream} e
+ * {@link ReadableByteChannel}. É preenchido diretamente pela thread de leitura, sem passar pela
+ * thread principal; os listeners de dados continuam recebendo tudo.
+ * <p>
+ * As leituras bloqueiam até chegar pelo menos um byte, até o tempo de
+ * {@link #setReadTimeout(int)} ({@link SocketTimeoutException}) ou até a sessão ser encerrada
+ * (fim do stream, depois de entregar o que estiver no buffer). A sessão continua aberta
+ * enquanto reconecta. Com o buffer cheio, a thread de leitura aguarda e o controle de fluxo do
+ * RFCOMM segura o outro lado.
+ * <p>
+ * Só recebe os dados que chegarem depois de criado. Fechá-lo não encerra a sessão.
+ *
+ * @see BlueSession#getInputStream()
+ */
+public final class SessionInputStream extends InputStream implements ReadableByteChannel {
+
+    public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+    private final BlueSession mSession;
+    private final byte[] mBuffer;
+    private final byte[] mSingle = new byte[1];
+    private int mReadPos;
+    private int mCount;
+    private int mReadTimeout;
+    private boolean isFinished;
+    private boolean isClosed;
+
+    SessionInputStream(BlueSession session, int bufferSize) {
+        mSession = session;
+        mBuffer = new byte[bufferSize];
+    }
+
+    /**
+     * Tempo máximo, em milissegundos, que uma leitura aguarda por dados. Use 0 (padrão) para
+     * aguardar indefinidamente.
+     */
+    public synchronized void setReadTimeout(int millis) {
+        if (millis < 0) throw new IllegalArgumentException("timeout < 0");
+        mReadTimeout = millis;
+    }
+
+    public synchronized int getReadTimeout() {
+        return mReadTimeout;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        return read(mSingle, 0, 1) < 0 ? -1 : mSingle[0] & 0xFF;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if ((off | len) < 0 || len > b.length - off) throw new IndexOutOfBoundsException();
+        if (len == 0) return 0;
+        if (!await()) return -1;
+
+        int total = 0;
+        while (total < len && mCount > 0) {
+            final int n = Math.min(len - total, Math.min(mCount, mBuffer.length - mReadPos));
+            System.arraycopy(mBuffer, mReadPos, b, off + total, n);
+            consume(n);
+            total += n;
+        }
+
+        return total;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        if (isClosed) throw new ClosedChannelException();
+        if (!dst.hasRemaining()) return 0;
+        if (!await()) return -1;
+
+        int total = 0;
+        while (dst.hasRemaining() && mCount > 0) {
+            final int n = Math.min(dst.remaining(), Math.min(mCount, mBuffer.length - mReadPos));
+            dst.put(mBuffer, mReadPos, n);
+            consume(n);
+            total += n;
+        }
+
+        return total;
+    }
+
+    @Override
+    public synchronized long skip(long n) throws IOException {
+        final int skipped = (int) Math.min(Math.max(n, 0), mCount);
+        consume(skipped);
+        return skipped;
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        if (isClosed) throw new IOException("Stream closed");
+        return mCount;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return !isClosed;
+    }
+
+    /**
+     * Descarta os dados no buffer e deixa de receber. A sessão não é encerrada.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (isClosed) return;
+            isClosed = true;
+            mCount = 0;
+            notifyAll();
+        }
+
+        mSession.detachInputStream(this);
+    }
+
+    /**
+     * Aguarda dados. Retorna {@code false} no fim do stream.
+     */
+    private boolean await() throws IOException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(mReadTimeout);
+        final long deadline = System.nanoTime() + remaining;
+
+        try {
+            while (mCount == 0) {
+                if (isClosed) throw new IOException("Stream closed");
+                if (isFinished) return false;
+
+                if (mReadTimeout == 0) {
+                    wait();
+                } else if (remaining > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    remaining = deadline - System.nanoTime();
+                } else {
+                    throw new SocketTimeoutException("Read timed out");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+
+        return true;
+    }
+
+    private void consume(int n) {
+        mReadPos = (mReadPos + n) % mBuffer.length;
+        mCount -= n;
+        notifyAll();
+    }
+
+    /**
+     * Chamado pela thread de leitura da sessão. Bloqueia enquanto o buffer estiver cheio e
+     * descarta os dados se o stream for fechado.
+     */
+    synchronized void receive(byte[] b, int off, int len) {
+        try {
+            while (len > 0 && !isClosed) {
+                if (mCount == mBuffer.length) {
+                    wait();
+                    continue;
+                }
+
+                final int writePos = (mReadPos + mCount) % mBuffer.length;
+                final int n = Math.min(len, Math.min(mBuffer.length - mCount, mBuffer.length - writePos));
+                System.arraycopy(b, off, mBuffer, writePos, n);
+                mCount += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        } catch (InterruptedException e) {
+            //A sessão está sendo encerrada.
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A sessão foi encerrada: as leituras retornam o fim do stream depois de esvaziar o buffer.
+     */
+    synchronized void finish() {
+        isFinished = true;
+        notifyAll();
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Envio por uma {@link BlueSession}, como {@link OutputStream} e {@link WritableByteChannel}.
+ * Os dados são acumulados num buffer e entregues à fila de saída da sessão, sem cópia, quando
+ * ele enche ou em {@link #flush()}; envios maiores que o buffer vão direto para a fila.
+ * <p>
+ * A escrita só bloqueia se a fila estiver cheia e a política for {@link OverflowPolicy#BLOCK}.
+ * {@link #flush()} aguarda até tudo ter sido entregue ao socket. Uma falha num envio já
+ * enfileirado é lançada na próxima operação.
+ * <p>
+ * Fechá-lo não encerra a sessão.
+ *
+ * @see BlueSession#getOutputStream()
+ */
+public final class SessionOutputStream extends OutputStream implements WritableByteChannel {
+
+    public static final int DEFAULT_BUFFER_SIZE = BlueService.DEFAULT_COALESCE_SIZE;
+
+    private final BlueSession mSession;
+    private final int mBufferSize;
+    private final BlueFuture.Callback<Integer> mErrorCallback = new BlueFuture.Callback<Integer>() {
+        @Override
+        public void onSuccess(Integer result) {
+        }
+
+        @Override
+        public void onFailure(Throwable error) {
+            if (mError == null) mError = error;
+        }
+    };
+    private byte[] mBuffer;
+    private int mCount;
+    private volatile Throwable mError;
+    private boolean isClosed;
+
+    SessionOutputStream(BlueSession session, int bufferSize) {
+        mSession = session;
+        mBufferSize = bufferSize;
+        mBuffer = new byte[bufferSize];
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        ensureOpen();
+        if (mCount == mBuffer.length) sendBuffer();
+        mBuffer[mCount++] = (byte) b;
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if ((off | len) < 0 || len > b.length - off) throw new IndexOutOfBoundsException();
+        ensureOpen();
+
+        if (len >= mBuffer.length) {
+            sendBuffer();
+            final byte[] copy = new byte[len];
+            System.arraycopy(b, off, copy, 0, len);
+            send(copy, len);
+            return;
+        }
+
+        if (len > mBuffer.length - mCount) sendBuffer();
+        System.arraycopy(b, off, mBuffer, mCount, len);
+        mCount += len;
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        if (isClosed) throw new ClosedChannelException();
+        final int length = src.remaining();
+
+        if (src.hasArray()) {
+            write(src.array(), src.arrayOffset() + src.position(), length);
+            src.position(src.limit());
+            return length;
+        }
+
+        while (src.hasRemaining()) {
+            if (mCount == mBuffer.length) sendBuffer();
+            final int n = Math.min(src.remaining(), mBuffer.length - mCount);
+            src.get(mBuffer, mCount, n);
+            mCount += n;
+        }
+
+        return length;
+    }
+
+    /**
+     * Envia o que estiver no buffer e aguarda até tudo ter sido entregue ao socket.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        ensureOpen();
+        sendBuffer();
+        await(mSession.flush());
+        checkError();
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return !isClosed;
+    }
+
+    /**
+     * Envia o que estiver no buffer. A sessão não é encerrada.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (isClosed) return;
+
+        try {
+            flush();
+        } finally {
+            isClosed = true;
+            mSession.detachOutputStream(this);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (isClosed) throw new IOException("Stream closed");
+        checkError();
+    }
+
+    private void checkError() throws IOException {
+        final Throwable error = mError;
+        if (error == null) return;
+        mError = null;
+        throw error instanceof IOException ? (IOException) error : new IOException(error);
+    }
+
+    /**
+     * Entrega o buffer à fila sem copiá-lo e passa a usar um novo.
+     */
+    private void sendBuffer() throws IOException {
+        if (mCount == 0) return;
+        final byte[] buffer = mBuffer;
+        final int count = mCount;
+        mBuffer = new byte[mBufferSize];
+        mCount = 0;
+        send(buffer, count);
+    }
+
+    private void send(byte[] buffer, int length) throws IOException {
+        final BlueFuture<Integer> future = mSession.writeAsync(buffer, 0, length);
+        //Falhas imediatas (desconectado, fila cheia com FAIL) são lançadas agora.
+        if (future.isDone()) {
+            await(future);
+        } else {
+            future.addCallback(mErrorCallback);
+        }
+    }
+
+    private static void await(BlueFuture<Integer> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+}
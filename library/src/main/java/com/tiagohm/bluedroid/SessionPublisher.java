@@ -0,0 +1,203 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Os dados recebidos por uma {@link BlueSession} como um {@link BlueFlow.Publisher}: cada
+ * leitura do socket vira um item, uma cópia somente leitura, entregue na thread de leitura.
+ * <p>
+ * Enquanto algum assinante não tiver demanda, a thread de leitura para de ler o socket e o
+ * controle de fluxo do RFCOMM segura o outro lado: nada é acumulado. Isso vale também para
+ * os listeners de dados da sessão. Sem assinantes, a leitura segue normalmente.
+ * <p>
+ * As assinaturas continuam durante as reconexões. Quando a sessão é encerrada, os assinantes
+ * recebem {@link BlueFlow.Subscriber#onComplete()} se ela foi fechada, ou
+ * {@link BlueFlow.Subscriber#onError(Throwable)} se a conexão caiu ou falhou. Só são entregues
+ * os dados que chegarem depois da assinatura.
+ *
+ * @see BlueSession#getPublisher()
+ */
+public final class SessionPublisher implements BlueFlow.Publisher<ByteBuffer> {
+
+    private final BlueSession mSession;
+    private final ListenerList<SessionSubscription> mSubscriptions = new ListenerList<>(new SessionSubscription[0]);
+    private boolean isFinished;
+    private Throwable mError;
+
+    SessionPublisher(BlueSession session) {
+        mSession = session;
+    }
+
+    @Override
+    public void subscribe(BlueFlow.Subscriber<? super ByteBuffer> subscriber) {
+        if (subscriber == null) throw new NullPointerException("subscriber == null");
+
+        final SessionSubscription subscription = new SessionSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+
+        final Throwable error;
+
+        synchronized (this) {
+            if (!isFinished) {
+                if (!subscription.isCancelled) mSubscriptions.add(subscription);
+                return;
+            }
+            error = mError;
+        }
+
+        subscription.terminate(error);
+    }
+
+    /**
+     * Thread de leitura: aguarda até que todos os assinantes tenham demanda.
+     */
+    void awaitDemand() throws InterruptedException {
+        if (hasDemand()) return;
+
+        synchronized (this) {
+            while (!hasDemand()) wait();
+        }
+    }
+
+    private boolean hasDemand() {
+        for (SessionSubscription subscription : mSubscriptions.array()) {
+            if (subscription.mmDemand.get() == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Thread de leitura: entrega uma cópia dos dados a cada assinante, aguardando a demanda de
+     * quem assinou enquanto a leitura já estava em andamento.
+     */
+    void publish(byte[] buffer, int offset, int length) throws InterruptedException {
+        final SessionSubscription[] subscriptions = mSubscriptions.array();
+        if (subscriptions.length == 0) return;
+
+        final byte[] copy = new byte[length];
+        System.arraycopy(buffer, offset, copy, 0, length);
+
+        for (SessionSubscription subscription : subscriptions) {
+            if (subscription.mmDemand.get() == 0) {
+                synchronized (this) {
+                    while (subscription.mmDemand.get() == 0 && !subscription.isCancelled && !isFinished) wait();
+                }
+            }
+            subscription.next(ByteBuffer.wrap(copy).asReadOnlyBuffer());
+        }
+    }
+
+    /**
+     * A sessão foi encerrada, com {@code error} se não foi fechada pelo aplicativo. Chamado com
+     * o monitor do serviço adquirido: os assinantes são avisados num worker do executor.
+     */
+    void finish(Throwable error) {
+        final SessionSubscription[] subscriptions;
+
+        synchronized (this) {
+            if (isFinished) return;
+            isFinished = true;
+            mError = error;
+            subscriptions = mSubscriptions.array();
+            mSubscriptions.clear();
+            notifyAll();
+        }
+
+        if (subscriptions.length == 0) return;
+
+        final Throwable cause = error;
+        final Runnable terminate = new Runnable() {
+            @Override
+            public void run() {
+                for (SessionSubscription subscription : subscriptions) subscription.terminate(cause);
+            }
+        };
+
+        try {
+            mSession.getService().getExecutor().execute(terminate);
+        } catch (RejectedExecutionException e) {
+            terminate.run();
+        }
+    }
+
+    private synchronized void wakeReader() {
+        notifyAll();
+    }
+
+    /**
+     * Os sinais de uma assinatura são entregues com o seu monitor adquirido, o que garante que
+     * nunca são concorrentes.
+     */
+    private final class SessionSubscription implements BlueFlow.Subscription {
+        private final BlueFlow.Subscriber<? super ByteBuffer> mmSubscriber;
+        private final AtomicLong mmDemand = new AtomicLong();
+        private volatile boolean isCancelled;
+        private boolean isTerminated;
+
+        SessionSubscription(BlueFlow.Subscriber<? super ByteBuffer> subscriber) {
+            mmSubscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                terminate(new IllegalArgumentException("request(" + n + "): n must be positive"));
+                return;
+            }
+
+            long current;
+            long next;
+
+            do {
+                current = mmDemand.get();
+                if (current == Long.MAX_VALUE) return;
+                next = current + n < 0 ? Long.MAX_VALUE : current + n;
+            } while (!mmDemand.compareAndSet(current, next));
+
+            if (current == 0) wakeReader();
+        }
+
+        @Override
+        public void cancel() {
+            isCancelled = true;
+            mSubscriptions.remove(this);
+            wakeReader();
+        }
+
+        synchronized void next(ByteBuffer item) {
+            if (isCancelled || isTerminated || mmDemand.get() == 0) return;
+            if (mmDemand.get() != Long.MAX_VALUE) mmDemand.decrementAndGet();
+            mmSubscriber.onNext(item);
+        }
+
+        synchronized void terminate(Throwable error) {
+            if (isTerminated) return;
+            isTerminated = true;
+            mSubscriptions.remove(this);
+            if (error == null) {
+                mmSubscriber.onComplete();
+            } else {
+                mmSubscriber.onError(error);
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+/**
+ * Uma mudança de estado do {@link BlueService} ou de uma {@link BlueSession}: os estados de
+ * origem e destino, o motivo e o instante ({@link System#nanoTime()}) em que aconteceu.
+ * <p>
+ * Uma sessão só passa pelas transições abaixo; qualquer outra é ignorada:
+ * <pre>
+ * NONE       -&gt; CONNECTING  (CONNECT)
+ * NONE       -&gt; CONNECTED   (ACCEPT)
+ * CONNECTING -&gt; CONNECTED   (CONNECTED)
+ * CONNECTING -&gt; NONE        (CONNECT_FAILED, CLOSE)
+ * CONNECTED  -&gt; CONNECTING  (CONNECTION_LOST, ao reconectar)
+ * CONNECTED  -&gt; NONE        (CONNECTION_LOST, CLOSE)
+ * </pre>
+ * O estado do serviço é o maior entre a escuta e os estados das sessões: a sua transição leva o
+ * motivo da mudança que a causou.
+ */
+public final class StateTransition {
+
+    public enum Cause {
+        /**
+         * Conexão iniciada por {@link BlueService#connect(String)}.
+         */
+        CONNECT,
+        /**
+         * Conexão recebida pela escuta.
+         */
+        ACCEPT,
+        /**
+         * Conexão (ou reconexão) estabelecida.
+         */
+        CONNECTED,
+        /**
+         * Não foi possível conectar e não há mais tentativas.
+         */
+        CONNECT_FAILED,
+        /**
+         * A conexão caiu.
+         */
+        CONNECTION_LOST,
+        /**
+         * Encerrada pelo aplicativo ou pelo serviço.
+         */
+        CLOSE,
+        /**
+         * O serviço começou a escutar.
+         */
+        LISTEN,
+        /**
+         * O serviço foi parado.
+         */
+        STOP
+    }
+
+    //Destinos permitidos a partir de cada estado da sessão, um bit por estado.
+    private static final int[] SESSION_TRANSITIONS = new int[4];
+
+    static {
+        SESSION_TRANSITIONS[BlueService.STATE_NONE] =
+                1 << BlueService.STATE_CONNECTING | 1 << BlueService.STATE_CONNECTED;
+        SESSION_TRANSITIONS[BlueService.STATE_CONNECTING] =
+                1 << BlueService.STATE_CONNECTED | 1 << BlueService.STATE_NONE;
+        SESSION_TRANSITIONS[BlueService.STATE_CONNECTED] =
+                1 << BlueService.STATE_CONNECTING | 1 << BlueService.STATE_NONE;
+    }
+
+    private final BlueSession mSession;
+    private final int mFrom;
+    private final int mTo;
+    private final Cause mCause;
+    private final long mTimestampNanos;
+
+    StateTransition(BlueSession session, int from, int to, Cause cause) {
+        mSession = session;
+        mFrom = from;
+        mTo = to;
+        mCause = cause;
+        mTimestampNanos = System.nanoTime();
+    }
+
+    /**
+     * Se a sessão pode passar de {@code from} para {@code to}.
+     */
+    static boolean isAllowed(int from, int to) {
+        return from >= 0 && from < SESSION_TRANSITIONS.length && (SESSION_TRANSITIONS[from] & 1 << to) != 0;
+    }
+
+    /**
+     * A sessão que mudou de estado, ou {@code null} se for o estado geral do serviço.
+     */
+    public BlueSession getSession() {
+        return mSession;
+    }
+
+    public int getFrom() {
+        return mFrom;
+    }
+
+    public int getTo() {
+        return mTo;
+    }
+
+    public Cause getCause() {
+        return mCause;
+    }
+
+    /**
+     * Instante da transição, em {@link System#nanoTime()}.
+     */
+    public long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "StateTransition{" + (mSession != null ? mSession.getAddress() : "service") +
+                ", " + mFrom + " -> " + mTo + ", " + mCause + "}";
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Transporte TCP, por padrão restrito ao localhost. Os endereços têm o formato
+ * {@code "host:porta"} (ou somente {@code "porta"} para o localhost).
+ */
+public class TcpTransport implements Transport {
+
+    private static final String LOCALHOST = "127.0.0.1";
+    private static final int MAX_PORT = 65535;
+
+    private final InetAddress mBindAddress;
+    private final int mPort;
+
+    /**
+     * @param port porta em que {@link #listen(boolean, boolean)} aguarda conexões.
+     */
+    public TcpTransport(int port) throws IOException {
+        this(InetAddress.getByName(LOCALHOST), port);
+    }
+
+    public TcpTransport(InetAddress bindAddress, int port) {
+        mBindAddress = bindAddress;
+        mPort = port;
+    }
+
+    @Override
+    public Transport.Connection open(String address, boolean android, boolean secure) throws IOException {
+        final int separator = address.lastIndexOf(':');
+        final String host = separator < 0 ? LOCALHOST : address.substring(0, separator);
+
+        final int port;
+
+        try {
+            port = Integer.parseInt(address.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid address: " + address);
+        }
+
+        //Valida antes de criar o socket, que senão ficaria aberto.
+        if (port < 1 || port > MAX_PORT) throw new IOException("Invalid port: " + address);
+
+        final InetSocketAddress endpoint = new InetSocketAddress(host, port);
+        final Socket socket = new Socket();
+
+        try {
+            return new Connection(socket, endpoint, address);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public Transport.Acceptor listen(boolean android, boolean secure) throws IOException {
+        final ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(mBindAddress, mPort));
+        return new Acceptor(serverSocket);
+    }
+
+    private static class Connection implements Transport.Connection {
+        private final Socket mmSocket;
+        private final InetSocketAddress mmEndpoint;
+        private final String mmAddress;
+
+        Connection(Socket socket, InetSocketAddress endpoint, String address) throws IOException {
+            mmSocket = socket;
+            mmEndpoint = endpoint;
+            mmAddress = address;
+            mmSocket.setTcpNoDelay(true);
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (mmEndpoint != null) mmSocket.connect(mmEndpoint);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mmSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mmSocket.getOutputStream();
+        }
+
+        @Override
+        public String getAddress() {
+            return mmAddress;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mmSocket.close();
+        }
+    }
+
+    private static class Acceptor implements Transport.Acceptor {
+        private final ServerSocket mmServerSocket;
+
+        Acceptor(ServerSocket serverSocket) {
+            mmServerSocket = serverSocket;
+        }
+
+        @Override
+        public Transport.Connection accept() throws IOException {
+            final Socket socket = mmServerSocket.accept();
+            final String address = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+            return new Connection(socket, null, address);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mmServerSocket.close();
+        }
+    }
+}
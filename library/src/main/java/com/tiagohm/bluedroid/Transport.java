@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Meio físico usado pelo {@link BlueService} para abrir e aceitar conexões.
+ *
+ * @see RfcommTransport
+ * @see LoopbackTransport
+ * @see TcpTransport
+ */
+public interface Transport {
+
+    /**
+     * Cria uma conexão (ainda não conectada) com o endereço informado.
+     */
+    Connection open(String address, boolean android, boolean secure) throws IOException;
+
+    /**
+     * Começa a aguardar conexões de entrada.
+     */
+    Acceptor listen(boolean android, boolean secure) throws IOException;
+
+    interface Connection extends Closeable {
+        /**
+         * Bloqueia até a conexão ser estabelecida. Fechar a conexão de outra thread
+         * interrompe a espera com {@link IOException}.
+         */
+        void connect() throws IOException;
+
+        InputStream getInputStream() throws IOException;
+
+        OutputStream getOutputStream() throws IOException;
+
+        String getAddress();
+    }
+
+    interface Acceptor extends Closeable {
+        /**
+         * Bloqueia até uma conexão ser aceita. Fechar o acceptor de outra thread
+         * interrompe a espera com {@link IOException}.
+         */
+        Connection accept() throws IOException;
+    }
+}
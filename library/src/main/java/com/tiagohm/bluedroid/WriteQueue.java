@@ -0,0 +1,306 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fila de saída limitada em bytes, consumida pela tarefa de escrita de uma conexão. A tarefa só
+ * ocupa um worker enquanto houver envios: ela é agendada quando a fila deixa de estar vazia e
+ * termina quando a esvazia.
+ */
+final class WriteQueue {
+
+    /**
+     * Um envio: um trecho de array ou uma lista de {@link ByteBuffer}s, seguidos opcionalmente
+     * de um sufixo constante (como o separador de linha). Nada é copiado ao enfileirar.
+     */
+    static final class Request {
+        final byte[] buffer;
+        final int offset;
+        final ByteBuffer[] buffers;
+        final byte[] suffix;
+        final int length;
+        final boolean isFlush;
+        final BlueFuture<Integer> future = new BlueFuture<>();
+        final long enqueuedNanos = System.nanoTime();
+
+        Request(byte[] buffer, int offset, int length, byte[] suffix) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.buffers = null;
+            this.suffix = suffix;
+            this.length = length + (suffix != null ? suffix.length : 0);
+            this.isFlush = false;
+        }
+
+        Request(ByteBuffer[] buffers, byte[] suffix) {
+            int length = suffix != null ? suffix.length : 0;
+            for (ByteBuffer b : buffers) length += b.remaining();
+
+            this.buffer = null;
+            this.offset = 0;
+            this.buffers = buffers;
+            this.suffix = suffix;
+            this.length = length;
+            this.isFlush = false;
+        }
+
+        private Request() {
+            this.buffer = null;
+            this.offset = 0;
+            this.buffers = null;
+            this.suffix = null;
+            this.length = 0;
+            this.isFlush = true;
+        }
+
+        /**
+         * Escreve todos os segmentos. {@code scratch} é usado para copiar os buffers diretos.
+         */
+        void writeTo(OutputStream out, byte[] scratch) throws IOException {
+            if (buffer != null) {
+                out.write(buffer, offset, length - (suffix != null ? suffix.length : 0));
+            } else if (buffers != null) {
+                for (ByteBuffer b : buffers) {
+                    if (b.hasArray()) {
+                        out.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+                        continue;
+                    }
+
+                    //Lê de uma cópia da posição para não mexer no buffer de quem enviou.
+                    final ByteBuffer d = b.duplicate();
+                    while (d.hasRemaining()) {
+                        final int n = Math.min(d.remaining(), scratch.length);
+                        d.get(scratch, 0, n);
+                        out.write(scratch, 0, n);
+                    }
+                }
+            }
+
+            if (suffix != null) out.write(suffix);
+        }
+
+        /**
+         * Copia todos os segmentos para {@code dst}, que deve ter espaço para {@link #length} bytes.
+         */
+        void copyTo(byte[] dst, int dstOffset) {
+            if (buffer != null) {
+                final int n = length - (suffix != null ? suffix.length : 0);
+                System.arraycopy(buffer, offset, dst, dstOffset, n);
+                dstOffset += n;
+            } else if (buffers != null) {
+                for (ByteBuffer b : buffers) {
+                    final int n = b.remaining();
+                    b.duplicate().get(dst, dstOffset, n);
+                    dstOffset += n;
+                }
+            }
+
+            if (suffix != null) System.arraycopy(suffix, 0, dst, dstOffset, suffix.length);
+        }
+    }
+
+    private final ArrayDeque<Request> mQueue = new ArrayDeque<>();
+    private final int mCapacity;
+    private final OverflowPolicy mPolicy;
+    private int mQueuedBytes;
+    private IOException mClosedCause;
+    private Executor mExecutor;
+    private Runnable mConsumer;
+    private boolean isDraining;
+
+    WriteQueue(int capacity, OverflowPolicy policy) {
+        mCapacity = capacity;
+        mPolicy = policy;
+    }
+
+    /**
+     * Define a tarefa que esvazia a fila e o executor em que ela é agendada.
+     */
+    void bind(Executor executor, Runnable consumer) {
+        synchronized (this) {
+            mExecutor = executor;
+            mConsumer = consumer;
+            if (mQueue.isEmpty() || isDraining) return;
+            isDraining = true;
+        }
+
+        schedule();
+    }
+
+    private void schedule() {
+        try {
+            mExecutor.execute(mConsumer);
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                isDraining = false;
+            }
+            close(new IOException("Thread budget exhausted", e));
+        }
+    }
+
+    /**
+     * Marca a fila como sendo esvaziada. Retorna {@code true} se a tarefa precisa ser agendada.
+     */
+    private boolean startDraining() {
+        if (isDraining || mConsumer == null) return false;
+        isDraining = true;
+        return true;
+    }
+
+    /**
+     * Enfileira o envio sem copiar os dados.
+     */
+    BlueFuture<Integer> offer(Request request) {
+        final int length = request.length;
+        final boolean schedule;
+        Request dropped;
+
+        synchronized (this) {
+            if (mClosedCause != null) {
+                request.future.fail(mClosedCause);
+                return request.future;
+            }
+
+            //Um envio maior que a fila inteira é aceito quando ela está vazia.
+            while (mQueuedBytes > 0 && mQueuedBytes + length > mCapacity) {
+                if (mPolicy == OverflowPolicy.FAIL) {
+                    request.future.fail(new IOException("Write queue full"));
+                    return request.future;
+                } else if (mPolicy == OverflowPolicy.DROP_OLDEST) {
+                    dropped = mQueue.poll();
+                    mQueuedBytes -= dropped.length;
+                    dropped.future.fail(new IOException("Dropped by write queue overflow"));
+                } else {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        request.future.fail(new InterruptedIOException());
+                        return request.future;
+                    }
+                    if (mClosedCause != null) {
+                        request.future.fail(mClosedCause);
+                        return request.future;
+                    }
+                }
+            }
+
+            mQueue.add(request);
+            mQueuedBytes += length;
+            notifyAll();
+            schedule = startDraining();
+        }
+
+        if (schedule) schedule();
+        return request.future;
+    }
+
+    /**
+     * Enfileira um pedido para enviar imediatamente tudo o que estiver acumulado antes dele.
+     * Não está sujeito à capacidade da fila.
+     */
+    BlueFuture<Integer> flush() {
+        final Request request = new Request();
+        final boolean schedule;
+
+        synchronized (this) {
+            if (mClosedCause != null) {
+                request.future.fail(mClosedCause);
+                return request.future;
+            }
+            mQueue.add(request);
+            notifyAll();
+            schedule = startDraining();
+        }
+
+        if (schedule) schedule();
+        return request.future;
+    }
+
+    /**
+     * Retira o próximo envio, aguardando no máximo {@code timeoutNanos} (ou indefinidamente, se
+     * negativo). Retorna {@code null} se o tempo acabar ou se a fila for fechada. Com
+     * {@code release}, a fila vazia deixa de ser esvaziada: o próximo envio agenda a tarefa de
+     * novo, e quem chamou deve terminar.
+     */
+    synchronized Request poll(long timeoutNanos, boolean release) throws InterruptedException {
+        if (timeoutNanos < 0) {
+            while (mQueue.isEmpty() && mClosedCause == null) wait();
+        } else if (mQueue.isEmpty() && mClosedCause == null && timeoutNanos > 0) {
+            final long deadline = System.nanoTime() + timeoutNanos;
+            long remaining = timeoutNanos;
+            while (mQueue.isEmpty() && mClosedCause == null && remaining > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                remaining = deadline - System.nanoTime();
+            }
+        }
+
+        final Request request = mQueue.poll();
+
+        if (request != null) {
+            mQueuedBytes -= request.length;
+            notifyAll();
+        } else if (release) {
+            isDraining = false;
+        }
+
+        return request;
+    }
+
+    synchronized boolean isEmpty() {
+        return mQueue.isEmpty();
+    }
+
+    synchronized boolean isClosed() {
+        return mClosedCause != null;
+    }
+
+    synchronized int getQueuedBytes() {
+        return mQueuedBytes;
+    }
+
+    synchronized int size() {
+        return mQueue.size();
+    }
+
+    /**
+     * Fecha a fila e falha todos os envios pendentes.
+     */
+    void close(IOException cause) {
+        final Request[] pending;
+
+        synchronized (this) {
+            if (mClosedCause != null) return;
+            mClosedCause = cause;
+            pending = mQueue.toArray(new Request[mQueue.size()]);
+            mQueue.clear();
+            mQueuedBytes = 0;
+            notifyAll();
+        }
+
+        for (Request request : pending) request.future.fail(cause);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class BlueServiceTest {
+
+    private static final long TIMEOUT = 5000;
+
+    private LoopbackTransport.Network mNetwork;
+    private BlueService mServer;
+    private BlueService mFirst;
+    private BlueService mSecond;
+
+    @Before
+    public void setUp() {
+        mNetwork = new LoopbackTransport.Network();
+        mServer = new BlueService(new RecordingCallback(), new LoopbackTransport(mNetwork, "S"));
+        mServer.setMultiSession(true);
+        mServer.start(false, true);
+        mFirst = new BlueService(new RecordingCallback(), new LoopbackTransport(mNetwork, "C1"));
+        mSecond = new BlueService(new RecordingCallback(), new LoopbackTransport(mNetwork, "C2"));
+    }
+
+    @After
+    public void tearDown() {
+        mFirst.stop();
+        mSecond.stop();
+        mServer.stop();
+    }
+
+    private BlueSession connect(BlueService client, String address) throws Exception {
+        client.connectAsync("S").timeout(TIMEOUT).get();
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        BlueSession session;
+        while ((session = mServer.getSession(address)) == null || !session.isConnected()) {
+            if (System.currentTimeMillis() > deadline) throw new AssertionError("Not accepted: " + address);
+            Thread.sleep(5);
+        }
+        return session;
+    }
+
+    @Test(timeout = 10000)
+    public void primarySessionIsTheLastConnected() throws Exception {
+        connect(mFirst, "C1");
+        final BlueSession second = connect(mSecond, "C2");
+
+        assertSame(second, mServer.getPrimarySession());
+    }
+
+    @Test(timeout = 10000)
+    public void closingThePrimarySessionPromotesAnotherConnectedSession() throws Exception {
+        final RecordingCallback firstCallback = new RecordingCallback();
+        mFirst = new BlueService(firstCallback, new LoopbackTransport(mNetwork, "C1"));
+        final BlueSession first = connect(mFirst, "C1");
+        final BlueSession second = connect(mSecond, "C2");
+
+        second.close();
+        RecordingCallback.awaitState(second, BlueService.STATE_NONE, TIMEOUT);
+
+        assertSame(first, mServer.getPrimarySession());
+        assertEquals(BlueService.STATE_CONNECTED, mServer.getState());
+
+        //Os métodos do serviço continuam enviando pela sessão que restou.
+        mServer.writeAsync(new byte[]{1, 2, 3}, 0, 3).timeout(TIMEOUT).get();
+        assertArrayEquals(new byte[]{1, 2, 3}, firstCallback.awaitReceived(3, TIMEOUT));
+    }
+
+    @Test(timeout = 10000)
+    public void closingTheLastSessionLeavesNoPrimarySession() throws Exception {
+        final BlueSession first = connect(mFirst, "C1");
+
+        first.close();
+        RecordingCallback.awaitState(first, BlueService.STATE_NONE, TIMEOUT);
+
+        assertNull(mServer.getPrimarySession());
+        assertEquals(BlueService.STATE_LISTEN, mServer.getState());
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BlueStatsTest {
+
+    private static BlueStats.HistogramSnapshot histogram(long... values) {
+        final BlueStats.Histogram histogram = new BlueStats.Histogram();
+        for (long value : values) histogram.record(value);
+        return histogram.snapshot();
+    }
+
+    private static int bucketOf(long value) {
+        final BlueStats.HistogramSnapshot snapshot = histogram(value);
+        for (int i = 0; i < snapshot.getBucketCount(); i++) {
+            if (snapshot.getBucket(i) == 1) return i;
+        }
+        throw new AssertionError("Value not recorded: " + value);
+    }
+
+    @Test
+    public void valuesFallInPowerOfTwoBuckets() {
+        //Valor, faixa.
+        final long[][] table = {
+                {0, 0},
+                {1, 1},
+                {2, 2},
+                {3, 2},
+                {4, 3},
+                {7, 3},
+                {8, 4},
+                {1023, 10},
+                {1024, 11},
+                {(1L << 62) - 1, 62},
+                {1L << 62, 63},
+                {Long.MAX_VALUE, 63},
+        };
+
+        for (long[] row : table) assertEquals("value " + row[0], row[1], bucketOf(row[0]));
+        assertEquals(BlueStats.Histogram.BUCKETS, histogram().getBucketCount());
+    }
+
+    @Test
+    public void negativeValuesCountAsZero() {
+        final BlueStats.HistogramSnapshot snapshot = histogram(-5);
+
+        assertEquals(1, snapshot.getBucket(0));
+        assertEquals(0, snapshot.getSum());
+        assertEquals(0, snapshot.getMax());
+    }
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        final BlueStats.HistogramSnapshot snapshot = histogram();
+
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getPercentile(50));
+        assertEquals(0, snapshot.getPercentile(100));
+        assertEquals(0, snapshot.getMean(), 0);
+    }
+
+    @Test
+    public void percentileIsTheUpperBoundOfItsBucket() {
+        //Dez valores: 0, 1, 2, 3, 5, 6, 9, 17, 33, 100.
+        final BlueStats.HistogramSnapshot snapshot = histogram(0, 1, 2, 3, 5, 6, 9, 17, 33, 100);
+
+        assertEquals(10, snapshot.getCount());
+        assertEquals(176, snapshot.getSum());
+        assertEquals(17.6, snapshot.getMean(), 1e-9);
+        assertEquals(0, snapshot.getPercentile(0));
+        assertEquals(0, snapshot.getPercentile(10));
+        assertEquals(1, snapshot.getPercentile(20));
+        assertEquals(3, snapshot.getPercentile(40));
+        assertEquals(7, snapshot.getPercentile(60));
+        assertEquals(15, snapshot.getPercentile(70));
+        assertEquals(31, snapshot.getPercentile(80));
+        assertEquals(63, snapshot.getPercentile(90));
+    }
+
+    @Test
+    public void percentileIsClampedToTheMaximum() {
+        //100 está na faixa de 64 a 127, mas nenhum valor passou de 100.
+        assertEquals(100, histogram(0, 1, 2, 3, 5, 6, 9, 17, 33, 100).getPercentile(100));
+        assertEquals(1000, histogram(1000).getPercentile(50));
+        assertEquals(Long.MAX_VALUE, histogram(0, Long.MAX_VALUE).getPercentile(99));
+        assertEquals(0, histogram(0, 0, Long.MAX_VALUE).getPercentile(50));
+    }
+
+    @Test
+    public void countersAreAccumulated() {
+        final BlueStats stats = new BlueStats();
+        stats.onRead(10);
+        stats.onRead(20);
+        stats.onWrite(5, 1000);
+        stats.onConnected();
+        stats.onReconnect();
+        stats.onConnectionFailed();
+        stats.onConnectionLost();
+
+        final BlueStats.Snapshot snapshot = stats.snapshot();
+
+        assertEquals(30, snapshot.getBytesReceived());
+        assertEquals(2, snapshot.getMessagesReceived());
+        assertEquals(5, snapshot.getBytesSent());
+        assertEquals(1, snapshot.getMessagesSent());
+        assertEquals(1, snapshot.getConnections());
+        assertEquals(1, snapshot.getReconnects());
+        assertEquals(1, snapshot.getConnectionFailures());
+        assertEquals(1, snapshot.getConnectionsLost());
+        assertEquals(1000, snapshot.getWriteLatency().getMax());
+        assertEquals(2, snapshot.getReadChunkSize().getCount());
+        assertEquals(20, snapshot.getReadChunkSize().getMax());
+    }
+
+    @Test
+    public void timeInStateIncludesTheCurrentState() throws Exception {
+        final BlueStats stats = new BlueStats();
+        stats.onStateChanged(BlueService.STATE_CONNECTING);
+        Thread.sleep(100);
+        stats.onStateChanged(BlueService.STATE_CONNECTED);
+        Thread.sleep(50);
+
+        final BlueStats.Snapshot first = stats.snapshot();
+        final long connecting = first.getTimeInStateMillis(BlueService.STATE_CONNECTING);
+        final long connected = first.getTimeInStateMillis(BlueService.STATE_CONNECTED);
+
+        assertTrue("connecting " + connecting, connecting >= 100);
+        assertTrue("connected " + connected, connected >= 50);
+        assertEquals(0, first.getTimeInStateMillis(BlueService.STATE_LISTEN));
+        //Cada estado em milissegundos arredondados para baixo: no máximo 1ms a menos por estado.
+        final long total = first.getTimeInStateMillis(BlueService.STATE_NONE) + connecting + connected;
+        assertTrue(total <= first.getUptimeMillis() + 1 && total >= first.getUptimeMillis() - 3);
+
+        Thread.sleep(20);
+
+        final BlueStats.Snapshot second = stats.snapshot();
+        assertEquals(connecting, second.getTimeInStateMillis(BlueService.STATE_CONNECTING));
+        assertTrue(second.getTimeInStateMillis(BlueService.STATE_CONNECTED) >= connected + 20);
+    }
+}
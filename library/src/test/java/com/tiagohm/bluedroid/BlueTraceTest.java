@@ -0,0 +1,175 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BlueTraceTest {
+
+    private static final Pattern READ = Pattern.compile(".* READ +(\\S+) length=(\\d+)$");
+    private static final Pattern WRITE = Pattern.compile(".* WRITE +T(\\d+) length=(\\d+) latency=(\\d+)us$");
+
+    @After
+    public void tearDown() {
+        BlueTrace.disable();
+    }
+
+    private static List<String> dump() throws IOException {
+        final StringWriter writer = new StringWriter();
+        BlueTrace.dump(writer);
+        final String text = writer.toString();
+        return text.isEmpty() ? new ArrayList<String>() : new ArrayList<>(Arrays.asList(text.split("\\r?\\n")));
+    }
+
+    @Test
+    public void disabledTraceDumpsNothing() throws Exception {
+        BlueTrace.read("A", 1);
+
+        assertFalse(BlueTrace.isEnabled());
+        assertTrue(dump().isEmpty());
+    }
+
+    @Test
+    public void capacityIsRoundedUpToAPowerOfTwo() throws Exception {
+        BlueTrace.enable(20);
+        for (int i = 0; i < 100; i++) BlueTrace.read("A", i);
+
+        assertEquals(1 + 32, dump().size());
+    }
+
+    @Test
+    public void eventsAreDumpedInOrder() throws Exception {
+        BlueTrace.enable(16);
+        BlueTrace.sessionState("A", BlueService.STATE_NONE, BlueService.STATE_CONNECTING);
+        BlueTrace.serviceState(BlueService.STATE_LISTEN, BlueService.STATE_CONNECTED);
+        BlueTrace.read("A", 10);
+        BlueTrace.write("A", 5, 7000);
+        BlueTrace.reconnect("A", 2, 100);
+        BlueTrace.error("A", new IOException("boom"));
+
+        final List<String> lines = dump();
+
+        assertEquals(7, lines.size());
+        assertTrue(lines.get(0), lines.get(0).startsWith("# BlueTrace: 6 events since "));
+        assertTrue(lines.get(1), lines.get(1).endsWith("SESSION_STATE A 0 -> 2"));
+        assertTrue(lines.get(2), lines.get(2).endsWith("SERVICE_STATE - 1 -> 3"));
+        assertTrue(lines.get(3), lines.get(3).endsWith("READ          A length=10"));
+        assertTrue(lines.get(4), lines.get(4).endsWith("WRITE         A length=5 latency=7us"));
+        assertTrue(lines.get(5), lines.get(5).endsWith("RECONNECT     A attempt=2 delay=100ms"));
+        assertTrue(lines.get(6), lines.get(6).endsWith("ERROR         A java.io.IOException: boom"));
+    }
+
+    @Test
+    public void wrapAroundKeepsTheNewestEvents() throws Exception {
+        BlueTrace.enable(16);
+        for (int i = 0; i < 40; i++) BlueTrace.read("A", i);
+
+        final List<String> lines = dump();
+
+        assertEquals("# BlueTrace: 40 events since", lines.get(0).substring(0, 28));
+        assertEquals(17, lines.size());
+        for (int i = 0; i < 16; i++) {
+            final Matcher matcher = READ.matcher(lines.get(i + 1));
+            assertTrue(lines.get(i + 1), matcher.matches());
+            assertEquals(24 + i, Integer.parseInt(matcher.group(2)));
+        }
+    }
+
+    @Test
+    public void enableDiscardsThePreviousEvents() throws Exception {
+        BlueTrace.enable(16);
+        BlueTrace.read("A", 1);
+        BlueTrace.enable(16);
+        BlueTrace.read("B", 2);
+
+        final List<String> lines = dump();
+
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(1), lines.get(1).endsWith("READ          B length=2"));
+    }
+
+    @Test
+    public void dumpToFile() throws Exception {
+        BlueTrace.enable(16);
+        BlueTrace.read("A", 3);
+        final File file = File.createTempFile("bluetrace", ".txt");
+
+        try {
+            BlueTrace.dump(file);
+            final BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                assertTrue(reader.readLine().startsWith("# BlueTrace: 1 events"));
+                assertTrue(reader.readLine().endsWith("READ          A length=3"));
+            } finally {
+                reader.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void dumpDuringWritesNeverShowsMixedEvents() throws Exception {
+        //Uma thread só, para nunca haver duas escrevendo na mesma posição (ver BlueTrace).
+        BlueTrace.enable(16);
+        final long deadline = System.currentTimeMillis() + 500;
+        final Thread writer = new Thread() {
+            @Override
+            public void run() {
+                //Todos os campos de um evento derivam do mesmo número.
+                for (int n = 0; System.currentTimeMillis() < deadline; n++) {
+                    final int id = n % 7;
+                    final int length = id * 1000000 + n % 1000;
+                    BlueTrace.write("T" + id, length, length * 1000L);
+                }
+            }
+        };
+        writer.start();
+
+        int checked = 0;
+        while (System.currentTimeMillis() < deadline) {
+            final List<String> lines = dump();
+            for (String line : lines.subList(1, lines.size())) {
+                final Matcher matcher = WRITE.matcher(line);
+                assertTrue(line, matcher.matches());
+                final long length = Long.parseLong(matcher.group(2));
+                assertEquals(line, Long.parseLong(matcher.group(1)), length / 1000000);
+                assertEquals(line, length, Long.parseLong(matcher.group(3)));
+                checked++;
+            }
+        }
+
+        writer.join();
+        assertTrue(checked > 0);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Envios de {@link ByteBuffer}s por {@link BlueService#writeAsync(LineBreakType, ByteBuffer...)},
+ * conferidos no outro lado da conexão.
+ */
+public class BufferWriteTest {
+
+    private static final byte[] FIRST = {'a', 'b'};
+    private static final byte[] SECOND = {'c', 'd', 'e'};
+
+    private LoopbackPair mPair;
+
+    @Before
+    public void setUp() throws Exception {
+        mPair = new LoopbackPair();
+        mPair.connect();
+    }
+
+    @After
+    public void tearDown() {
+        mPair.stop();
+    }
+
+    private enum Kind {
+        HEAP, DIRECT, READ_ONLY
+    }
+
+    /**
+     * Um buffer com {@code data} entre a posição e o limite, e um byte de sobra antes e depois.
+     */
+    private static ByteBuffer buffer(Kind kind, byte[] data) {
+        final ByteBuffer b = kind == Kind.DIRECT
+                ? ByteBuffer.allocateDirect(data.length + 2)
+                : ByteBuffer.allocate(data.length + 2);
+        b.put((byte) '<').put(data).put((byte) '>');
+        b.position(1).limit(data.length + 1);
+        return kind == Kind.READ_ONLY ? b.asReadOnlyBuffer() : b;
+    }
+
+    private void sendsEveryLineBreak(Kind kind) throws Exception {
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+
+        for (LineBreakType lbt : LineBreakType.values()) {
+            final ByteBuffer first = buffer(kind, FIRST);
+            final ByteBuffer second = buffer(kind, SECOND);
+            final byte[] suffix = lbt.bytes() != null ? lbt.bytes() : new byte[0];
+
+            final int written = mPair.client.writeAsync(lbt, first, second).timeout(LoopbackPair.TIMEOUT).get();
+
+            assertEquals(FIRST.length + SECOND.length + suffix.length, written);
+            //A posição e o limite de quem enviou não mudam.
+            assertEquals(1, first.position());
+            assertEquals(FIRST.length + 1, first.limit());
+            assertEquals(1, second.position());
+            assertEquals(SECOND.length + 1, second.limit());
+
+            expected.write(FIRST);
+            expected.write(SECOND);
+            expected.write(suffix);
+        }
+
+        final byte[] bytes = expected.toByteArray();
+        assertArrayEquals(bytes, mPair.serverCallback.awaitReceived(bytes.length, LoopbackPair.TIMEOUT));
+    }
+
+    @Test(timeout = 10000)
+    public void heapBuffers() throws Exception {
+        sendsEveryLineBreak(Kind.HEAP);
+    }
+
+    @Test(timeout = 10000)
+    public void directBuffers() throws Exception {
+        sendsEveryLineBreak(Kind.DIRECT);
+    }
+
+    @Test(timeout = 10000)
+    public void readOnlyBuffers() throws Exception {
+        sendsEveryLineBreak(Kind.READ_ONLY);
+    }
+
+    @Test(timeout = 10000)
+    public void crlfIsSentAsCrThenLf() throws Exception {
+        mPair.client.writeAsync(LineBreakType.CRLF, buffer(Kind.DIRECT, FIRST)).timeout(LoopbackPair.TIMEOUT).get();
+        mPair.client.writeAsync(LineBreakType.WINDOWS, buffer(Kind.HEAP, SECOND)).timeout(LoopbackPair.TIMEOUT).get();
+
+        assertArrayEquals(new byte[]{'a', 'b', '\r', '\n', 'c', 'd', 'e', '\r', '\n'},
+                mPair.serverCallback.awaitReceived(9, LoopbackPair.TIMEOUT));
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.zip.Checksum;
+
+import static org.junit.Assert.assertEquals;
+
+public class ChecksumTypeTest {
+
+    private static final byte[] CHECK = "123456789".getBytes(Charset.forName("US-ASCII"));
+
+    @Test
+    public void crc16CheckValue() {
+        assertEquals(0x29B1, checksum(ChecksumType.CRC16, CHECK));
+    }
+
+    @Test
+    public void crc32CheckValue() {
+        assertEquals(0xCBF43926L, checksum(ChecksumType.CRC32, CHECK));
+    }
+
+    @Test
+    public void crc16ByteAndBlockUpdatesAgree() {
+        final Checksum checksum = ChecksumType.CRC16.create();
+        for (byte b : CHECK) checksum.update(b);
+
+        assertEquals(0x29B1, checksum.getValue());
+
+        checksum.reset();
+        checksum.update(new byte[]{(byte) 0x80, (byte) 0xFF}, 0, 2);
+        final long block = checksum.getValue();
+        checksum.reset();
+        checksum.update(0x80);
+        checksum.update(0xFF);
+
+        assertEquals(block, checksum.getValue());
+    }
+
+    @Test
+    public void noneHasNoChecksum() {
+        assertEquals(0, ChecksumType.NONE.width);
+        assertEquals(null, ChecksumType.NONE.create());
+    }
+
+    private static long checksum(ChecksumType type, byte[] data) {
+        final Checksum checksum = type.create();
+        checksum.update(data, 0, data.length);
+        return checksum.getValue();
+    }
+}
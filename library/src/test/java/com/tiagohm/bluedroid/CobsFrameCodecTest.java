@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import org.junit.Test;
+
+import static com.tiagohm.bluedroid.RecordingFrameListener.bytes;
+import static com.tiagohm.bluedroid.RecordingFrameListener.concat;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class CobsFrameCodecTest {
+
+    private final RecordingFrameListener mListener = new RecordingFrameListener();
+
+    @Test
+    public void encodesReferenceVectors() {
+        final CobsFrameCodec codec = new CobsFrameCodec();
+
+        assertArrayEquals(bytes(0x01, 0x01, 0x00), codec.encode(bytes(0x00), 0, 1));
+        assertArrayEquals(bytes(0x01, 0x01, 0x01, 0x00), codec.encode(bytes(0x00, 0x00), 0, 2));
+        assertArrayEquals(bytes(0x03, 0x11, 0x22, 0x02, 0x33, 0x00), codec.encode(bytes(0x11, 0x22, 0x00, 0x33), 0, 4));
+        assertArrayEquals(bytes(0x05, 0x11, 0x22, 0x33, 0x44, 0x00), codec.encode(bytes(0x11, 0x22, 0x33, 0x44), 0, 4));
+        assertArrayEquals(bytes(0x02, 0x11, 0x01, 0x01, 0x01, 0x00), codec.encode(bytes(0x11, 0x00, 0x00, 0x00), 0, 4));
+    }
+
+    @Test
+    public void decodesReferenceVectorsByteByByte() {
+        final CobsFrameCodec codec = new CobsFrameCodec();
+
+        mListener.decode(codec, concat(
+                bytes(0x03, 0x11, 0x22, 0x02, 0x33, 0x00),
+                bytes(0x02, 0x11, 0x01, 0x01, 0x01, 0x00)), 1);
+
+        assertEquals(2, mListener.frames.size());
+        assertArrayEquals(bytes(0x11, 0x22, 0x00, 0x33), mListener.frames.get(0));
+        assertArrayEquals(bytes(0x11, 0x00, 0x00, 0x00), mListener.frames.get(1));
+    }
+
+    @Test
+    public void fullBlocksOf254BytesHaveNoImplicitZero() {
+        final byte[] data = new byte[254];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) (i + 1);
+        final byte[] canonical = new byte[256];
+        canonical[0] = (byte) 0xFF;
+        System.arraycopy(data, 0, canonical, 1, data.length);
+        final CobsFrameCodec codec = new CobsFrameCodec();
+
+        mListener.decode(codec, canonical, 100);
+        mListener.decode(codec, codec.encode(data, 0, data.length), 100);
+
+        assertEquals(2, mListener.frames.size());
+        assertArrayEquals(data, mListener.frames.get(0));
+        assertArrayEquals(data, mListener.frames.get(1));
+    }
+
+    @Test
+    public void roundTripWithCrcInAnyChunking() {
+        final CobsFrameCodec codec = new CobsFrameCodec(ChecksumType.CRC16, 1024);
+        final byte[] data = new byte[600];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) (i % 7 == 0 ? 0 : i);
+        final byte[] encoded = concat(codec.encode(data, 0, data.length), codec.encode(new byte[0], 0, 0));
+
+        for (int chunk = 1; chunk <= encoded.length; chunk += 37) {
+            mListener.frames.clear();
+            mListener.decode(codec, encoded, chunk);
+
+            assertEquals(2, mListener.frames.size());
+            assertArrayEquals(data, mListener.frames.get(0));
+            assertEquals(0, mListener.frames.get(1).length);
+        }
+        assertEquals(0, codec.getDroppedFrames());
+    }
+
+    @Test
+    public void corruptedFrameIsDroppedAndTheNextOneDecoded() {
+        final CobsFrameCodec codec = new CobsFrameCodec(ChecksumType.CRC32, 64);
+        final byte[] bad = codec.encode(bytes(1, 2, 3), 0, 3);
+        bad[2] ^= 0x40;
+
+        mListener.decode(codec, concat(bad, codec.encode(bytes(4, 5), 0, 2)), 3);
+
+        assertEquals(1, codec.getDroppedFrames());
+        assertEquals(1, mListener.frames.size());
+        assertArrayEquals(bytes(4, 5), mListener.frames.get(0));
+    }
+
+    @Test
+    public void oversizedFrameIsDroppedUntilTheDelimiter() {
+        final CobsFrameCodec codec = new CobsFrameCodec(ChecksumType.NONE, 4);
+
+        mListener.decode(codec, concat(codec.encode(bytes(1, 2, 3, 4, 5), 0, 5), codec.encode(bytes(6), 0, 1)), 2);
+
+        assertEquals(1, codec.getDroppedFrames());
+        assertEquals(1, mListener.frames.size());
+        assertArrayEquals(bytes(6), mListener.frames.get(0));
+    }
+
+    @Test
+    public void consecutiveDelimitersAreIgnored() {
+        final CobsFrameCodec codec = new CobsFrameCodec();
+
+        mListener.decode(codec, bytes(0x00, 0x00, 0x02, 0x09, 0x00, 0x00), 6);
+
+        assertEquals(0, codec.getDroppedFrames());
+        assertEquals(1, mListener.frames.size());
+        assertArrayEquals(bytes(0x09), mListener.frames.get(0));
+    }
+}
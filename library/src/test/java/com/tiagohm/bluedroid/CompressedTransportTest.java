@@ -0,0 +1,413 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CompressedTransportTest {
+
+    private static final int HEADER_SIZE = 3;
+
+    private final LoopbackTransport.Network mNetwork = new LoopbackTransport.Network();
+    private final List<Closeable> mCloseables = new ArrayList<>();
+
+    @After
+    public void tearDown() throws IOException {
+        for (Closeable closeable : mCloseables) closeable.close();
+    }
+
+    /**
+     * Um {@link CompressedTransport} cujo canal comprimido conta os bytes enviados.
+     */
+    private CompressedTransport compressed(String address, boolean deflate, CountingTransport channel) {
+        return new CompressedTransport(new LoopbackTransport(mNetwork, address), channel, Deflater.BEST_SPEED, deflate);
+    }
+
+    private CountingTransport channel(String address) {
+        return new CountingTransport(new LoopbackTransport(mNetwork, address).getCompressedChannel());
+    }
+
+    private Transport.Connection[] connect(Transport server, Transport client) throws Exception {
+        final Transport.Acceptor acceptor = server.listen(true, true);
+        mCloseables.add(acceptor);
+        final BlockingQueue<Transport.Connection> accepted = acceptChannels(acceptor);
+        final Transport.Connection outgoing = client.open("S", true, true);
+        mCloseables.add(outgoing);
+        outgoing.connect();
+        final Transport.Connection incoming = accepted.take();
+        mCloseables.add(incoming);
+        return new Transport.Connection[]{outgoing, incoming};
+    }
+
+    /**
+     * Aceita cada canal numa thread, como as tarefas do {@link BlueService}, até a escuta fechar.
+     */
+    private static BlockingQueue<Transport.Connection> acceptChannels(Transport.Acceptor acceptor) {
+        final BlockingQueue<Transport.Connection> accepted = new LinkedBlockingQueue<>();
+        final Transport.Acceptor[] channels = acceptor instanceof CompressedTransport.ChannelAcceptor
+                ? ((CompressedTransport.ChannelAcceptor) acceptor).getChannels()
+                : new Transport.Acceptor[]{acceptor};
+
+        for (final Transport.Acceptor channel : channels) {
+            final Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) accepted.add(channel.accept());
+                    } catch (IOException ignored) {
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        return accepted;
+    }
+
+    @Test(timeout = 10000)
+    public void compressesBothDirections() throws Exception {
+        final CountingTransport serverChannel = channel("S");
+        final CountingTransport clientChannel = channel("C");
+        final Transport.Connection[] c = connect(compressed("S", true, serverChannel), compressed("C", true, clientChannel));
+        final byte[] text = repeat("BlueDroid compressed transport test. ", 64 * 1024);
+
+        assertArrayEquals(text, transfer(c[0], c[1], text));
+        assertArrayEquals(text, transfer(c[1], c[0], text));
+
+        assertTrue(clientChannel.written() < text.length / 4);
+        assertTrue(serverChannel.written() < text.length / 4);
+    }
+
+    @Test(timeout = 10000)
+    public void eachDirectionFollowsTheSenderCapability() throws Exception {
+        final CountingTransport serverChannel = channel("S");
+        final CountingTransport clientChannel = channel("C");
+        final Transport.Connection[] c = connect(compressed("S", false, serverChannel), compressed("C", true, clientChannel));
+        final byte[] text = repeat("abc", 30000);
+
+        assertArrayEquals(text, transfer(c[0], c[1], text));
+        assertArrayEquals(text, transfer(c[1], c[0], text));
+
+        assertTrue(clientChannel.written() < text.length / 4);
+        //Sem compressão, só o cumprimento e os dados, sem cabeçalhos de bloco.
+        assertEquals(CompressedTransport.HELLO_SIZE + text.length, serverChannel.written());
+    }
+
+    @Test(timeout = 10000)
+    public void fallsBackToThePlainChannelWithoutExtraBytes() throws Exception {
+        final CountingTransport plain = new CountingTransport(new LoopbackTransport(mNetwork, "S"));
+        final CountingTransport clientChannel = channel("C");
+        final Transport.Connection[] c = connect(plain, compressed("C", true, clientChannel));
+        final byte[] text = repeat("plain", 10000);
+
+        assertArrayEquals(text, transfer(c[0], c[1], text));
+        assertArrayEquals(text, transfer(c[1], c[0], text));
+
+        assertEquals(text.length, plain.written());
+        assertEquals(0, clientChannel.written());
+    }
+
+    @Test(timeout = 10000)
+    public void invalidHandshakeFallsBackToThePlainChannel() throws Exception {
+        final Transport.Acceptor fake = new LoopbackTransport(mNetwork, "S").getCompressedChannel().listen(true, true);
+        mCloseables.add(fake);
+        final Thread impostor = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    final Transport.Connection connection = fake.accept();
+                    connection.getOutputStream().write(new byte[]{'X', 'X', 'X', 1, 3});
+                    connection.getOutputStream().flush();
+                } catch (IOException ignored) {
+                }
+            }
+        };
+        impostor.start();
+
+        final Transport.Connection[] c = connect(new LoopbackTransport(mNetwork, "S"), compressed("C", true, channel("C")));
+        final byte[] text = repeat("ok", 100);
+
+        assertArrayEquals(text, transfer(c[0], c[1], text));
+        impostor.join();
+    }
+
+    @Test(timeout = 10000)
+    public void silentHandshakeTimesOutAndFallsBackToThePlainChannel() throws Exception {
+        final Transport.Acceptor silent = new LoopbackTransport(mNetwork, "S").getCompressedChannel().listen(true, true);
+        mCloseables.add(silent);
+        final BlockingQueue<Transport.Connection> silentAccepted = acceptChannels(silent);
+        final long start = System.currentTimeMillis();
+
+        final Transport.Connection[] c = connect(new LoopbackTransport(mNetwork, "S"), compressed("C", true, channel("C")));
+        final long elapsed = System.currentTimeMillis() - start;
+        mCloseables.add(silentAccepted.take());
+        final byte[] text = repeat("late", 100);
+
+        assertArrayEquals(text, transfer(c[0], c[1], text));
+        assertTrue(elapsed >= CompressedTransport.HANDSHAKE_TIMEOUT_MILLIS);
+    }
+
+    @Test(timeout = 10000)
+    public void acceptorExposesBothChannels() throws Exception {
+        final Transport.Acceptor acceptor = compressed("S", true, channel("S")).listen(true, true);
+        mCloseables.add(acceptor);
+
+        assertTrue(acceptor instanceof CompressedTransport.ChannelAcceptor);
+        assertEquals(2, ((CompressedTransport.ChannelAcceptor) acceptor).getChannels().length);
+    }
+
+    @Test(timeout = 10000)
+    public void serviceAcceptsBothChannelsOnItsWorkers() throws Exception {
+        final CountingTransport serverChannel = channel("S");
+        final BlueService server = new BlueService(new RecordingCallback(), compressed("S", true, serverChannel));
+        server.setMultiSession(true);
+        server.start(true, true);
+
+        try {
+            final Transport.Connection compressed = compressed("C", true, channel("C")).open("S", true, true);
+            mCloseables.add(compressed);
+            compressed.connect();
+            final Transport.Connection plain = new LoopbackTransport(mNetwork, "P").open("S", true, true);
+            mCloseables.add(plain);
+            plain.connect();
+
+            awaitSession(server, "C");
+            awaitSession(server, "P");
+            assertEquals(CompressedTransport.HELLO_SIZE, serverChannel.written());
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void awaitSession(BlueService service, String address) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + LoopbackPair.TIMEOUT;
+        BlueSession session;
+        while ((session = service.getSession(address)) == null || !session.isConnected()) {
+            if (System.currentTimeMillis() > deadline) throw new AssertionError(address + " not accepted");
+            Thread.sleep(5);
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void incompressibleBlocksAreSentRaw() throws Exception {
+        final CountingTransport clientChannel = channel("C");
+        final Transport.Connection[] c = connect(compressed("S", true, channel("S")), compressed("C", true, clientChannel));
+        final byte[] noise = new byte[4 * CompressedTransport.BLOCK_SIZE];
+        new Random(1).nextBytes(noise);
+
+        assertArrayEquals(noise, transfer(c[0], c[1], noise));
+
+        final long written = clientChannel.written() - CompressedTransport.HELLO_SIZE;
+        assertTrue(written <= noise.length + 4 * HEADER_SIZE);
+    }
+
+    @Test(timeout = 20000)
+    public void compressionResumesAfterIncompressibleBlocks() throws Exception {
+        final CountingTransport clientChannel = channel("C");
+        final Transport.Connection[] c = connect(compressed("S", true, channel("S")), compressed("C", true, clientChannel));
+        final byte[] data = new byte[40 * CompressedTransport.BLOCK_SIZE];
+        new Random(2).nextBytes(data);
+        //Um bloco aleatório e depois só zeros: os blocos de zeros voltam a ser comprimidos.
+        Arrays.fill(data, CompressedTransport.BLOCK_SIZE, data.length, (byte) 0);
+
+        assertArrayEquals(data, transfer(c[0], c[1], data));
+
+        assertTrue(clientChannel.written() < 20 * CompressedTransport.BLOCK_SIZE);
+    }
+
+    @Test(timeout = 10000)
+    public void connectionsToOtherDevicesBypassCompression() throws Exception {
+        final CountingTransport serverChannel = channel("S");
+        final CountingTransport clientChannel = channel("C");
+        final Transport.Acceptor acceptor = compressed("S", true, serverChannel).listen(false, true);
+        mCloseables.add(acceptor);
+        final Transport.Connection outgoing = compressed("C", true, clientChannel).open("S", false, true);
+        mCloseables.add(outgoing);
+        outgoing.connect();
+        final Transport.Connection incoming = acceptor.accept();
+        mCloseables.add(incoming);
+        final byte[] text = repeat("other", 1000);
+
+        assertArrayEquals(text, transfer(outgoing, incoming, text));
+        assertEquals(0, clientChannel.written());
+        assertEquals(0, serverChannel.written());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void requiresACompressedChannel() {
+        new CompressedTransport(new Transport() {
+            @Override
+            public Connection open(String address, boolean android, boolean secure) {
+                return null;
+            }
+
+            @Override
+            public Acceptor listen(boolean android, boolean secure) {
+                return null;
+            }
+        });
+    }
+
+    private static byte[] repeat(String text, int length) {
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) bytes[i] = (byte) text.charAt(i % text.length());
+        return bytes;
+    }
+
+    /**
+     * Envia {@code data} de uma ponta, em pedaços como a tarefa de escrita, e retorna o que chegou
+     * na outra.
+     */
+    private static byte[] transfer(Transport.Connection from, Transport.Connection to, final byte[] data) throws Exception {
+        final InputStream in = to.getInputStream();
+        final byte[] received = new byte[data.length];
+        final IOException[] error = new IOException[1];
+        final Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    int total = 0;
+                    while (total < received.length) {
+                        final int n = in.read(received, total, received.length - total);
+                        if (n < 0) throw new IOException("End of stream after " + total + " bytes");
+                        total += n;
+                    }
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        };
+        reader.start();
+
+        final OutputStream out = from.getOutputStream();
+        for (int i = 0; i < data.length; i += 990) {
+            out.write(data, i, Math.min(990, data.length - i));
+        }
+        out.flush();
+        reader.join();
+
+        if (error[0] != null) throw error[0];
+        return received;
+    }
+
+    /**
+     * Conta os bytes enviados pelas conexões abertas e aceitas.
+     */
+    private static final class CountingTransport implements Transport {
+        private final Transport mTransport;
+        private final AtomicLong mWritten = new AtomicLong();
+
+        CountingTransport(Transport transport) {
+            mTransport = transport;
+        }
+
+        long written() {
+            return mWritten.get();
+        }
+
+        @Override
+        public Connection open(String address, boolean android, boolean secure) throws IOException {
+            return new CountingConnection(mTransport.open(address, android, secure));
+        }
+
+        @Override
+        public Acceptor listen(boolean android, boolean secure) throws IOException {
+            final Acceptor acceptor = mTransport.listen(android, secure);
+            return new Acceptor() {
+                @Override
+                public Connection accept() throws IOException {
+                    return new CountingConnection(acceptor.accept());
+                }
+
+                @Override
+                public void close() throws IOException {
+                    acceptor.close();
+                }
+            };
+        }
+
+        private final class CountingConnection implements Connection {
+            private final Connection mConnection;
+
+            CountingConnection(Connection connection) {
+                mConnection = connection;
+            }
+
+            @Override
+            public void connect() throws IOException {
+                mConnection.connect();
+            }
+
+            @Override
+            public InputStream getInputStream() throws IOException {
+                return mConnection.getInputStream();
+            }
+
+            @Override
+            public OutputStream getOutputStream() throws IOException {
+                final OutputStream out = mConnection.getOutputStream();
+                return new OutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        out.write(b);
+                        mWritten.incrementAndGet();
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                        mWritten.addAndGet(len);
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        out.flush();
+                    }
+                };
+            }
+
+            @Override
+            public String getAddress() {
+                return mConnection.getAddress();
+            }
+
+            @Override
+            public void close() throws IOException {
+                mConnection.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceCacheTest {
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("bluedroid-devices", ".bin");
+        assertTrue(mFile.delete());
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void roundTripKeepsEveryField() throws Exception {
+        final DeviceCache cache = new DeviceCache(mFile);
+        cache.put(new Device("Phone", "00:11:22:AA:BB:CC", false, 0x020C));
+        cache.putAll(Arrays.asList(new Device("Fone \u00e9 \u2713", "12:34:56:78:9A:BC", true, 0x0404)));
+        cache.put(new Device(null, "tcp://192.168.0.10:5000", false, 0));
+        cache.save();
+
+        final DeviceCache loaded = new DeviceCache(mFile);
+        loaded.load();
+        final List<Device> devices = loaded.getDevices();
+
+        assertEquals(3, devices.size());
+        assertDevice(devices.get(0), null, "tcp://192.168.0.10:5000", false, 0);
+        assertDevice(devices.get(1), "Fone \u00e9 \u2713", "12:34:56:78:9A:BC", true, 0x0404);
+        assertDevice(devices.get(2), "Phone", "00:11:22:AA:BB:CC", false, 0x020C);
+    }
+
+    @Test
+    public void putMovesTheDeviceToTheFrontAndKeepsItsName() {
+        final DeviceCache cache = new DeviceCache(mFile);
+        cache.put(new Device("A", "00:00:00:00:00:0A", false, 0));
+        cache.put(new Device("B", "00:00:00:00:00:0B", false, 0));
+        cache.put(new Device(null, "00:00:00:00:00:0A", false, 0));
+
+        final List<Device> devices = cache.getDevices();
+
+        assertEquals("00:00:00:00:00:0A", devices.get(0).getAddress());
+        assertEquals("A", devices.get(0).getName());
+        assertEquals("00:00:00:00:00:0B", devices.get(1).getAddress());
+    }
+
+    @Test
+    public void unpairedDevicesExpireAfterTheTtl() throws Exception {
+        final DeviceCache cache = new DeviceCache(mFile, 50);
+        cache.put(new Device("Seen", "00:00:00:00:00:01", false, 0));
+        cache.putAll(Arrays.asList(new Device("Paired", "00:00:00:00:00:02", true, 0)));
+        cache.save();
+
+        Thread.sleep(100);
+
+        assertNull(cache.get("00:00:00:00:00:01"));
+        assertEquals(1, cache.getDevices().size());
+        assertEquals("Paired", cache.getDevices().get(0).getName());
+
+        final DeviceCache loaded = new DeviceCache(mFile, 50);
+        loaded.load();
+
+        assertEquals(1, loaded.getDevices().size());
+        assertEquals("00:00:00:00:00:02", loaded.getDevices().get(0).getAddress());
+    }
+
+    @Test
+    public void devicesAddedBeforeLoadingAreTheNewest() throws Exception {
+        final DeviceCache saved = new DeviceCache(mFile);
+        saved.put(new Device("Old", "00:00:00:00:00:01", false, 0));
+        saved.put(new Device("Other", "00:00:00:00:00:02", false, 0));
+        saved.save();
+
+        final DeviceCache cache = new DeviceCache(mFile);
+        cache.put(new Device("New", "00:00:00:00:00:01", false, 0));
+        cache.load();
+        final List<Device> devices = cache.getDevices();
+
+        assertEquals(2, devices.size());
+        assertEquals("New", devices.get(0).getName());
+        assertEquals("Other", devices.get(1).getName());
+    }
+
+    @Test
+    public void invalidOrMissingFileIsIgnored() throws Exception {
+        final DeviceCache missing = new DeviceCache(mFile);
+        missing.load();
+        assertTrue(missing.getDevices().isEmpty());
+
+        final FileOutputStream out = new FileOutputStream(mFile);
+        out.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        out.close();
+
+        final DeviceCache invalid = new DeviceCache(mFile);
+        invalid.load();
+        assertTrue(invalid.getDevices().isEmpty());
+    }
+
+    @Test
+    public void saveOnlyWritesChanges() throws Exception {
+        final DeviceCache cache = new DeviceCache(mFile);
+        cache.save();
+        assertFalse(mFile.exists());
+
+        cache.put(new Device("A", "00:00:00:00:00:0A", false, 0));
+        cache.save();
+        assertTrue(mFile.exists());
+        assertTrue(mFile.setLastModified(0));
+
+        cache.save();
+        assertEquals(0, mFile.lastModified());
+    }
+
+    private static void assertDevice(Device device, String name, String address, boolean paired, int deviceClass) {
+        assertEquals(name, device.getName());
+        assertEquals(address, device.getAddress());
+        assertEquals(paired, device.isPaired());
+        assertEquals(deviceClass, device.getDeviceClass());
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceRegistryTest {
+
+    private static final String A = "00:00:00:00:00:0A";
+    private static final String B = "00:00:00:00:00:0B";
+    private static final String C = "00:00:00:00:00:0C";
+
+    private final DeviceRegistry mRegistry = new DeviceRegistry();
+
+    @Test
+    public void eachAddressAppearsOnce() {
+        assertEquals(DeviceRegistry.ADDED, mRegistry.put(new Device("A", A, false, 0), -40, 100));
+        assertEquals(DeviceRegistry.ADDED, mRegistry.put(new Device("B", B, false, 0), -50, 100));
+        assertEquals(DeviceRegistry.UNCHANGED, mRegistry.put(new Device("A", A, false, 0), -40, 200));
+
+        assertEquals(2, mRegistry.size());
+        assertEquals(A, mRegistry.getDevices().get(0).getAddress());
+        assertEquals(B, mRegistry.getDevices().get(1).getAddress());
+    }
+
+    @Test
+    public void sightingsUpdateRssiAndTimes() {
+        mRegistry.put(new Device("A", A, false, 0), -40, 100);
+        assertEquals(DeviceRegistry.UPDATED, mRegistry.put(new Device("A", A, false, 0), -70, 300));
+
+        final DeviceRegistry.Entry entry = mRegistry.get(A);
+        assertEquals(-70, entry.getRssi());
+        assertEquals(100, entry.getFirstSeen());
+        assertEquals(300, entry.getLastSeen());
+        assertEquals(2, entry.getSightingCount());
+    }
+
+    @Test
+    public void sightingWithoutNameKeepsTheKnownName() {
+        mRegistry.put(new Device("Name", A, false, 0), -40, 100);
+
+        assertEquals(DeviceRegistry.UNCHANGED, mRegistry.put(new Device(null, A, false, 0), -40, 200));
+        assertEquals("Name", mRegistry.get(A).getDevice().getName());
+
+        assertEquals(DeviceRegistry.UPDATED, mRegistry.put(new Device("Renamed", A, true, 0), -40, 300));
+        assertEquals("Renamed", mRegistry.get(A).getDevice().getName());
+        assertTrue(mRegistry.get(A).getDevice().isPaired());
+    }
+
+    @Test
+    public void knownDevicesAreNotSightings() {
+        final DeviceRegistry.Entry entry = mRegistry.add(new Device("A", A, true, 0));
+
+        assertSame(entry, mRegistry.get(A));
+        assertNull(mRegistry.add(new Device("A", A, true, 0)));
+        assertEquals(0, entry.getSightingCount());
+        assertEquals(0, entry.getFirstSeen());
+        assertEquals(DeviceRegistry.RSSI_UNKNOWN, entry.getRssi());
+
+        assertEquals(DeviceRegistry.UPDATED, mRegistry.put(new Device("A", A, true, 0), -60, 500));
+        assertEquals(500, entry.getFirstSeen());
+        assertEquals(1, entry.getSightingCount());
+    }
+
+    @Test
+    public void removesOnlyStaleUnpairedSightings() {
+        mRegistry.add(new Device("Known", A, false, 0));
+        mRegistry.put(new Device("Stale", B, false, 0), -40, 100);
+        mRegistry.put(new Device("Fresh", C, false, 0), -40, 300);
+        mRegistry.put(new Device("Paired", "00:00:00:00:00:0D", true, 0), -40, 100);
+
+        final List<DeviceRegistry.Entry> removed = mRegistry.removeNotSeenSince(200);
+
+        assertEquals(1, removed.size());
+        assertEquals(B, removed.get(0).getDevice().getAddress());
+        assertEquals(3, mRegistry.size());
+        assertTrue(mRegistry.contains(A));
+        assertTrue(mRegistry.contains(C));
+    }
+
+    @Test
+    public void clearReturnsEveryEntry() {
+        mRegistry.add(new Device("A", A, false, 0));
+        mRegistry.put(new Device("B", B, false, 0), -40, 100);
+
+        assertEquals(2, mRegistry.clear().size());
+        assertEquals(0, mRegistry.size());
+        assertTrue(mRegistry.getEntries().isEmpty());
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import org.junit.Test;
+
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static com.tiagohm.bluedroid.RecordingFrameListener.bytes;
+import static com.tiagohm.bluedroid.RecordingFrameListener.concat;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class LengthPrefixedFrameCodecTest {
+
+    private final RecordingFrameListener mListener = new RecordingFrameListener();
+
+    @Test
+    public void headerUsesTheConfiguredWidthAndOrder() {
+        assertArrayEquals(bytes(0x00, 0x02, 0xAA, 0xBB),
+                new LengthPrefixedFrameCodec(2, ByteOrder.BIG_ENDIAN).encode(bytes(0xAA, 0xBB), 0, 2));
+        assertArrayEquals(bytes(0x02, 0x00, 0x00, 0x00, 0xAA, 0xBB),
+                new LengthPrefixedFrameCodec(4, ByteOrder.LITTLE_ENDIAN).encode(bytes(0xAA, 0xBB), 0, 2));
+    }
+
+    @Test
+    public void crcFollowsTheBodyInTheHeaderOrder() {
+        final byte[] check = "123456789".getBytes();
+        final byte[] big = new LengthPrefixedFrameCodec(1, ByteOrder.BIG_ENDIAN, ChecksumType.CRC16, 64).encode(check, 0, 9);
+        final byte[] little = new LengthPrefixedFrameCodec(1, ByteOrder.LITTLE_ENDIAN, ChecksumType.CRC16, 64).encode(check, 0, 9);
+
+        assertArrayEquals(bytes(0x29, 0xB1), Arrays.copyOfRange(big, 10, 12));
+        assertArrayEquals(bytes(0xB1, 0x29), Arrays.copyOfRange(little, 10, 12));
+    }
+
+    @Test
+    public void roundTripInAnyChunking() {
+        final LengthPrefixedFrameCodec codec = new LengthPrefixedFrameCodec(2, ByteOrder.LITTLE_ENDIAN, ChecksumType.CRC32, 1024);
+        final byte[] data = new byte[300];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) i;
+        final byte[] encoded = concat(codec.encode(data, 0, data.length), codec.encode(new byte[0], 0, 0),
+                codec.encode(bytes(7), 0, 1));
+
+        for (int chunk = 1; chunk <= encoded.length; chunk += 29) {
+            mListener.frames.clear();
+            mListener.decode(codec, encoded, chunk);
+
+            assertEquals(3, mListener.frames.size());
+            assertArrayEquals(data, mListener.frames.get(0));
+            assertEquals(0, mListener.frames.get(1).length);
+            assertArrayEquals(bytes(7), mListener.frames.get(2));
+        }
+        assertEquals(0, codec.getDroppedFrames());
+    }
+
+    @Test
+    public void corruptedFrameIsDropped() {
+        final LengthPrefixedFrameCodec codec = new LengthPrefixedFrameCodec(1, ByteOrder.BIG_ENDIAN, ChecksumType.CRC16, 64);
+        final byte[] bad = codec.encode(bytes(1, 2, 3), 0, 3);
+        bad[2] ^= 0x01;
+
+        mListener.decode(codec, concat(bad, codec.encode(bytes(4), 0, 1)), 2);
+
+        assertEquals(1, codec.getDroppedFrames());
+        assertEquals(1, mListener.frames.size());
+        assertArrayEquals(bytes(4), mListener.frames.get(0));
+    }
+
+    @Test
+    public void oversizedFrameIsSkipped() {
+        final LengthPrefixedFrameCodec big = new LengthPrefixedFrameCodec(2, ByteOrder.BIG_ENDIAN, ChecksumType.CRC16, 1024);
+        final LengthPrefixedFrameCodec codec = new LengthPrefixedFrameCodec(2, ByteOrder.BIG_ENDIAN, ChecksumType.CRC16, 16);
+
+        mListener.decode(codec, concat(big.encode(new byte[100], 0, 100), big.encode(bytes(9, 9), 0, 2)), 7);
+
+        assertEquals(1, codec.getDroppedFrames());
+        assertEquals(1, mListener.frames.size());
+        assertArrayEquals(bytes(9, 9), mListener.frames.get(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void encodingAnOversizedFrameFails() {
+        new LengthPrefixedFrameCodec(1, ByteOrder.BIG_ENDIAN).encode(new byte[256], 0, 256);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnsupportedHeaderWidths() {
+        new LengthPrefixedFrameCodec(3, ByteOrder.BIG_ENDIAN);
+    }
+
+    @Test
+    public void resetDiscardsThePartialFrame() {
+        final LengthPrefixedFrameCodec codec = new LengthPrefixedFrameCodec(1, ByteOrder.BIG_ENDIAN);
+
+        codec.decode(bytes(5, 1, 2), 0, 3, mListener);
+        codec.reset();
+        mListener.decode(codec, bytes(1, 8), 2);
+
+        assertEquals(1, mListener.frames.size());
+        assertArrayEquals(bytes(8), mListener.frames.get(0));
+    }
+}
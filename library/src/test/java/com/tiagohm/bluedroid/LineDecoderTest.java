@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class LineDecoderTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final List<String> mLines = new ArrayList<>();
+    private final LineDecoder.LineReceivedListener mListener = new LineDecoder.LineReceivedListener() {
+        @Override
+        public void onLineReceived(byte[] line, int offset, int length) {
+            mLines.add(new String(line, offset, length, ASCII));
+        }
+    };
+
+    @Test
+    public void crLfLinesSplitAcrossChunks() {
+        final LineDecoder decoder = new LineDecoder(LineBreakType.CRLF, mListener);
+
+        feed(decoder, "ab", "c\r", "\nde\r\nf", "g\r\n");
+
+        assertEquals(Arrays.asList("abc", "de", "fg"), mLines);
+    }
+
+    @Test
+    public void lfLines() {
+        final LineDecoder decoder = new LineDecoder(LineBreakType.LF, mListener);
+
+        feed(decoder, "one\ntw", "o\n\nthr", "ee");
+
+        assertEquals(Arrays.asList("one", "two", ""), mLines);
+    }
+
+    @Test
+    public void crLines() {
+        final LineDecoder decoder = new LineDecoder(LineBreakType.CR, mListener);
+
+        feed(decoder, "a\rb", "\n\r");
+
+        assertEquals(Arrays.asList("a", "b\n"), mLines);
+    }
+
+    @Test
+    public void anySeparatorEndsTheLineWithNone() {
+        final LineDecoder decoder = new LineDecoder(LineBreakType.NONE, mListener);
+
+        feed(decoder, "cr\rlf\ncrlf\r\nsplit\r", "\nlast\n");
+
+        assertEquals(Arrays.asList("cr", "lf", "crlf", "split", "last"), mLines);
+    }
+
+    @Test
+    public void linesLongerThanTheLimitAreDropped() {
+        final LineDecoder decoder = new LineDecoder(LineBreakType.LF, 4, mListener);
+
+        feed(decoder, "abc", "defg\nok\n", "toolong\nend\n");
+
+        assertEquals(Arrays.asList("ok", "end"), mLines);
+        assertEquals(2, decoder.getDroppedLines());
+    }
+
+    @Test
+    public void resetDiscardsThePartialLine() {
+        final LineDecoder decoder = new LineDecoder(LineBreakType.LF, mListener);
+
+        feed(decoder, "stale");
+        decoder.reset();
+        feed(decoder, "fresh\n");
+
+        assertEquals(Arrays.asList("fresh"), mLines);
+    }
+
+    private static void feed(LineDecoder decoder, String... chunks) {
+        for (String chunk : chunks) {
+            //Deslocado dentro de um array maior, como os blocos do buffer de recepção.
+            final byte[] bytes = chunk.getBytes(ASCII);
+            final byte[] buffer = new byte[bytes.length + 4];
+            System.arraycopy(bytes, 0, buffer, 2, bytes.length);
+            decoder.onDataReceived(buffer, 2, bytes.length);
+        }
+    }
+}
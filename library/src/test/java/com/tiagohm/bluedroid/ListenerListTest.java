@@ -0,0 +1,221 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ListenerListTest {
+
+    /**
+     * Listener que registra as chamadas e pode alterar a lista durante o disparo.
+     */
+    private static class Listener {
+        final String mName;
+        final List<String> mCalls;
+        Runnable mOnCall;
+
+        Listener(String name, List<String> calls) {
+            mName = name;
+            mCalls = calls;
+        }
+
+        void call() {
+            mCalls.add(mName);
+            if (mOnCall != null) mOnCall.run();
+        }
+    }
+
+    private static void dispatch(ListenerList<Listener> list) {
+        for (Listener listener : list.array()) listener.call();
+    }
+
+    @Test
+    public void duplicatesAreIgnored() {
+        final ListenerList<Listener> list = new ListenerList<>(new Listener[0]);
+        final List<String> calls = new ArrayList<>();
+        final Listener a = new Listener("a", calls);
+
+        assertTrue(list.add(a));
+        assertFalse(list.add(a));
+        assertEquals(1, list.size());
+
+        dispatch(list);
+        assertEquals(Arrays.asList("a"), calls);
+
+        //Uma única remoção basta.
+        assertTrue(list.remove(a));
+        assertTrue(list.isEmpty());
+        assertFalse(list.remove(a));
+    }
+
+    @Test
+    public void duplicatesAreFoundByEquals() {
+        final ListenerList<String> list = new ListenerList<>(new String[0]);
+
+        assertTrue(list.add(new String("x")));
+        assertFalse(list.add(new String("x")));
+        assertTrue(list.contains("x"));
+        assertTrue(list.remove(new String("x")));
+        assertFalse(list.contains("x"));
+    }
+
+    @Test
+    public void orderIsKeptAcrossRemovals() {
+        final ListenerList<String> list = new ListenerList<>(new String[0]);
+        list.add("a");
+        list.add("b");
+        list.add("c");
+        list.add("d");
+
+        list.remove("b");
+        assertArrayEquals(new String[]{"a", "c", "d"}, list.array());
+        list.remove("d");
+        assertArrayEquals(new String[]{"a", "c"}, list.array());
+        list.remove("a");
+        assertArrayEquals(new String[]{"c"}, list.array());
+    }
+
+    @Test
+    public void addDuringDispatchTakesEffectOnTheNextEvent() {
+        final ListenerList<Listener> list = new ListenerList<>(new Listener[0]);
+        final List<String> calls = new ArrayList<>();
+        final Listener a = new Listener("a", calls);
+        final Listener b = new Listener("b", calls);
+        a.mOnCall = new Runnable() {
+            @Override
+            public void run() {
+                list.add(b);
+            }
+        };
+        list.add(a);
+
+        dispatch(list);
+        assertEquals(Arrays.asList("a"), calls);
+
+        dispatch(list);
+        assertEquals(Arrays.asList("a", "a", "b"), calls);
+    }
+
+    @Test
+    public void removeDuringDispatchTakesEffectOnTheNextEvent() {
+        final ListenerList<Listener> list = new ListenerList<>(new Listener[0]);
+        final List<String> calls = new ArrayList<>();
+        final Listener a = new Listener("a", calls);
+        final Listener b = new Listener("b", calls);
+        final Listener c = new Listener("c", calls);
+        //a remove a si mesmo e b; b ainda recebe o evento atual.
+        a.mOnCall = new Runnable() {
+            @Override
+            public void run() {
+                list.remove(a);
+                list.remove(b);
+            }
+        };
+        list.add(a);
+        list.add(b);
+        list.add(c);
+
+        dispatch(list);
+        assertEquals(Arrays.asList("a", "b", "c"), calls);
+
+        dispatch(list);
+        assertEquals(Arrays.asList("a", "b", "c", "c"), calls);
+    }
+
+    @Test
+    public void clearDuringDispatchTakesEffectOnTheNextEvent() {
+        final ListenerList<Listener> list = new ListenerList<>(new Listener[0]);
+        final List<String> calls = new ArrayList<>();
+        final Listener a = new Listener("a", calls);
+        final Listener b = new Listener("b", calls);
+        a.mOnCall = new Runnable() {
+            @Override
+            public void run() {
+                list.clear();
+            }
+        };
+        list.add(a);
+        list.add(b);
+
+        dispatch(list);
+        assertEquals(Arrays.asList("a", "b"), calls);
+        assertTrue(list.isEmpty());
+
+        dispatch(list);
+        assertEquals(Arrays.asList("a", "b"), calls);
+    }
+
+    @Test
+    public void arrayHandedToADispatchIsNeverChanged() {
+        final ListenerList<String> list = new ListenerList<>(new String[0]);
+        list.add("a");
+        list.add("b");
+        final String[] snapshot = list.array();
+
+        list.remove("a");
+        list.add("c");
+        list.clear();
+
+        assertArrayEquals(new String[]{"a", "b"}, snapshot);
+    }
+
+    @Test(timeout = 10000)
+    public void concurrentChangesAreNotLost() throws Exception {
+        final ListenerList<Integer> list = new ListenerList<>(new Integer[0]);
+        final Thread[] threads = new Thread[4];
+
+        for (int t = 0; t < threads.length; t++) {
+            final int first = t * 1000;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    //Cada thread adiciona 1000 valores próprios e remove os pares.
+                    for (int i = first; i < first + 1000; i++) list.add(i);
+                    for (int i = first; i < first + 1000; i += 2) list.remove(i);
+                }
+            };
+            threads[t].start();
+        }
+
+        //Disparos durante as alterações nunca veem um valor repetido.
+        while (isAnyAlive(threads)) {
+            final Integer[] listeners = list.array();
+            assertEquals(listeners.length, new HashSet<>(Arrays.asList(listeners)).size());
+        }
+
+        for (Thread thread : threads) thread.join();
+        assertEquals(2000, list.size());
+        for (int i = 0; i < 4000; i++) assertEquals(String.valueOf(i), i % 2 != 0, list.contains(i));
+    }
+
+    private static boolean isAnyAlive(Thread[] threads) {
+        for (Thread thread : threads) {
+            if (thread.isAlive()) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+/**
+ * Um servidor e um cliente {@link BlueService} ligados por {@link LoopbackTransport}.
+ */
+final class LoopbackPair {
+
+    static final long TIMEOUT = 5000;
+
+    final LoopbackTransport.Network network = new LoopbackTransport.Network();
+    final RecordingCallback serverCallback;
+    final RecordingCallback clientCallback = new RecordingCallback();
+    final BlueService server;
+    final BlueService client;
+
+    LoopbackPair() {
+        this(new RecordingCallback());
+    }
+
+    LoopbackPair(RecordingCallback serverCallback) {
+        this.serverCallback = serverCallback;
+        server = new BlueService(serverCallback, new LoopbackTransport(network, "S"));
+        client = new BlueService(clientCallback, new LoopbackTransport(network, "C"));
+    }
+
+    /**
+     * Inicia o servidor e conecta o cliente. Retorna a sessão do cliente.
+     */
+    BlueSession connect() throws Exception {
+        server.start(false, true);
+        return client.connectAsync("S").timeout(TIMEOUT).get();
+    }
+
+    /**
+     * Aguarda o servidor aceitar o cliente e retorna a sessão dele.
+     */
+    BlueSession awaitServerSession() throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        BlueSession session;
+        while ((session = server.getSession("C")) == null || !session.isConnected()) {
+            if (System.currentTimeMillis() > deadline) throw new AssertionError("Client not accepted");
+            Thread.sleep(5);
+        }
+        return session;
+    }
+
+    void stop() {
+        client.stop();
+        server.stop();
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReconnectPolicyTest {
+
+    @Test
+    public void firstAttemptIsImmediate() {
+        assertEquals(0, new ReconnectPolicy(100, 1000, 3).getDelayMillis(1));
+    }
+
+    @Test
+    public void delaysGrowUpToTheCap() {
+        final ReconnectPolicy policy = new ReconnectPolicy(100, 1000, 2, 0, ReconnectPolicy.UNLIMITED);
+
+        assertEquals(100, policy.getDelayMillis(2));
+        assertEquals(200, policy.getDelayMillis(3));
+        assertEquals(400, policy.getDelayMillis(4));
+        assertEquals(800, policy.getDelayMillis(5));
+        assertEquals(1000, policy.getDelayMillis(6));
+        assertEquals(1000, policy.getDelayMillis(1000));
+    }
+
+    @Test
+    public void jitterOnlyShortensTheDelay() {
+        final ReconnectPolicy policy = new ReconnectPolicy(1000, 1000, 2, 0.25, ReconnectPolicy.UNLIMITED);
+
+        for (int i = 0; i < 1000; i++) {
+            final long delay = policy.getDelayMillis(2);
+            assertTrue(delay + " out of range", delay >= 750 && delay <= 1000);
+        }
+    }
+
+    @Test
+    public void attemptsAreLimitedByTheBudget() {
+        final ReconnectPolicy policy = new ReconnectPolicy(100, 1000, 3);
+
+        assertTrue(policy.canRetry(1));
+        assertTrue(policy.canRetry(3));
+        assertFalse(policy.canRetry(4));
+        assertTrue(ReconnectPolicy.DEFAULT.canRetry(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void rejectsInvalidPolicies() {
+        assertInvalid(-1, 100, 2, 0, 0);
+        assertInvalid(200, 100, 2, 0, 0);
+        assertInvalid(100, 200, 0.5, 0, 0);
+        assertInvalid(100, 200, 2, 1.5, 0);
+        assertInvalid(100, 200, 2, 0, -1);
+    }
+
+    @Test(timeout = 10000)
+    public void sessionGivesUpWhenTheBudgetIsSpent() throws Exception {
+        final RecordingCallback callback = new RecordingCallback();
+        final BlueService service = new BlueService(callback,
+                new LoopbackTransport(new LoopbackTransport.Network(), "C"));
+        service.setReconnectPolicy(new ReconnectPolicy(10, 20, 2, 0, 3));
+
+        try {
+            service.connectAsync("NOBODY").get();
+            fail("Connected to an unknown address");
+        } catch (ExecutionException expected) {
+        } finally {
+            service.stop();
+        }
+
+        assertEquals(Arrays.asList(0L, 10L, 20L), callback.getReconnectDelays());
+    }
+
+    private static void assertInvalid(long initial, long max, double multiplier, double jitter, int attempts) {
+        try {
+            new ReconnectPolicy(initial, max, multiplier, jitter, attempts);
+            fail("Accepted an invalid policy");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link BlueService.Callback} que guarda as transições, as escritas e os dados recebidos, para
+ * os testes com {@link LoopbackTransport}.
+ */
+class RecordingCallback implements BlueService.Callback {
+
+    final List<StateTransition> mTransitions = new ArrayList<>();
+    private final List<Integer> mWritten = new ArrayList<>();
+    private final List<Long> mReconnectDelays = new ArrayList<>();
+    private final ByteArrayOutputStream mReceived = new ByteArrayOutputStream();
+
+    @Override
+    public synchronized void onStateChanged(StateTransition transition) {
+    }
+
+    @Override
+    public void onDeviceConnected(String address) {
+    }
+
+    @Override
+    public synchronized void onSessionStateChanged(StateTransition transition) {
+        mTransitions.add(transition);
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onSessionReconnecting(BlueSession session, int attempt, long delayMillis) {
+        mReconnectDelays.add(delayMillis);
+    }
+
+    /**
+     * Intervalos informados a cada tentativa de reconexão, na ordem.
+     */
+    synchronized List<Long> getReconnectDelays() {
+        return new ArrayList<>(mReconnectDelays);
+    }
+
+    @Override
+    public void onDataAvailable(BlueSession session) {
+        session.drainReceived(new BlueDroid.BulkDataReceivedListener() {
+            @Override
+            public void onDataReceived(byte[] buffer, int offset, int length) {
+                synchronized (RecordingCallback.this) {
+                    mReceived.write(buffer, offset, length);
+                    RecordingCallback.this.notifyAll();
+                }
+            }
+        });
+    }
+
+    @Override
+    public synchronized void onDataWritten(BlueSession session, int length) {
+        mWritten.add(length);
+        notifyAll();
+    }
+
+    /**
+     * Aguarda até {@code count} escritas terem sido informadas e retorna os tamanhos de todas.
+     */
+    synchronized List<Integer> awaitWritten(int count, long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (mWritten.size() < count) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) break;
+            wait(remaining);
+        }
+        return new ArrayList<>(mWritten);
+    }
+
+    /**
+     * Aguarda até {@code count} transições de sessão terem sido informadas e retorna todas.
+     */
+    synchronized List<StateTransition> awaitTransitions(int count, long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (mTransitions.size() < count) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) break;
+            wait(remaining);
+        }
+        return new ArrayList<>(mTransitions);
+    }
+
+    /**
+     * Aguarda até {@code length} bytes terem sido recebidos e os retorna.
+     */
+    synchronized byte[] awaitReceived(int length, long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (mReceived.size() < length) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) break;
+            wait(remaining);
+        }
+        return mReceived.toByteArray();
+    }
+
+    /**
+     * Aguarda a sessão chegar ao estado informado.
+     */
+    static void awaitState(BlueSession session, int state, long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (session.getState() != state) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Session " + session.getAddress() + " stuck in state " + session.getState());
+            }
+            Thread.sleep(5);
+        }
+    }
+}
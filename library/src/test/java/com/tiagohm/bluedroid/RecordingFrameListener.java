@@ -0,0 +1,56 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Guarda uma cópia de cada pacote decodificado.
+ */
+final class RecordingFrameListener implements FrameCodec.Listener {
+
+    final List<byte[]> frames = new ArrayList<>();
+
+    @Override
+    public void onFrameDecoded(byte[] frame, int offset, int length) {
+        frames.add(Arrays.copyOfRange(frame, offset, offset + length));
+    }
+
+    /**
+     * Entrega {@code data} ao codec em blocos de {@code chunk} bytes.
+     */
+    void decode(FrameCodec codec, byte[] data, int chunk) {
+        for (int i = 0; i < data.length; i += chunk) {
+            codec.decode(data, i, Math.min(chunk, data.length - i), this);
+        }
+    }
+
+    static byte[] bytes(int... values) {
+        final byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) bytes[i] = (byte) values[i];
+        return bytes;
+    }
+
+    static byte[] concat(byte[]... arrays) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] array : arrays) out.write(array, 0, array.length);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RequestPipelineTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final LoopbackPair mPair = new LoopbackPair(new Responder());
+    private BlueSession mSession;
+
+    @Before
+    public void setUp() throws Exception {
+        mSession = mPair.connect();
+    }
+
+    @After
+    public void tearDown() {
+        mPair.stop();
+    }
+
+    private RequestPipeline pipeline(ResponseMatcher matcher, int maxResponseLength) {
+        final RequestPipeline pipeline = new RequestPipeline(mSession, matcher, maxResponseLength);
+        mPair.client.setReaderListener(pipeline);
+        return pipeline;
+    }
+
+    @Test(timeout = 10000)
+    public void pipelinedResponsesKeepTheRequestOrder() throws Exception {
+        final RequestPipeline pipeline = pipeline(ResponseMatcher.terminator((byte) '>'), 64);
+        final List<BlueFuture<byte[]>> futures = new ArrayList<>();
+
+        for (int i = 0; i < 200; i++) futures.add(pipeline.request(ascii("CMD" + i + "\r"), 5000));
+
+        for (int i = 0; i < 200; i++) {
+            assertEquals("R:CMD" + i, new String(futures.get(i).get(), ASCII));
+        }
+        assertEquals(0, pipeline.getPendingCount());
+    }
+
+    @Test(timeout = 10000)
+    public void timedOutRequestKeepsItsPlaceUntilReset() throws Exception {
+        final RequestPipeline pipeline = pipeline(ResponseMatcher.terminator((byte) '>'), 64);
+
+        try {
+            pipeline.request(ascii("SILENT\r"), 50).get();
+            fail("Silent request answered");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertEquals(1, pipeline.getPendingCount());
+
+        final BlueFuture<byte[]> waiting = pipeline.request(ascii("SILENT AGAIN\r"), 5000);
+        pipeline.reset();
+
+        assertFailure(waiting, IOException.class);
+        assertEquals("R:AFTER", new String(pipeline.request(ascii("AFTER\r"), 5000).get(), ASCII));
+    }
+
+    @Test(timeout = 10000)
+    public void responsesAreMatchedBySequenceId() throws Exception {
+        //O identificador é o primeiro byte do pedido e o terceiro da resposta ("R:" + pedido).
+        final RequestPipeline pipeline = pipeline(ResponseMatcher.terminator((byte) '>').withSequenceId(0, 2, 1), 64);
+
+        final BlueFuture<byte[]> silent = pipeline.request(ascii("ASILENT\r"), 100);
+        final BlueFuture<byte[]> answered = pipeline.request(ascii("B1\r"), 5000);
+
+        assertEquals("R:B1", new String(answered.get(), ASCII));
+        assertFailure(silent, TimeoutException.class);
+        awaitPendingCount(pipeline, 0);
+        assertEquals("R:B2", new String(pipeline.request(ascii("B2\r"), 5000).get(), ASCII));
+    }
+
+    @Test(timeout = 10000)
+    public void duplicateSequenceIdIsRejected() throws Exception {
+        final RequestPipeline pipeline = pipeline(ResponseMatcher.terminator((byte) '>').withSequenceId(0, 2, 1), 64);
+
+        pipeline.request(ascii("ASILENT\r"), 5000);
+
+        assertFailure(pipeline.request(ascii("AGAIN\r"), 5000), IllegalStateException.class);
+    }
+
+    @Test(timeout = 10000)
+    public void oversizedResponseFailsOnlyItsRequest() throws Exception {
+        final RequestPipeline pipeline = pipeline(ResponseMatcher.terminator((byte) '>'), 32);
+
+        final BlueFuture<byte[]> big = pipeline.request(ascii("BIG\r"), 5000);
+        final BlueFuture<byte[]> after = pipeline.request(ascii("AFTER\r"), 5000);
+
+        assertFailure(big, IOException.class);
+        assertEquals("R:AFTER", new String(after.get(), ASCII));
+        assertTrue(pipeline.getDroppedBytes() > 0);
+    }
+
+    @Test(timeout = 10000)
+    public void dataFromOtherSessionsIsIgnored() throws Exception {
+        final RequestPipeline pipeline = new RequestPipeline(mSession, ResponseMatcher.terminator((byte) '>'));
+        final BlueFuture<byte[]> future = pipeline.request(ascii("SILENT\r"), 5000);
+
+        pipeline.onDataReceived(null, ascii("X>"), 0, 2);
+
+        assertEquals(1, pipeline.getPendingCount());
+        assertFalse(future.isDone());
+    }
+
+    @Test
+    public void multiByteTerminatorIsFoundAcrossTheBuffer() {
+        final ResponseMatcher matcher = ResponseMatcher.terminator((byte) '\r', (byte) '\n');
+        final byte[] data = ascii("..OK\r\nREST");
+
+        assertEquals(0, matcher.frameLength(data, 2, 3));
+        assertEquals(4, matcher.frameLength(data, 2, 4));
+        assertEquals(2, matcher.responseLength(data, 2, 4));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sequenceIdIsAtMostThreeBytes() {
+        ResponseMatcher.terminator((byte) '>').withSequenceId(0, 4);
+    }
+
+    //O pedido é liberado nos callbacks do resultado, logo depois de ele falhar.
+    private static void awaitPendingCount(RequestPipeline pipeline, int count) throws InterruptedException {
+        while (pipeline.getPendingCount() != count) Thread.sleep(5);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(ASCII);
+    }
+
+    private static void assertFailure(BlueFuture<?> future, Class<? extends Throwable> type) throws InterruptedException {
+        try {
+            future.get();
+            fail("Request succeeded");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().toString(), type.isInstance(e.getCause()));
+        }
+    }
+
+    /**
+     * Responde a cada comando terminado por CR com "R:" + comando + '>'. "SILENT" (em qualquer
+     * posição) fica sem resposta e "BIG" recebe uma resposta de 100 bytes.
+     */
+    private static final class Responder extends RecordingCallback {
+        private final StringBuilder mCommand = new StringBuilder();
+
+        @Override
+        public void onDataAvailable(final BlueSession session) {
+            session.drainReceived(new BlueDroid.BulkDataReceivedListener() {
+                @Override
+                public void onDataReceived(byte[] buffer, int offset, int length) {
+                    for (int i = offset; i < offset + length; i++) {
+                        if (buffer[i] != '\r') {
+                            mCommand.append((char) buffer[i]);
+                            continue;
+                        }
+
+                        final String command = mCommand.toString();
+                        mCommand.setLength(0);
+                        if (command.contains("SILENT")) continue;
+
+                        final StringBuilder reply = new StringBuilder();
+                        if (command.equals("BIG")) {
+                            for (int j = 0; j < 100; j++) reply.append('x');
+                        } else {
+                            reply.append("R:").append(command);
+                        }
+                        final byte[] bytes = ascii(reply.append('>').toString());
+                        session.writeAsync(bytes, 0, bytes.length);
+                    }
+                }
+            });
+        }
+    }
+}
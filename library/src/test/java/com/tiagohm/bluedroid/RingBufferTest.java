@@ -0,0 +1,180 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RingBufferTest {
+
+    @Test
+    public void capacityIsRoundedUpToAPowerOfTwo() {
+        assertEquals(16, new RingBuffer(1).capacity());
+        assertEquals(64, new RingBuffer(64).capacity());
+        assertEquals(128, new RingBuffer(65).capacity());
+    }
+
+    @Test
+    public void contiguousRegionsSplitAtTheEndOfTheArray() {
+        final RingBuffer ring = new RingBuffer(16);
+
+        write(ring, 0, 12);
+        assertEquals(12, read(ring, 0, 12));
+
+        //A escrita seguinte dá a volta: 4 bytes no fim e o resto no início do array.
+        assertEquals(4, ring.writableContiguous());
+        write(ring, 100, 4);
+        assertEquals(12, ring.writableContiguous());
+        write(ring, 104, 6);
+
+        assertEquals(10, ring.available());
+        assertEquals(12, ring.readOffset());
+        assertEquals(4, ring.readableContiguous());
+        assertEquals(4, read(ring, 100, 4));
+        assertEquals(0, ring.readOffset());
+        assertEquals(6, ring.readableContiguous());
+        assertEquals(6, read(ring, 104, 6));
+        assertEquals(0, ring.available());
+    }
+
+    @Test
+    public void fullBufferHasNoWritableSpace() {
+        final RingBuffer ring = new RingBuffer(16);
+
+        write(ring, 0, 16);
+
+        assertEquals(16, ring.available());
+        assertEquals(0, ring.writableContiguous());
+        assertEquals(16, ring.readableContiguous());
+    }
+
+    @Test(timeout = 5000)
+    public void awaitWritableBlocksUntilTheConsumerReads() throws Exception {
+        final RingBuffer ring = new RingBuffer(16);
+        write(ring, 0, 16);
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch resumed = new CountDownLatch(1);
+        final int[] writable = new int[1];
+        final Thread producer = new Thread() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    writable[0] = ring.awaitWritable();
+                    resumed.countDown();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        };
+        producer.start();
+
+        started.await();
+        assertFalse(resumed.await(100, TimeUnit.MILLISECONDS));
+
+        ring.commitRead(5);
+
+        assertTrue(resumed.await(2, TimeUnit.SECONDS));
+        assertEquals(5, writable[0]);
+        producer.join();
+    }
+
+    @Test(timeout = 5000)
+    public void awaitWritableIsInterruptible() throws Exception {
+        final RingBuffer ring = new RingBuffer(16);
+        write(ring, 0, 16);
+
+        final boolean[] interrupted = new boolean[1];
+        final Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    ring.awaitWritable();
+                } catch (InterruptedException e) {
+                    interrupted[0] = true;
+                }
+            }
+        };
+        producer.start();
+        producer.interrupt();
+        producer.join();
+
+        assertTrue(interrupted[0]);
+    }
+
+    @Test(timeout = 5000)
+    public void closeWakesTheBlockedProducer() throws Exception {
+        final RingBuffer ring = new RingBuffer(16);
+        write(ring, 0, 16);
+
+        final int[] writable = {-1};
+        final Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    writable[0] = ring.awaitWritable();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        };
+        producer.start();
+        Thread.sleep(50);
+        ring.close();
+        producer.join();
+
+        assertEquals(0, writable[0]);
+        //O que já foi escrito continua disponível.
+        assertEquals(16, read(ring, 0, 16));
+        assertEquals(0, ring.awaitWritable());
+    }
+
+    @Test
+    public void onlyTheFirstSignalIsReported() {
+        final RingBuffer ring = new RingBuffer(16);
+
+        assertTrue(ring.signal());
+        assertFalse(ring.signal());
+
+        ring.clearSignal();
+
+        assertTrue(ring.signal());
+    }
+
+    private static void write(RingBuffer ring, int first, int length) {
+        final byte[] array = ring.array();
+        final int offset = ring.writeOffset();
+        assertTrue(ring.writableContiguous() >= length);
+        for (int i = 0; i < length; i++) array[offset + i] = (byte) (first + i);
+        ring.commitWrite(length);
+    }
+
+    //Lê e confere os bytes, retornando quantos foram lidos.
+    private static int read(RingBuffer ring, int first, int length) {
+        final byte[] array = ring.array();
+        final int offset = ring.readOffset();
+        assertTrue(ring.readableContiguous() >= length);
+        for (int i = 0; i < length; i++) assertEquals((byte) (first + i), array[offset + i]);
+        ring.commitRead(length);
+        return length;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SessionPublisherTest {
+
+    private final LoopbackPair mPair = new LoopbackPair();
+    private BlueSession mClient;
+    private BlueSession mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mClient = mPair.connect();
+        mServer = mPair.awaitServerSession();
+    }
+
+    @After
+    public void tearDown() {
+        mPair.stop();
+    }
+
+    @Test(timeout = 10000)
+    public void readingStallsWithoutDemand() throws Exception {
+        final Subscriber subscriber = new Subscriber(1);
+        mClient.getPublisher().subscribe(subscriber);
+
+        send(1, 2, 3);
+        assertArrayEquals(bytes(1, 2, 3), subscriber.awaitBytes(3));
+        send(4, 5);
+        Thread.sleep(100);
+
+        //Nem o assinante nem os listeners recebem sem demanda.
+        assertEquals(3, subscriber.size());
+        assertEquals(3, mPair.clientCallback.awaitReceived(3, LoopbackPair.TIMEOUT).length);
+        assertEquals(3, mPair.clientCallback.awaitReceived(5, 100).length);
+
+        subscriber.mSubscription.request(Long.MAX_VALUE);
+
+        assertArrayEquals(bytes(1, 2, 3, 4, 5), subscriber.awaitBytes(5));
+        assertArrayEquals(bytes(1, 2, 3, 4, 5), mPair.clientCallback.awaitReceived(5, LoopbackPair.TIMEOUT));
+    }
+
+    @Test(timeout = 10000)
+    public void itemsAreReadOnlyCopies() throws Exception {
+        final Subscriber subscriber = new Subscriber(Long.MAX_VALUE);
+        mClient.getPublisher().subscribe(subscriber);
+
+        send(7);
+        subscriber.awaitBytes(1);
+
+        assertTrue(subscriber.mLast.isReadOnly());
+    }
+
+    @Test(timeout = 10000)
+    public void cancellingResumesReading() throws Exception {
+        final Subscriber subscriber = new Subscriber(1);
+        mClient.getPublisher().subscribe(subscriber);
+
+        send(1);
+        subscriber.awaitBytes(1);
+        send(2);
+        assertEquals(1, mPair.clientCallback.awaitReceived(2, 100).length);
+
+        subscriber.mSubscription.cancel();
+
+        assertArrayEquals(bytes(1, 2), mPair.clientCallback.awaitReceived(2, LoopbackPair.TIMEOUT));
+        assertEquals(1, subscriber.size());
+    }
+
+    @Test(timeout = 10000)
+    public void nonPositiveRequestIsAnError() throws Exception {
+        final Subscriber subscriber = new Subscriber(0);
+        mClient.getPublisher().subscribe(subscriber);
+
+        assertTrue(subscriber.awaitTermination() instanceof IllegalArgumentException);
+    }
+
+    @Test(timeout = 10000)
+    public void closingTheSessionCompletes() throws Exception {
+        final Subscriber subscriber = new Subscriber(Long.MAX_VALUE);
+        mClient.getPublisher().subscribe(subscriber);
+
+        mClient.close();
+
+        assertEquals(null, subscriber.awaitTermination());
+        assertTrue(subscriber.isCompleted);
+    }
+
+    @Test(timeout = 10000)
+    public void losingTheConnectionIsAnError() throws Exception {
+        final Subscriber subscriber = new Subscriber(Long.MAX_VALUE);
+        mClient.getPublisher().subscribe(subscriber);
+
+        mServer.close();
+
+        assertTrue(subscriber.awaitTermination() instanceof IOException);
+        assertFalse(subscriber.isCompleted);
+    }
+
+    @Test(timeout = 10000)
+    public void subscribingAfterTheEndTerminatesImmediately() throws Exception {
+        mClient.close();
+        RecordingCallback.awaitState(mClient, BlueService.STATE_NONE, LoopbackPair.TIMEOUT);
+
+        final Subscriber subscriber = new Subscriber(1);
+        mClient.getPublisher().subscribe(subscriber);
+
+        assertTrue(subscriber.isCompleted);
+    }
+
+    private void send(int... values) throws Exception {
+        final byte[] data = bytes(values);
+        mServer.writeAsync(data, 0, data.length).timeout(LoopbackPair.TIMEOUT).get();
+    }
+
+    private static byte[] bytes(int... values) {
+        final byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) bytes[i] = (byte) values[i];
+        return bytes;
+    }
+
+    private static final class Subscriber implements BlueFlow.Subscriber<ByteBuffer> {
+        private final long mInitialDemand;
+        private final ByteArrayOutputStream mReceived = new ByteArrayOutputStream();
+        private volatile BlueFlow.Subscription mSubscription;
+        private ByteBuffer mLast;
+        private boolean isTerminated;
+        private boolean isCompleted;
+        private Throwable mError;
+
+        Subscriber(long initialDemand) {
+            mInitialDemand = initialDemand;
+        }
+
+        @Override
+        public void onSubscribe(BlueFlow.Subscription subscription) {
+            mSubscription = subscription;
+            subscription.request(mInitialDemand);
+        }
+
+        @Override
+        public synchronized void onNext(ByteBuffer item) {
+            mLast = item;
+            while (item.hasRemaining()) mReceived.write(item.get());
+            item.rewind();
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onError(Throwable error) {
+            mError = error;
+            isTerminated = true;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onComplete() {
+            isCompleted = true;
+            isTerminated = true;
+            notifyAll();
+        }
+
+        synchronized int size() {
+            return mReceived.size();
+        }
+
+        synchronized byte[] awaitBytes(int count) throws InterruptedException {
+            while (mReceived.size() < count) wait();
+            return mReceived.toByteArray();
+        }
+
+        synchronized Throwable awaitTermination() throws InterruptedException {
+            while (!isTerminated) wait();
+            return mError;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SessionStreamsTest {
+
+    private final LoopbackPair mPair = new LoopbackPair();
+    private BlueSession mClient;
+    private BlueSession mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mClient = mPair.connect();
+        mServer = mPair.awaitServerSession();
+    }
+
+    @After
+    public void tearDown() {
+        mPair.stop();
+    }
+
+    @Test(timeout = 10000)
+    public void readsWhatThePeerWrites() throws Exception {
+        final SessionInputStream in = mClient.getInputStream();
+        mServer.writeAsync(new byte[]{1, 2, 3, 4}, 0, 4);
+
+        final byte[] buffer = new byte[4];
+        readFully(in, buffer);
+
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, buffer);
+        assertSame(in, mClient.getInputStream());
+    }
+
+    @Test(timeout = 10000)
+    public void readTimesOut() throws Exception {
+        final SessionInputStream in = mClient.getInputStream();
+        in.setReadTimeout(50);
+
+        final long start = System.nanoTime();
+        try {
+            in.read();
+            fail("Read returned without data");
+        } catch (SocketTimeoutException expected) {
+        }
+
+        assertTrue(System.nanoTime() - start >= 50000000);
+        assertTrue(mClient.isConnected());
+    }
+
+    @Test(timeout = 10000)
+    public void bufferedDataIsReadBeforeTheEndOfStream() throws Exception {
+        final SessionInputStream in = mClient.getInputStream();
+        mServer.writeAsync(new byte[]{9, 8}, 0, 2).timeout(LoopbackPair.TIMEOUT).get();
+        while (in.available() < 2) Thread.sleep(5);
+
+        mServer.close();
+        RecordingCallback.awaitState(mClient, BlueService.STATE_NONE, LoopbackPair.TIMEOUT);
+
+        assertEquals(9, in.read());
+        assertEquals(8, in.read());
+        assertEquals(-1, in.read());
+        assertEquals(-1, in.read(new byte[4], 0, 4));
+    }
+
+    @Test(timeout = 10000)
+    public void channelReadFillsTheByteBuffer() throws Exception {
+        final SessionInputStream in = mClient.getInputStream();
+        mServer.writeAsync(new byte[]{5, 6, 7}, 0, 3);
+
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(3);
+        while (buffer.hasRemaining()) assertTrue(in.read(buffer) > 0);
+        buffer.flip();
+
+        assertEquals(5, buffer.get());
+        assertEquals(6, buffer.get());
+        assertEquals(7, buffer.get());
+    }
+
+    @Test(timeout = 10000)
+    public void closingTheStreamKeepsTheSession() throws Exception {
+        final SessionInputStream in = mClient.getInputStream();
+        in.close();
+
+        try {
+            in.read();
+            fail("Read from a closed stream");
+        } catch (IOException expected) {
+        }
+
+        assertFalse(in.isOpen());
+        assertTrue(mClient.isConnected());
+        assertNotSame(in, mClient.getInputStream());
+    }
+
+    @Test(timeout = 10000)
+    public void outputStreamSendsOnFlush() throws Exception {
+        final SessionInputStream in = mServer.getInputStream();
+        final SessionOutputStream out = mClient.getOutputStream();
+        final byte[] data = new byte[3000];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) i;
+
+        out.write(1);
+        out.write(data, 0, 10);
+        out.write(ByteBuffer.wrap(data, 10, data.length - 10));
+        out.flush();
+
+        final byte[] received = new byte[data.length + 1];
+        readFully(in, received);
+
+        assertEquals(1, received[0]);
+        assertArrayEquals(data, Arrays.copyOfRange(received, 1, received.length));
+    }
+
+    private static void readFully(SessionInputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            final int n = in.read(buffer, total, buffer.length - total);
+            if (n < 0) throw new AssertionError("End of stream after " + total + " bytes");
+            total += n;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class StateTransitionTest {
+
+    private static final int NONE = BlueService.STATE_NONE;
+    private static final int LISTEN = BlueService.STATE_LISTEN;
+    private static final int CONNECTING = BlueService.STATE_CONNECTING;
+    private static final int CONNECTED = BlueService.STATE_CONNECTED;
+
+    private LoopbackPair mPair;
+
+    @After
+    public void tearDown() {
+        if (mPair != null) mPair.stop();
+    }
+
+    @Test
+    public void onlyTheTableTransitionsAreAllowed() {
+        //Linha: origem; coluna: destino (NONE, LISTEN, CONNECTING, CONNECTED).
+        final boolean[][] table = {
+                {false, false, true, true},
+                {false, false, false, false},
+                {true, false, false, true},
+                {true, false, true, false},
+        };
+
+        for (int from = NONE; from <= CONNECTED; from++) {
+            for (int to = NONE; to <= CONNECTED; to++) {
+                assertEquals(from + " -> " + to, table[from][to], StateTransition.isAllowed(from, to));
+            }
+        }
+    }
+
+    @Test
+    public void unknownStatesAreRejected() {
+        assertFalse(StateTransition.isAllowed(-1, CONNECTING));
+        assertFalse(StateTransition.isAllowed(4, NONE));
+        assertFalse(StateTransition.isAllowed(NONE, 4));
+        assertFalse(StateTransition.isAllowed(LISTEN, CONNECTED));
+    }
+
+    @Test(timeout = 10000)
+    public void connectPublishesConnectThenConnected() throws Exception {
+        mPair = new LoopbackPair();
+        final BlueSession client = mPair.connect();
+        final BlueSession server = mPair.awaitServerSession();
+
+        final List<StateTransition> transitions = mPair.clientCallback.awaitTransitions(2, LoopbackPair.TIMEOUT);
+        assertEquals(2, transitions.size());
+        assertTransition(transitions.get(0), client, NONE, CONNECTING, StateTransition.Cause.CONNECT);
+        assertTransition(transitions.get(1), client, CONNECTING, CONNECTED, StateTransition.Cause.CONNECTED);
+
+        final List<StateTransition> accepted = mPair.serverCallback.awaitTransitions(1, LoopbackPair.TIMEOUT);
+        assertEquals(1, accepted.size());
+        assertTransition(accepted.get(0), server, NONE, CONNECTED, StateTransition.Cause.ACCEPT);
+    }
+
+    @Test(timeout = 10000)
+    public void failedConnectPublishesConnectFailed() throws Exception {
+        mPair = new LoopbackPair();
+        final BlueSession session = mPair.client.connect("NOBODY");
+
+        final List<StateTransition> transitions = mPair.clientCallback.awaitTransitions(2, LoopbackPair.TIMEOUT);
+        assertEquals(2, transitions.size());
+        assertTransition(transitions.get(0), session, NONE, CONNECTING, StateTransition.Cause.CONNECT);
+        assertTransition(transitions.get(1), session, CONNECTING, NONE, StateTransition.Cause.CONNECT_FAILED);
+    }
+
+    @Test(timeout = 10000)
+    public void lostConnectionPublishesConnectionLost() throws Exception {
+        mPair = new LoopbackPair();
+        final BlueSession client = mPair.connect();
+        final BlueSession server = mPair.awaitServerSession();
+
+        server.close();
+
+        final List<StateTransition> transitions = mPair.clientCallback.awaitTransitions(3, LoopbackPair.TIMEOUT);
+        assertEquals(3, transitions.size());
+        assertTransition(transitions.get(2), client, CONNECTED, NONE, StateTransition.Cause.CONNECTION_LOST);
+
+        final List<StateTransition> closed = mPair.serverCallback.awaitTransitions(2, LoopbackPair.TIMEOUT);
+        assertTransition(closed.get(1), server, CONNECTED, NONE, StateTransition.Cause.CLOSE);
+    }
+
+    @Test(timeout = 10000)
+    public void reconnectPublishesConnectingThenConnected() throws Exception {
+        mPair = new LoopbackPair();
+        mPair.server.setMultiSession(true);
+        mPair.client.setReconnectPolicy(new ReconnectPolicy(10, 20, 2, 0, 3));
+        final BlueSession client = mPair.connect();
+        final BlueSession server = mPair.awaitServerSession();
+
+        server.close();
+
+        final List<StateTransition> transitions = mPair.clientCallback.awaitTransitions(4, LoopbackPair.TIMEOUT);
+        assertEquals(4, transitions.size());
+        assertTransition(transitions.get(2), client, CONNECTED, CONNECTING, StateTransition.Cause.CONNECTION_LOST);
+        assertTransition(transitions.get(3), client, CONNECTING, CONNECTED, StateTransition.Cause.CONNECTED);
+    }
+
+    @Test(timeout = 10000)
+    public void closePublishesCloseOnlyOnce() throws Exception {
+        mPair = new LoopbackPair();
+        final BlueSession client = mPair.connect();
+
+        client.close();
+        client.close();
+
+        final List<StateTransition> transitions = mPair.clientCallback.awaitTransitions(3, LoopbackPair.TIMEOUT);
+        assertEquals(3, transitions.size());
+        assertTransition(transitions.get(2), client, CONNECTED, NONE, StateTransition.Cause.CLOSE);
+        Thread.sleep(50);
+        assertEquals(3, mPair.clientCallback.awaitTransitions(3, 0).size());
+    }
+
+    @Test
+    public void serviceTransitionHasNoSession() {
+        final StateTransition transition = new StateTransition(null, NONE, LISTEN, StateTransition.Cause.LISTEN);
+
+        assertNull(transition.getSession());
+        assertEquals("StateTransition{service, 0 -> 1, LISTEN}", transition.toString());
+    }
+
+    private static void assertTransition(StateTransition transition, BlueSession session, int from, int to,
+                                         StateTransition.Cause cause) {
+        assertSame(session, transition.getSession());
+        assertEquals(from, transition.getFrom());
+        assertEquals(to, transition.getTo());
+        assertEquals(cause, transition.getCause());
+    }
+}
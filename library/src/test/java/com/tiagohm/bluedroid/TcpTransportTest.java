@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TcpTransportTest {
+
+    private final List<Closeable> mCloseables = new ArrayList<>();
+
+    @After
+    public void tearDown() throws IOException {
+        for (Closeable closeable : mCloseables) closeable.close();
+    }
+
+    private static int freePort() throws IOException {
+        final ServerSocket socket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        final int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+
+    @Test(timeout = 10000)
+    public void connectsSendsAndReceivesOnLocalhost() throws Exception {
+        final int port = freePort();
+        final Transport.Acceptor acceptor = new TcpTransport(port).listen(false, false);
+        mCloseables.add(acceptor);
+
+        final Transport.Connection outgoing = new TcpTransport(0).open(String.valueOf(port), false, false);
+        mCloseables.add(outgoing);
+        outgoing.connect();
+        final Transport.Connection incoming = acceptor.accept();
+        mCloseables.add(incoming);
+
+        final byte[] ping = "ping".getBytes("US-ASCII");
+        final byte[] pong = "pong!".getBytes("US-ASCII");
+        send(outgoing, ping);
+        assertArrayEquals(ping, receive(incoming, ping.length));
+        send(incoming, pong);
+        assertArrayEquals(pong, receive(outgoing, pong.length));
+
+        assertEquals(String.valueOf(port), outgoing.getAddress());
+        assertTrue(incoming.getAddress().startsWith("127.0.0.1:"));
+    }
+
+    @Test
+    public void rejectsPortsOutOfRange() throws Exception {
+        final TcpTransport transport = new TcpTransport(0);
+
+        for (String address : new String[]{"127.0.0.1:70000", "127.0.0.1:-1", "0", "65536"}) {
+            try {
+                transport.open(address, false, false);
+                fail(address);
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAddressesWithoutPort() throws Exception {
+        new TcpTransport(0).open("127.0.0.1:abc", false, false);
+    }
+
+    @Test(timeout = 10000)
+    public void invalidPortFailsTheSession() throws Exception {
+        final BlueService client = new BlueService(new RecordingCallback(), new TcpTransport(0));
+
+        try {
+            final BlueSession session = client.connect("127.0.0.1:70000");
+            session.whenConnected().timeout(LoopbackPair.TIMEOUT).get();
+            fail();
+        } catch (ExecutionException e) {
+            //Sem a validação, o worker morria e a sessão ficava conectando até o tempo limite.
+            assertTrue(e.getCause() instanceof IOException);
+        } finally {
+            client.stop();
+        }
+    }
+
+    private static void send(Transport.Connection connection, byte[] data) throws IOException {
+        final OutputStream out = connection.getOutputStream();
+        out.write(data);
+        out.flush();
+    }
+
+    private static byte[] receive(Transport.Connection connection, int length) throws IOException {
+        final InputStream in = connection.getInputStream();
+        final byte[] data = new byte[length];
+        int total = 0;
+
+        while (total < length) {
+            final int n = in.read(data, total, length - total);
+            if (n < 0) throw new IOException("End of stream after " + total + " bytes");
+            total += n;
+        }
+
+        return data;
+    }
+}
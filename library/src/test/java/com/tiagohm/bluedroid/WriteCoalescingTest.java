@@ -0,0 +1,113 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class WriteCoalescingTest {
+
+    private static final long TIMEOUT = 5000;
+
+    private final LoopbackTransport.Network mNetwork = new LoopbackTransport.Network();
+    private final RecordingCallback mServerCallback = new RecordingCallback();
+    private final RecordingCallback mClientCallback = new RecordingCallback();
+    private BlueService mServer;
+    private BlueService mClient;
+
+    private void connect(int coalesceSize, long delayMicros) throws Exception {
+        mServer = new BlueService(mServerCallback, new LoopbackTransport(mNetwork, "S"));
+        mServer.start(false, true);
+        mClient = new BlueService(mClientCallback, new LoopbackTransport(mNetwork, "C"));
+        mClient.setWriteCoalescing(coalesceSize, delayMicros);
+        mClient.connectAsync("S").timeout(TIMEOUT).get();
+    }
+
+    @After
+    public void tearDown() {
+        if (mClient != null) mClient.stop();
+        if (mServer != null) mServer.stop();
+    }
+
+    @Test(timeout = 10000)
+    public void smallWritesAreSentTogetherOnFlush() throws Exception {
+        connect(64, 10000000);
+
+        final BlueFuture<Integer> first = mClient.writeAsync(new byte[]{1, 2}, 0, 2);
+        final BlueFuture<Integer> second = mClient.writeAsync(new byte[]{3, 4, 5}, 0, 3);
+        Thread.sleep(50);
+
+        assertFalse(first.isDone());
+        assertFalse(second.isDone());
+
+        mClient.flush().timeout(TIMEOUT).get();
+
+        assertEquals(2, (int) first.get());
+        assertEquals(3, (int) second.get());
+        assertEquals(Arrays.asList(5), mClientCallback.awaitWritten(1, TIMEOUT));
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5}, mServerCallback.awaitReceived(5, TIMEOUT));
+    }
+
+    @Test(timeout = 10000)
+    public void fullBatchIsSentWithoutWaiting() throws Exception {
+        connect(8, 10000000);
+
+        mClient.writeAsync(new byte[5], 0, 5);
+        mClient.writeAsync(new byte[3], 0, 3).timeout(TIMEOUT).get();
+
+        assertEquals(Arrays.asList(8), mClientCallback.awaitWritten(1, TIMEOUT));
+    }
+
+    @Test(timeout = 10000)
+    public void batchIsSentWhenTheDelayExpires() throws Exception {
+        connect(64, 20000);
+
+        final long start = System.nanoTime();
+        mClient.writeAsync(new byte[]{7}, 0, 1).timeout(TIMEOUT).get();
+
+        assertEquals(Arrays.asList(1), mClientCallback.awaitWritten(1, TIMEOUT));
+        assertFalse(System.nanoTime() - start < 20000000);
+        assertArrayEquals(new byte[]{7}, mServerCallback.awaitReceived(1, TIMEOUT));
+    }
+
+    @Test(timeout = 10000)
+    public void largeWriteFlushesTheBatchAndGoesAlone() throws Exception {
+        connect(8, 10000000);
+
+        mClient.writeAsync(new byte[]{1, 2}, 0, 2);
+        mClient.writeAsync(new byte[20], 0, 20).timeout(TIMEOUT).get();
+
+        assertEquals(Arrays.asList(2, 20), mClientCallback.awaitWritten(2, TIMEOUT));
+        assertEquals(22, mServerCallback.awaitReceived(22, TIMEOUT).length);
+    }
+
+    @Test(timeout = 10000)
+    public void disabledCoalescingSendsEachWrite() throws Exception {
+        connect(0, 10000000);
+
+        mClient.writeAsync(new byte[]{1}, 0, 1).timeout(TIMEOUT).get();
+        mClient.writeAsync(new byte[]{2}, 0, 1).timeout(TIMEOUT).get();
+
+        assertEquals(Arrays.asList(1, 1), mClientCallback.awaitWritten(2, TIMEOUT));
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2016-2017 tiagohm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tiagohm.bluedroid;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WriteQueueTest {
+
+    private static WriteQueue.Request request(int length) {
+        return new WriteQueue.Request(new byte[length], 0, length, null);
+    }
+
+    private static Throwable failure(BlueFuture<?> future) throws InterruptedException {
+        assertTrue(future.isDone());
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+        fail("Future succeeded");
+        return null;
+    }
+
+    @Test
+    public void failPolicyRejectsWhenFull() throws Exception {
+        final WriteQueue queue = new WriteQueue(10, OverflowPolicy.FAIL);
+
+        assertFalse(queue.offer(request(6)).isDone());
+        final Throwable error = failure(queue.offer(request(6)));
+
+        assertTrue(error instanceof IOException);
+        assertEquals("Write queue full", error.getMessage());
+        assertEquals(1, queue.size());
+        assertEquals(6, queue.getQueuedBytes());
+    }
+
+    @Test
+    public void dropOldestFailsTheOldestRequests() throws Exception {
+        final WriteQueue queue = new WriteQueue(10, OverflowPolicy.DROP_OLDEST);
+        final WriteQueue.Request first = request(4);
+        final WriteQueue.Request second = request(4);
+        final WriteQueue.Request third = request(4);
+
+        queue.offer(first);
+        queue.offer(second);
+        queue.offer(third);
+
+        assertEquals("Dropped by write queue overflow", failure(first.future).getMessage());
+        assertFalse(second.future.isDone());
+        assertFalse(third.future.isDone());
+        assertEquals(8, queue.getQueuedBytes());
+        assertSame(second, queue.poll(0, false));
+        assertSame(third, queue.poll(0, false));
+    }
+
+    @Test(timeout = 5000)
+    public void blockPolicyWaitsForSpace() throws Exception {
+        final WriteQueue queue = new WriteQueue(10, OverflowPolicy.BLOCK);
+        final WriteQueue.Request first = request(6);
+        final WriteQueue.Request second = request(6);
+        final CountDownLatch offered = new CountDownLatch(1);
+
+        queue.offer(first);
+        final Thread producer = new Thread() {
+            @Override
+            public void run() {
+                queue.offer(second);
+                offered.countDown();
+            }
+        };
+        producer.start();
+
+        assertFalse(offered.await(100, TimeUnit.MILLISECONDS));
+        assertSame(first, queue.poll(0, false));
+        assertTrue(offered.await(2, TimeUnit.SECONDS));
+        assertSame(second, queue.poll(0, false));
+        producer.join();
+    }
+
+    @Test(timeout = 5000)
+    public void closingWakesBlockedProducers() throws Exception {
+        final WriteQueue queue = new WriteQueue(10, OverflowPolicy.BLOCK);
+        final WriteQueue.Request second = request(6);
+        final IOException cause = new IOException("closed");
+
+        queue.offer(request(6));
+        final Thread producer = new Thread() {
+            @Override
+            public void run() {
+                queue.offer(second);
+            }
+        };
+        producer.start();
+        Thread.sleep(50);
+        queue.close(cause);
+        producer.join();
+
+        assertSame(cause, failure(second.future));
+    }
+
+    @Test
+    public void requestLargerThanTheQueueIsAcceptedWhenEmpty() {
+        final WriteQueue queue = new WriteQueue(4, OverflowPolicy.FAIL);
+
+        assertFalse(queue.offer(request(10)).isDone());
+        assertEquals(10, queue.getQueuedBytes());
+    }
+
+    @Test
+    public void flushIgnoresTheCapacity() throws Exception {
+        final WriteQueue queue = new WriteQueue(4, OverflowPolicy.FAIL);
+
+        queue.offer(request(4));
+        assertFalse(queue.flush().isDone());
+
+        assertEquals(2, queue.size());
+        assertEquals(4, queue.poll(0, false).length);
+        assertTrue(queue.poll(0, false).isFlush);
+    }
+
+    @Test
+    public void closeFailsPendingAndFutureRequests() throws Exception {
+        final WriteQueue queue = new WriteQueue(10, OverflowPolicy.FAIL);
+        final WriteQueue.Request pending = request(2);
+        final IOException cause = new IOException("closed");
+
+        queue.offer(pending);
+        queue.close(cause);
+
+        assertSame(cause, failure(pending.future));
+        assertSame(cause, failure(queue.offer(request(1))));
+        assertSame(cause, failure(queue.flush()));
+        assertTrue(queue.isClosed());
+        assertNull(queue.poll(-1, false));
+    }
+
+    @Test
+    public void consumerIsScheduledOncePerDrain() throws Exception {
+        final WriteQueue queue = new WriteQueue(100, OverflowPolicy.FAIL);
+        final CountingExecutor executor = new CountingExecutor();
+
+        queue.offer(request(1));
+        queue.bind(executor, executor);
+        queue.offer(request(1));
+
+        assertEquals(1, executor.mScheduled);
+
+        //A tarefa esvazia a fila e termina.
+        assertNotNull(queue.poll(0, true));
+        assertNotNull(queue.poll(0, true));
+        assertNull(queue.poll(0, true));
+
+        queue.offer(request(1));
+
+        assertEquals(2, executor.mScheduled);
+    }
+
+    @Test
+    public void rejectedConsumerClosesTheQueue() throws Exception {
+        final WriteQueue queue = new WriteQueue(100, OverflowPolicy.FAIL);
+        final Executor rejecting = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException();
+            }
+        };
+
+        queue.bind(rejecting, new CountingExecutor());
+        final BlueFuture<Integer> future = queue.offer(request(1));
+
+        assertEquals("Thread budget exhausted", failure(future).getMessage());
+        assertTrue(queue.isClosed());
+    }
+
+    private static final class CountingExecutor implements Executor, Runnable {
+        int mScheduled;
+
+        @Override
+        public void execute(Runnable command) {
+            mScheduled++;
+        }
+
+        @Override
+        public void run() {
+        }
+    }
+}